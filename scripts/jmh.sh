@@ -0,0 +1,42 @@
+#!/usr/bin/env bash
+# Compiles the benchmarks in src/jmh/java together with src/main/java and src/testFixtures/java
+# and runs QueryFactoryBenchmark with the GC profiler. JMH and its dependencies are downloaded
+# from Maven Central (or MAVEN_REPOSITORY) into build/jmh/lib on first use. Arguments are JMH
+# command line options, e.g.
+#
+#     scripts/jmh.sh 'flatten|createInsert' -p batchSize=10000 -f 1 -wi 2 -i 3
+set -euo pipefail
+
+ROOT="$(cd "$(dirname "$0")/.." && pwd)"
+BUILD="$ROOT/build/jmh"
+LIB="$BUILD/lib"
+REPOSITORY="${MAVEN_REPOSITORY:-https://repo1.maven.org/maven2}"
+JMH_VERSION=1.37
+
+ARTIFACTS=(
+    "org/openjdk/jmh/jmh-core/$JMH_VERSION/jmh-core-$JMH_VERSION.jar"
+    "org/openjdk/jmh/jmh-generator-annprocess/$JMH_VERSION/jmh-generator-annprocess-$JMH_VERSION.jar"
+    "net/sf/jopt-simple/jopt-simple/5.0.4/jopt-simple-5.0.4.jar"
+    "org/apache/commons/commons-math3/3.6.1/commons-math3-3.6.1.jar"
+    "org/slf4j/slf4j-api/2.0.13/slf4j-api-2.0.13.jar"
+)
+
+mkdir -p "$LIB"
+CLASSPATH=""
+for artifact in "${ARTIFACTS[@]}"; do
+    jar="$LIB/${artifact##*/}"
+    if [ ! -f "$jar" ]; then
+        curl -fsSL -o "$jar.part" "$REPOSITORY/$artifact"
+        mv "$jar.part" "$jar"
+    fi
+    CLASSPATH="$CLASSPATH:$jar"
+done
+CLASSPATH="${CLASSPATH#:}"
+
+rm -rf "$BUILD/classes"
+mkdir -p "$BUILD/classes"
+find "$ROOT/src/main/java" "$ROOT/src/testFixtures/java" "$ROOT/src/jmh/java" -name '*.java' > "$BUILD/sources"
+javac -d "$BUILD/classes" -cp "$CLASSPATH" \
+    -processor org.openjdk.jmh.generators.BenchmarkProcessor @"$BUILD/sources"
+
+exec java -cp "$BUILD/classes:$CLASSPATH" com.oz.db.clickhouse.QueryFactoryBenchmark "$@"
@@ -0,0 +1,111 @@
+package com.oz.db.clickhouse;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the flatten and render steps of {@link QueryFactory}.
+ * <p>
+ * Every invocation processes one batch of {@code batchSize} rows with a {@link QueryFactory} that
+ * has already seen the fixture, like the long lived factory of a table helper, so the numbers
+ * exclude learning the column names. The {@code rows} counter
+ * reports rows per second; {@code gc.alloc.rate.norm} is bytes per batch, divide it by
+ * {@code batchSize} to get bytes per row. {@code scripts/jmh.sh} compiles and starts
+ * {@link #main(String[])}, which runs the benchmarks with the GC profiler and takes the JMH
+ * command line options, like a regex that selects benchmarks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryFactoryBenchmark {
+
+    @Param({"100", "10000"})
+    public int batchSize;
+
+    @Param({"10", "100"})
+    public int columnCount;
+
+    @Param({"FLAT", "SPARSE", "NESTED"})
+    public RowFixtures.Shape shape;
+
+    private QueryFactory factory;
+    private List<Map<String, Object>> rows;
+    private List<Map<String, String>> flatRows;
+    private List<String> columns;
+    private List<List<String>> values;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class RowCounter {
+        public long rows;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        rows = RowFixtures.fixture(shape, batchSize, columnCount, new Random(42));
+        factory = new QueryFactory("col_");
+        factory.flatten(rows);
+        flatRows = new ArrayList<>();
+        columns = new ArrayList<>();
+        factory.getColumnsAndValuesForBulk(rows, columns, flatRows);
+        values = factory.getFulfilledValues(flatRows, columns);
+    }
+
+    @Benchmark
+    public String createInsert(RowCounter counter) {
+        counter.rows += batchSize;
+        return factory.createInsert(rows, "db.msgs");
+    }
+
+    @Benchmark
+    public FlatBatch flatten(RowCounter counter) {
+        counter.rows += batchSize;
+        return factory.flatten(rows);
+    }
+
+    @Benchmark
+    public void getColumnsAndValuesForBulk(RowCounter counter, Blackhole blackhole) {
+        counter.rows += batchSize;
+        List<String> columns = new ArrayList<>();
+        List<Map<String, String>> values = new ArrayList<>();
+        factory.getColumnsAndValuesForBulk(rows, columns, values);
+        blackhole.consume(columns);
+        blackhole.consume(values);
+    }
+
+    @Benchmark
+    public List<List<String>> getFulfilledValues(RowCounter counter) {
+        counter.rows += batchSize;
+        return factory.getFulfilledValues(flatRows, columns);
+    }
+
+    @Benchmark
+    public String generateInsert(RowCounter counter) {
+        counter.rows += batchSize;
+        return factory.generateInsert(values, columns, "db.msgs");
+    }
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .parent(commandLine)
+                .addProfiler(GCProfiler.class);
+        if (commandLine.getIncludes().isEmpty()) {
+            options.include(QueryFactoryBenchmark.class.getSimpleName());
+        }
+        new Runner(options.build()).run();
+    }
+}
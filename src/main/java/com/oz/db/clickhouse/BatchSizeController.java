@@ -0,0 +1,163 @@
+package com.oz.db.clickhouse;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Batch size targets adjusted by the observed insert latency, additive increase and
+ * multiplicative decrease like TCP congestion control. An insert that took longer than the
+ * target latency or failed with a transient error shrinks the targets by the decrease factor;
+ * an insert that was fast and at least half as large as a target grows them by one step.
+ * Inserts that started before the last decrease do not shrink them again, as they were sized
+ * by the old targets.
+ * <p>
+ * Set it on the {@link ClickhouseTableHelper} to feed it and on the {@link BatchingWriter} to
+ * size its batches by it.
+ */
+public class BatchSizeController {
+
+    private final int minRows;
+    private final int maxRows;
+    private final int rowsIncrement;
+    private final long minBytes;
+    private final long maxBytes;
+    private final long bytesIncrement;
+    private final long targetLatencyNanos;
+    private final double decreaseFactor;
+
+    private volatile int targetRows;
+    private volatile long targetBytes;
+    private long lastDecreaseNanos;
+
+    private final LongAdder increases = new LongAdder();
+    private final LongAdder decreases = new LongAdder();
+
+    private BatchSizeController(Builder builder) {
+        this.minRows = builder.minRows;
+        this.maxRows = builder.maxRows;
+        this.rowsIncrement = builder.rowsIncrement;
+        this.minBytes = builder.minBytes;
+        this.maxBytes = builder.maxBytes;
+        this.bytesIncrement = builder.bytesIncrement;
+        this.targetLatencyNanos = builder.targetLatencyMillis * 1_000_000;
+        this.decreaseFactor = builder.decreaseFactor;
+        this.targetRows = Math.max(minRows, Math.min(maxRows, builder.initialRows));
+        this.targetBytes = Math.max(minBytes, Math.min(maxBytes, builder.initialBytes));
+        this.lastDecreaseNanos = System.nanoTime();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Records one insert.
+     *
+     * @param bytes size of the statements sent, 0 if unknown
+     * @param success false if the insert failed with a transient error
+     */
+    public void onInsert(int rows, long bytes, long nanos, boolean success) {
+        onInsert(rows, bytes, nanos, success, System.nanoTime());
+    }
+
+    synchronized void onInsert(int rows, long bytes, long nanos, boolean success, long now) {
+        if (!success || nanos > targetLatencyNanos) {
+            if (now - nanos < lastDecreaseNanos) {
+                return;
+            }
+            targetRows = Math.max(minRows, (int) (targetRows * decreaseFactor));
+            targetBytes = Math.max(minBytes, (long) (targetBytes * decreaseFactor));
+            lastDecreaseNanos = now;
+            decreases.increment();
+        } else if (2L * rows >= targetRows || 2 * bytes >= targetBytes) {
+            targetRows = (int) Math.min(maxRows, (long) targetRows + rowsIncrement);
+            targetBytes = Math.min(maxBytes, targetBytes + bytesIncrement);
+            increases.increment();
+        }
+    }
+
+    public int getTargetRows() {
+        return targetRows;
+    }
+
+    public long getTargetBytes() {
+        return targetBytes;
+    }
+
+    public int getMaxRows() {
+        return maxRows;
+    }
+
+    public long getIncreases() {
+        return increases.sum();
+    }
+
+    public long getDecreases() {
+        return decreases.sum();
+    }
+
+    public static class Builder {
+        private int minRows = 1000;
+        private int maxRows = 1_000_000;
+        private int initialRows = 50_000;
+        private int rowsIncrement = 5000;
+        private long minBytes = 1024 * 1024;
+        private long maxBytes = 256L * 1024 * 1024;
+        private long initialBytes = 64L * 1024 * 1024;
+        private long bytesIncrement = 4L * 1024 * 1024;
+        private long targetLatencyMillis = 1000;
+        private double decreaseFactor = 0.5;
+
+        private Builder() {
+        }
+
+        public Builder rows(int minRows, int initialRows, int maxRows) {
+            this.minRows = minRows;
+            this.initialRows = initialRows;
+            this.maxRows = maxRows;
+            return this;
+        }
+
+        public Builder rowsIncrement(int rowsIncrement) {
+            this.rowsIncrement = rowsIncrement;
+            return this;
+        }
+
+        public Builder bytes(long minBytes, long initialBytes, long maxBytes) {
+            this.minBytes = minBytes;
+            this.initialBytes = initialBytes;
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        public Builder bytesIncrement(long bytesIncrement) {
+            this.bytesIncrement = bytesIncrement;
+            return this;
+        }
+
+        /**
+         * Inserts slower than this shrink the batches.
+         */
+        public Builder targetLatencyMillis(long targetLatencyMillis) {
+            this.targetLatencyMillis = targetLatencyMillis;
+            return this;
+        }
+
+        /**
+         * Factor from 0 to 1 the targets are multiplied by after a slow or failed insert.
+         */
+        public Builder decreaseFactor(double decreaseFactor) {
+            this.decreaseFactor = decreaseFactor;
+            return this;
+        }
+
+        public BatchSizeController build() {
+            if (minRows > maxRows || minBytes > maxBytes) {
+                throw new IllegalArgumentException("Minimum batch size is above the maximum");
+            }
+            if (decreaseFactor <= 0 || decreaseFactor >= 1) {
+                throw new IllegalArgumentException("Decrease factor must be between 0 and 1: " + decreaseFactor);
+            }
+            return new BatchSizeController(this);
+        }
+    }
+}
@@ -0,0 +1,432 @@
+package com.oz.db.clickhouse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Collects single rows from any number of producer threads into a bounded buffer and
+ * writes them with {@link ClickhouseTableHelper#insertBulk(List)} from one background
+ * thread once a row count, byte size or delay limit is reached. The size limits are fixed or
+ * follow a {@link BatchSizeController}.
+ * <p>
+ * When the buffer is full, {@link #add(Map)} blocks, throws {@link RejectedExecutionException},
+ * drops the row or appends it to a {@link WriteAheadSpool}, according to the
+ * {@link OverflowPolicy}. {@link #flush()} waits until every row added before the call has been
+ * written, {@link #close()} flushes and stops the writer.
+ */
+public class BatchingWriter implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchingWriter.class);
+
+    public enum OverflowPolicy {
+        BLOCK,
+        FAIL,
+        DROP,
+        SPOOL
+    }
+
+    @FunctionalInterface
+    public interface BatchSink {
+        int write(List<Map<String, Object>> rows);
+    }
+
+    private final BatchSink sink;
+    private final int maxBatchRows;
+    private final long maxBatchBytes;
+    private final long maxDelayNanos;
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private final WriteAheadSpool spool;
+    private final QueryFactory spoolQueryFactory;
+    private final BatchSizeController batchSizeController;
+    private final Thread flusher;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Condition flushNeeded = lock.newCondition();
+    private final Condition written = lock.newCondition();
+
+    private List<Map<String, Object>> buffer;
+    private long bufferedBytes;
+    private long firstRowNanos;
+    private long enqueuedRows;
+    private long writtenRows;
+    private long insertedRows;
+    private long droppedRows;
+    private long spooledRows;
+    private long flushTarget;
+    private boolean closed;
+
+    private BatchingWriter(Builder builder) {
+        this.sink = builder.sink;
+        this.maxBatchRows = builder.maxBatchRows;
+        this.maxBatchBytes = builder.maxBatchBytes;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(builder.maxDelayMillis);
+        this.batchSizeController = builder.batchSizeController;
+        this.capacity = Math.max(builder.capacity,
+                null == batchSizeController ? builder.maxBatchRows : batchSizeController.getMaxRows());
+        this.overflowPolicy = builder.overflowPolicy;
+        this.spool = builder.spool;
+        this.spoolQueryFactory = builder.spoolQueryFactory;
+        this.buffer = new ArrayList<>(batchRows());
+        this.flusher = builder.threadFactory.newThread(this::run);
+        this.flusher.start();
+    }
+
+    public static Builder builder(ClickhouseTableHelper helper) {
+        Builder builder = new Builder(helper::insertBulk, "batching-writer-" + helper.getFullTableName());
+        builder.helper = helper;
+        return builder;
+    }
+
+    public static Builder builder(BatchSink sink) {
+        return new Builder(sink, "batching-writer");
+    }
+
+    /**
+     * @return false if the row was dropped or spooled because the buffer is full
+     */
+    public boolean add(Map<String, Object> row) throws InterruptedException {
+        long rowBytes = estimateSize(row);
+        lock.lockInterruptibly();
+        try {
+            while (buffer.size() >= capacity && !closed) {
+                switch (overflowPolicy) {
+                    case FAIL:
+                        throw new RejectedExecutionException("Batching buffer is full: " + capacity + " rows");
+                    case DROP:
+                        droppedRows++;
+                        return false;
+                    case SPOOL:
+                        lock.unlock();
+                        try {
+                            spoolRow(row);
+                        } finally {
+                            lock.lock();
+                        }
+                        return false;
+                    default:
+                        notFull.await();
+                }
+            }
+            if (closed) {
+                throw new IllegalStateException("Batching writer is closed");
+            }
+            boolean first = buffer.isEmpty();
+            if (first) {
+                firstRowNanos = System.nanoTime();
+            }
+            buffer.add(row);
+            bufferedBytes += rowBytes;
+            enqueuedRows++;
+            if (first || buffer.size() >= batchRows() || bufferedBytes >= batchBytes()) {
+                flushNeeded.signal();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void spoolRow(Map<String, Object> row) {
+        boolean spooled = spool.append(spoolQueryFactory.flatten(Collections.singletonList(row)));
+        lock.lock();
+        try {
+            if (spooled) {
+                spooledRows++;
+            } else {
+                droppedRows++;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until all rows added before this call have been passed to the sink.
+     */
+    public void flush() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            long target = enqueuedRows;
+            flushTarget = Math.max(flushTarget, target);
+            flushNeeded.signal();
+            while (writtenRows < target && flusher.isAlive()) {
+                written.await(100, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting rows, writes everything still buffered and waits for the flusher thread.
+     * If the calling thread is interrupted while waiting, the flusher keeps writing in the
+     * background and the interrupt flag is set again.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            flushNeeded.signal();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted while closing, buffered rows are written in the background");
+        }
+    }
+
+    private void run() {
+        while (true) {
+            List<Map<String, Object>> batch;
+            lock.lock();
+            try {
+                batch = awaitBatch();
+                if (null == batch) {
+                    return;
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                LOG.warn("Batching writer interrupted, {} rows are not written", buffer.size());
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            int cnt = 0;
+            try {
+                cnt = sink.write(batch);
+            } catch (RuntimeException ex) {
+                LOG.error("could not write batch of {} rows", batch.size(), ex);
+            }
+
+            lock.lock();
+            try {
+                writtenRows += batch.size();
+                insertedRows += cnt;
+                written.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private List<Map<String, Object>> awaitBatch() throws InterruptedException {
+        while (true) {
+            int size = buffer.size();
+            if (size > 0) {
+                long waitNanos = maxDelayNanos - (System.nanoTime() - firstRowNanos);
+                if (size >= batchRows() || bufferedBytes >= batchBytes() || waitNanos <= 0
+                        || closed || flushTarget > writtenRows) {
+                    return takeBatch();
+                }
+                flushNeeded.awaitNanos(waitNanos);
+            } else if (closed) {
+                return null;
+            } else {
+                flushNeeded.await();
+            }
+        }
+    }
+
+    private List<Map<String, Object>> takeBatch() {
+        List<Map<String, Object>> batch;
+        int batchRows = batchRows();
+        if (buffer.size() <= batchRows) {
+            batch = buffer;
+            buffer = new ArrayList<>(batchRows);
+            bufferedBytes = 0;
+        } else {
+            List<Map<String, Object>> head = buffer.subList(0, batchRows);
+            batch = new ArrayList<>(head);
+            head.clear();
+            bufferedBytes = 0;
+            for (Map<String, Object> row : buffer) {
+                bufferedBytes += estimateSize(row);
+            }
+            firstRowNanos = System.nanoTime();
+        }
+        notFull.signalAll();
+        return batch;
+    }
+
+    private int batchRows() {
+        return null == batchSizeController ? maxBatchRows : batchSizeController.getTargetRows();
+    }
+
+    private long batchBytes() {
+        return null == batchSizeController ? maxBatchBytes : batchSizeController.getTargetBytes();
+    }
+
+    static long estimateSize(Map<?, ?> map) {
+        long size = 0;
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            size += entry.getKey().toString().length() + 2;
+            Object v = entry.getValue();
+            if (v instanceof List) {
+                for (Object element : (List<?>) v) {
+                    size += element instanceof Map ? estimateSize((Map<?, ?>) element)
+                            : null == element ? 0 : element.toString().length() + 2;
+                }
+            } else if (null != v) {
+                size += v.toString().length() + 2;
+            }
+        }
+        return size;
+    }
+
+    public long getEnqueuedRows() {
+        lock.lock();
+        try {
+            return enqueuedRows;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getInsertedRows() {
+        lock.lock();
+        try {
+            return insertedRows;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDroppedRows() {
+        lock.lock();
+        try {
+            return droppedRows;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getSpooledRows() {
+        lock.lock();
+        try {
+            return spooledRows;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getBufferedRows() {
+        lock.lock();
+        try {
+            return buffer.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public static class Builder {
+        private BatchSink sink;
+        private int maxBatchRows = 50_000;
+        private long maxBatchBytes = 64L * 1024 * 1024;
+        private long maxDelayMillis = 1000;
+        private int capacity;
+        private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+        private ThreadFactory threadFactory;
+        private WriteAheadSpool spool;
+        private QueryFactory spoolQueryFactory;
+        private BatchSizeController batchSizeController;
+        private ClickhouseTableHelper helper;
+
+        private Builder(BatchSink sink, String threadName) {
+            this.sink = sink;
+            this.threadFactory = r -> {
+                Thread thread = new Thread(r, threadName);
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+
+        Builder sink(BatchSink sink) {
+            this.sink = sink;
+            return this;
+        }
+
+        public Builder maxBatchRows(int maxBatchRows) {
+            this.maxBatchRows = maxBatchRows;
+            return this;
+        }
+
+        public Builder maxBatchBytes(long maxBatchBytes) {
+            this.maxBatchBytes = maxBatchBytes;
+            return this;
+        }
+
+        public Builder maxDelayMillis(long maxDelayMillis) {
+            this.maxDelayMillis = maxDelayMillis;
+            return this;
+        }
+
+        /**
+         * Maximum number of buffered rows, defaults to two batches.
+         */
+        public Builder capacity(int capacity) {
+            this.capacity = capacity;
+            return this;
+        }
+
+        public Builder overflowPolicy(OverflowPolicy overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        /**
+         * Rows that do not fit into the buffer are flattened by the query factory and appended
+         * to the spool; sets the {@link OverflowPolicy#SPOOL} policy.
+         */
+        public Builder spool(WriteAheadSpool spool, QueryFactory queryFactory) {
+            this.spool = spool;
+            this.spoolQueryFactory = queryFactory;
+            this.overflowPolicy = OverflowPolicy.SPOOL;
+            return this;
+        }
+
+        /**
+         * Sizes the batches by the controller's targets instead of the fixed maximums. A writer
+         * built for a helper also sets the controller on the helper, which feeds it.
+         */
+        public Builder batchSizeController(BatchSizeController batchSizeController) {
+            this.batchSizeController = batchSizeController;
+            return this;
+        }
+
+        public Builder threadFactory(ThreadFactory threadFactory) {
+            this.threadFactory = threadFactory;
+            return this;
+        }
+
+        public BatchingWriter build() {
+            if (overflowPolicy == OverflowPolicy.SPOOL && null == spool) {
+                throw new IllegalStateException("SPOOL policy needs a spool");
+            }
+            if (capacity <= 0) {
+                capacity = 2 * (null == batchSizeController ? maxBatchRows : batchSizeController.getMaxRows());
+            }
+            if (null != batchSizeController && null != helper) {
+                helper.setBatchSizeController(batchSizeController);
+            }
+            return new BatchingWriter(this);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package com.oz.db.clickhouse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Bounded pool of JDBC connections. At most {@code maxSize} connections are handed out at a
+ * time; {@link #acquire()} waits up to {@code acquireTimeoutMillis} for one to be returned.
+ * Connections are opened lazily and reused in LIFO order.
+ */
+public class ClickhouseConnectionPool implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ClickhouseConnectionPool.class);
+
+    public static final long DEFAULT_ACQUIRE_TIMEOUT_MILLIS = 30_000;
+
+    @FunctionalInterface
+    public interface ConnectionFactory {
+        Connection create() throws SQLException;
+    }
+
+    private final ConnectionFactory factory;
+    private final int maxSize;
+    private final long acquireTimeoutMillis;
+    private final boolean ownsConnections;
+    private final Semaphore permits;
+    private final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<>();
+    private final Map<Connection, Map<Object, Object>> attributes = new ConcurrentHashMap<>();
+
+    private final LongAdder acquireCount = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final LongAdder timeouts = new LongAdder();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private final AtomicInteger opened = new AtomicInteger();
+
+    private volatile boolean closed;
+
+    public ClickhouseConnectionPool(ConnectionFactory factory, int maxSize, long acquireTimeoutMillis) {
+        this(factory, maxSize, acquireTimeoutMillis, true);
+    }
+
+    private ClickhouseConnectionPool(ConnectionFactory factory, int maxSize, long acquireTimeoutMillis,
+                                     boolean ownsConnections) {
+        this.factory = factory;
+        this.maxSize = maxSize;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.ownsConnections = ownsConnections;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * Pool of one connection owned by the caller; closing the pool does not close it.
+     */
+    public static ClickhouseConnectionPool of(Connection connection) {
+        return of(connection, DEFAULT_ACQUIRE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Pool of one connection owned by the caller. While it is handed out, for example to an open
+     * {@link RowCursor}, other callers wait at most {@code acquireTimeoutMillis} and then fail.
+     */
+    public static ClickhouseConnectionPool of(Connection connection, long acquireTimeoutMillis) {
+        return new ClickhouseConnectionPool(() -> connection, 1, acquireTimeoutMillis, false);
+    }
+
+    public PooledConnection acquire() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                timeouts.increment();
+                throw new SQLTimeoutException("No free connection after " + acquireTimeoutMillis + " ms");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", ex);
+        }
+        long waited = System.nanoTime() - start;
+        acquireCount.increment();
+        waitNanos.add(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+
+        Connection connection;
+        try {
+            connection = idle.pollFirst();
+            if (null != connection && connection.isClosed()) {
+                closeQuietly(connection);
+                connection = null;
+            }
+            if (null == connection) {
+                connection = factory.create();
+                if (ownsConnections) {
+                    opened.incrementAndGet();
+                }
+            }
+        } catch (SQLException | RuntimeException ex) {
+            permits.release();
+            throw ex;
+        }
+        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        return new PooledConnection(connection);
+    }
+
+    private void release(Connection connection, boolean broken) {
+        inFlight.decrementAndGet();
+        if (broken || closed) {
+            closeQuietly(connection);
+        } else {
+            idle.offerFirst(connection);
+        }
+        permits.release();
+    }
+
+    private void closeQuietly(Connection connection) {
+        Map<Object, Object> removed = attributes.remove(connection);
+        if (null != removed) {
+            removed.values().forEach(ClickhouseConnectionPool::closeAttribute);
+        }
+        if (!ownsConnections) {
+            return;
+        }
+        opened.decrementAndGet();
+        try {
+            connection.close();
+        } catch (SQLException ex) {
+            LOG.warn("could not close connection", ex);
+        }
+    }
+
+    private static void closeAttribute(Object value) {
+        if (value instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) value).close();
+            } catch (Exception ex) {
+                LOG.warn("could not close connection attribute", ex);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        Connection connection;
+        while (null != (connection = idle.pollFirst())) {
+            closeQuietly(connection);
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getAcquireCount() {
+        return acquireCount.sum();
+    }
+
+    public long getTotalWaitNanos() {
+        return waitNanos.sum();
+    }
+
+    public long getMaxWaitNanos() {
+        return maxWaitNanos.get();
+    }
+
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight.get();
+    }
+
+    public int getOpenConnections() {
+        return opened.get();
+    }
+
+    public final class PooledConnection implements AutoCloseable {
+
+        private final Connection connection;
+        private boolean broken;
+        private boolean released;
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        public Connection connection() {
+            return connection;
+        }
+
+        /**
+         * State that lives as long as the connection, like prepared statements. Values that are
+         * {@link AutoCloseable} are closed when the pool closes the connection.
+         */
+        @SuppressWarnings("unchecked")
+        public <T> T attribute(Object key, Function<Connection, T> factory) {
+            Map<Object, Object> values = attributes.computeIfAbsent(connection, x -> new ConcurrentHashMap<>());
+            return (T) values.computeIfAbsent(key, x -> factory.apply(connection));
+        }
+
+        /**
+         * The connection is closed instead of being returned to the pool.
+         */
+        public void markBroken() {
+            broken = true;
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                release(connection, broken);
+            }
+        }
+    }
+}
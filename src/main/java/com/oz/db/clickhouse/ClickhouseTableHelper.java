@@ -3,29 +3,85 @@ package com.oz.db.clickhouse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
 import java.sql.Statement;
 import java.util.*;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
 
 public class ClickhouseTableHelper {
 
     private static final Logger LOG = LoggerFactory.getLogger(ClickhouseTableHelper.class);
 
-    private final Connection connection;
+    /**
+     * CANNOT_PARSE_TEXT, CANNOT_PARSE_INPUT_ASSERTION_FAILED, TYPE_MISMATCH,
+     * CANNOT_PARSE_ESCAPE_SEQUENCE, CANNOT_PARSE_QUOTED_STRING, CANNOT_PARSE_NUMBER and
+     * INCORRECT_DATA
+     */
+    private static final Set<Integer> DATA_ERROR_CODES = Set.of(6, 27, 53, 62, 69, 72, 117);
+
+    /** reloads of the columns per batch when the table changes behind the helper's back */
+    private static final int MAX_SCHEMA_RETRIES = 3;
+
+    /**
+     * How rows are sent: as literal {@code values} text, or bound to a prepared statement that
+     * is cached per connection and column set and sent with {@code executeBatch}. Batches with
+     * array columns are always sent as {@code values}.
+     */
+    public enum InsertMode {
+        VALUES,
+        PREPARED
+    }
+
+    private final ClickhouseConnectionPool pool;
     private final String fullTableName;
     private final String database;
     private final String simpleTableName;
     private final QueryFactory queryFactory;
-
-    private Map<String, String> dbColumns;
+    private final Queue<InsertEncoder> insertEncoders = new ConcurrentLinkedQueue<>();
+    private final Queue<JsonFlattener> jsonFlatteners = new ConcurrentLinkedQueue<>();
+    private final LongAdder typeConflicts = new LongAdder();
+    private final LongAdder widenedColumns = new LongAdder();
+
+    private final Object schemaLock = new Object();
+
+    private volatile Map<String, String> dbColumns;
+    private volatile ColumnTypeInference typeInference;
+    private volatile WriteAheadSpool spool;
+    private volatile IngestMetrics metrics;
+    private volatile InsertMode insertMode = InsertMode.VALUES;
+    private volatile int maxPreparedStatements = PreparedStatementCache.DEFAULT_MAX_SIZE;
+    private volatile long schemaVersion;
+    private volatile int sparseMinShapeRows;
+    private volatile TableLayout tableLayout = TableLayout.DEFAULT;
+    private volatile RetryPolicy retryPolicy = RetryPolicy.NONE;
+    private volatile boolean deduplicate;
+    private volatile DeadLetterSink deadLetterSink;
+    private volatile RowLayout rowLayout;
+    /** layout of the tries the path cache dropped, see {@link #getRowLayout()} */
+    private volatile RowLayout evictedLayout = RowLayout.EMPTY;
+    private volatile BatchSizeController batchSizeController;
+    private volatile int fetchSize = 1000;
+    private volatile HttpInsertTransport httpTransport;
 
 
     public ClickhouseTableHelper(Connection connection, String fullTableName, String columnPrefix) {
-        this.connection = connection;
+        this(ClickhouseConnectionPool.of(connection), fullTableName, columnPrefix);
+    }
+
+    /**
+     * Inserts take a connection from the pool for their duration, so up to the pool size of
+     * inserts run at once when the helper is called from several threads. Schema changes are
+     * serialized within the helper.
+     */
+    public ClickhouseTableHelper(ClickhouseConnectionPool pool, String fullTableName, String columnPrefix) {
+        this.pool = pool;
         if (fullTableName.contains(".")) {
             String[] strs = fullTableName.split("\\.");
             this.fullTableName = fullTableName;
@@ -37,219 +93,877 @@ public class ClickhouseTableHelper {
             this.simpleTableName = fullTableName;
         }
         queryFactory = new QueryFactory(columnPrefix);
+        queryFactory.getPathCache().setEvictionListener(
+                root -> evictedLayout = evictedLayout.merge(RowLayout.of(root)));
+        metrics = new IngestMetrics(new SimpleMetricsRegistry(), this.fullTableName);
     }
 
     public Map<String, String> getColumns() {
         try {
-            loadColumns(connection);
-        } catch (SQLException | ClassNotFoundException ex) {
+            return loadColumns();
+        } catch (SQLException ex) {
             LOG.error("could not get columns", ex);
         }
         return dbColumns;
     }
 
     public int insert(Map<String, Object> map) {
-        boolean addColumns = false;
+        return insertBulk(Collections.singletonList(map));
+    }
+
+    public int insertBulk(List<Map<String, Object>> mapList) {
+        long start = System.nanoTime();
+        FlatBatch batch = queryFactory.flatten(mapList);
+        metrics.flatten.record(System.nanoTime() - start);
+        return insertBatch(batch);
+    }
+
+    /**
+     * Inserts JSON rows, see {@link JsonFlattener} for the accepted input and column naming.
+     */
+    public int insertJson(byte[] json) {
+        return insertJson(json, null);
+    }
+
+    /**
+     * Inserts JSON rows read from the stream; the stream is not closed.
+     */
+    public int insertJson(InputStream json) {
+        return insertJson(null, json);
+    }
+
+    private int insertJson(byte[] bytes, InputStream stream) {
+        JsonFlattener flattener = jsonFlatteners.poll();
+        if (null == flattener) {
+            flattener = new JsonFlattener(queryFactory);
+        }
+        FlatBatch batch = new FlatBatch(queryFactory.getDictionary());
+        long start = System.nanoTime();
+        try {
+            if (null != bytes) {
+                flattener.flatten(bytes, 0, bytes.length, batch);
+            } else {
+                flattener.flatten(stream, batch);
+            }
+        } catch (IOException ex) {
+            metrics.failedInserts.increment();
+            LOG.error("could not parse", ex);
+            return 0;
+        } finally {
+            jsonFlatteners.offer(flattener);
+        }
+        metrics.flatten.record(System.nanoTime() - start);
+        return insertBatch(batch);
+    }
+
+    /**
+     * Inserts already flattened rows, creating missing columns first. The batch may come from
+     * another helper's {@link QueryFactory}; only its column names are used.
+     */
+    public int insertBatch(FlatBatch batch) {
+        try {
+            return insertBatchOrThrow(batch);
+        } catch (SQLException ex) {
+            metrics.failedInserts.increment();
+            WriteAheadSpool current = spool;
+            if (null != current && RetryPolicy.isTransient(ex) && current.append(batch)) {
+                LOG.warn("could not insert, {} rows are spooled to {}", batch.getRowCount(), current.getDirectory(), ex);
+            } else {
+                LOG.error("could not insert", ex);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Same as {@link #insertBatch(FlatBatch)} but throws instead of logging and spooling.
+     */
+    public int insertBatchOrThrow(FlatBatch batch) throws SQLException {
+        IngestMetrics metrics = this.metrics;
+        long start = System.nanoTime();
+        ensureColumns(batch);
         int cnt = 0;
+        int minShapeRows = sparseMinShapeRows;
+        if (minShapeRows > 0) {
+            for (FlatBatch part : batch.splitByShape(minShapeRows)) {
+                cnt += insertPart(part);
+            }
+        } else {
+            cnt = insertPart(batch);
+        }
+        metrics.inserts.increment();
+        metrics.rows.add(batch.getRowCount());
+        metrics.latency.record(System.nanoTime() - start);
+        return cnt;
+    }
 
+    private int insertPart(FlatBatch batch) throws SQLException {
+        InsertEncoder.Progress progress = new InsertEncoder.Progress();
         try {
+            return insertWithRetry(batch, progress);
+        } catch (SQLException ex) {
+            if (null == deadLetterSink || !isDataError(ex)) {
+                throw ex;
+            }
+            return progress.getCount() + bisect(remainingRows(batch, progress), ex);
+        }
+    }
 
+    /**
+     * @return the rows of the batch that the statements of the progress have not inserted
+     */
+    private static FlatBatch remainingRows(FlatBatch batch, InsertEncoder.Progress progress) {
+        int from = progress.getRows();
+        if (from == 0) {
+            return batch;
+        }
+        int[] rows = new int[batch.getRowCount() - from];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = from + i;
+        }
+        return batch.select(rows, rows.length);
+    }
+
+    /**
+     * Inserts the halves of a batch that failed with a data error on their own, down to single
+     * rows, which go to the dead letter sink. Any other error of a half fails the batch.
+     */
+    private int bisect(FlatBatch batch, SQLException cause) throws SQLException {
+        int rows = batch.getRowCount();
+        if (rows == 1) {
+            LOG.warn("Row rejected by {}: {}", fullTableName, cause.getMessage());
+            metrics.deadLetterRows.increment();
+            deadLetterSink.accept(fullTableName, batch, cause);
+            return 0;
+        }
+        int middle = rows / 2;
+        int[] indexes = new int[rows];
+        for (int i = 0; i < rows; i++) {
+            indexes[i] = i;
+        }
+        FlatBatch[] halves = {batch.select(indexes, middle),
+                batch.select(Arrays.copyOfRange(indexes, middle, rows), rows - middle)};
+        SQLException[] errors = new SQLException[2];
+        int cnt = 0;
+        for (int i = 0; i < 2; i++) {
+            InsertEncoder.Progress progress = new InsertEncoder.Progress();
             try {
-                cnt = insertRow(map);
+                cnt += insertWithRetry(halves[i], progress);
             } catch (SQLException ex) {
-                //LOG.trace("Exception: {}", ex.getMessage());
-                if (ex.getMessage().contains("No such column")) {
-                    LOG.info("Need add columns to {} for {}", fullTableName, map);
-                    addColumns = true;
-                } else if (ex.getMessage().contains("Table "+fullTableName+" doesn't exist")) {
-                    LOG.info("Need create table {} for {}", fullTableName, map);
-                    addColumns = true;
-                } else {
+                if (!isDataError(ex)) {
                     throw ex;
                 }
+                cnt += progress.getCount();
+                halves[i] = remainingRows(halves[i], progress);
+                errors[i] = ex;
             }
-        } catch (SQLException ex) {
-            LOG.error("could not insert", ex);
         }
-
-        if (addColumns) {
-            try {
-                addColumns(map);
-                cnt = insert(map);
-
-            } catch (SQLException | ClassNotFoundException ex) {
-                LOG.error("could not insert", ex);
+        for (int i = 0; i < 2; i++) {
+            if (null != errors[i]) {
+                cnt += bisect(halves[i], errors[i]);
             }
         }
         return cnt;
     }
 
-    private int insertRow(Map<String, Object> map) throws SQLException {
-        try (Statement statement = connection.createStatement()){
-            List<String> columns = new ArrayList<>();
-            List<String> values = new ArrayList<>();
-            getListsColumnsAndValues(map, "", columns, values);
-            String query = "insert into " + fullTableName
-                    + " ( " + columns.stream().collect(Collectors.joining(","))
-                    + " ) values ( "
-                    + values.stream().map(x -> "'"+x+"'").collect(Collectors.joining(","))
-                    + " )";
-            LOG.trace("Query: {}", query);
-            if (!statement.execute(query)) {
-                LOG.trace("insert {} rows", statement.getUpdateCount());
-                return statement.getUpdateCount();
+    /**
+     * @return true for server errors about the values of single rows, the only ones worth
+     * splitting a batch for
+     */
+    private static boolean isDataError(SQLException ex) {
+        return DATA_ERROR_CODES.contains(RetryPolicy.errorCode(ex));
+    }
+
+    /**
+     * Sends the batch, again after errors that the retry policy or a schema reload allow. A batch
+     * that is sent in several statements is resumed at the failed statement, so the statements
+     * before it are not sent twice.
+     *
+     * @param progress statements of the batch that have been executed, also when this throws
+     */
+    private int insertWithRetry(FlatBatch batch, InsertEncoder.Progress progress) throws SQLException {
+        RetryPolicy policy = retryPolicy;
+        String token = deduplicate ? DeduplicationToken.of(batch) : null;
+        int schemaRetries = 0;
+        for (int attempt = 1; ; attempt++) {
+            int inserted = progress.getCount();
+            try {
+                return inserted + insertBulkImpl(batch, token, progress);
+            } catch (SQLException ex) {
+                if (isSchemaError(ex) && schemaRetries < MAX_SCHEMA_RETRIES) {
+                    LOG.info("Schema of {} changed outside, reload columns: {}", fullTableName, ex.getMessage());
+                    metrics.schemaRetries.increment();
+                    schemaRetries++;
+                    resetColumns();
+                    ensureColumns(batch);
+                    attempt--;
+                    continue;
+                }
+                if (attempt >= policy.getMaxAttempts() || !policy.isRetryable(ex)) {
+                    throw ex;
+                }
+                long backoff = policy.backoffMillis(attempt);
+                LOG.warn("Insert into {} failed, attempt {} of {}, retry in {} ms: {}",
+                        fullTableName, attempt, policy.getMaxAttempts(), backoff, ex.getMessage());
+                metrics.retries.increment();
+                sleep(backoff, ex);
             }
         }
-        return 0;
     }
 
-    public int insertBulk(List<Map<String, Object>> mapList) {
-        boolean addColumns = false;
-        int cnt = 0;
+    private static void sleep(long millis, SQLException cause) throws SQLException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw cause;
+        }
+    }
+
+    private boolean isSchemaError(SQLException ex) {
+        String message = ex.getMessage();
+        return null != message && (message.contains("No such column")
+                || message.contains("Table " + fullTableName + " doesn't exist"));
+    }
 
+    private void resetColumns() {
+        synchronized (schemaLock) {
+            dbColumns = null;
+            schemaVersion++;
+        }
+    }
+
+    private int insertBulkImpl(FlatBatch batch, String deduplicationToken, InsertEncoder.Progress progress)
+            throws SQLException {
+        BatchSizeController controller = batchSizeController;
+        if (null == controller) {
+            return send(batch, deduplicationToken, progress, null);
+        }
+        long[] sentBytes = new long[1];
+        long start = System.nanoTime();
         try {
+            int cnt = send(batch, deduplicationToken, progress, sentBytes);
+            controller.onInsert(batch.getRowCount(), sentBytes[0], System.nanoTime() - start, true);
+            return cnt;
+        } catch (SQLException ex) {
+            if (RetryPolicy.isTransient(ex)) {
+                controller.onInsert(batch.getRowCount(), sentBytes[0], System.nanoTime() - start, false);
+            }
+            throw ex;
+        }
+    }
 
+    /**
+     * @param progress statements already executed; Values statements over JDBC resume after them.
+     *                 Prepared and HTTP inserts send a batch in one statement and are used only
+     *                 for batches that no statement has been executed for
+     * @param sentBytes if not null, the length of the statements sent is added to its first element
+     */
+    private int send(FlatBatch batch, String deduplicationToken, InsertEncoder.Progress progress,
+                     long[] sentBytes) throws SQLException {
+        HttpInsertTransport transport = httpTransport;
+        boolean started = progress.getRows() > 0;
+        if (null != transport && !started) {
+            return sendHttp(transport, batch, deduplicationToken, sentBytes);
+        }
+        ColumnType[] types = getColumnTypes(batch);
+        if (insertMode == InsertMode.PREPARED && !hasArray(types) && !started) {
+            return insertPrepared(batch, types);
+        }
+        InsertEncoder encoder = insertEncoders.poll();
+        if (null == encoder) {
+            encoder = new InsertEncoder();
+        }
+        long conflicts = encoder.getTypeConflicts();
+        try (ClickhouseConnectionPool.PooledConnection pooled = pool.acquire();
+             Statement statement = pooled.connection().createStatement()) {
+            long start = System.nanoTime();
             try {
-                cnt = insertBulkImpl(mapList);
+                int cnt = encoder.encode(fullTableName, batch, types, deduplicationToken, progress,
+                        query -> {
+                            if (null != sentBytes) {
+                                sentBytes[0] += query.length();
+                            }
+                            return executeInsert(statement, query);
+                        });
+                metrics.render.record(System.nanoTime() - start - encoder.getLastSinkNanos());
+                return cnt;
             } catch (SQLException ex) {
-                //LOG.trace("Exception: {}", ex.getMessage());
-                if (ex.getMessage().contains("No such column")) {
-                    LOG.info("Need add columns to {} for {}", fullTableName, mapList);
-                    addColumns = true;
-                } else if (ex.getMessage().contains("Table "+fullTableName+" doesn't exist")) {
-                    LOG.info("Need create table {} for {}", fullTableName, mapList);
-                    addColumns = true;
-                } else {
-                    throw ex;
+                if (ex instanceof SQLRecoverableException) {
+                    pooled.markBroken();
                 }
+                throw ex;
             }
-        } catch (SQLException ex) {
-            LOG.error("could not insert", ex);
+        } finally {
+            typeConflicts.add(encoder.getTypeConflicts() - conflicts);
+            insertEncoders.offer(encoder);
         }
+    }
 
-        if (addColumns) {
-            try  {
-                addColumns(mapList);
-                cnt = insertBulkImpl(mapList);
+    private int sendHttp(HttpInsertTransport transport, FlatBatch batch, String deduplicationToken,
+                         long[] sentBytes) throws SQLException {
+        long[] stats = new long[2];
+        long start = System.nanoTime();
+        try {
+            int cnt = transport.insert(fullTableName, batch, loadColumns(), deduplicationToken, stats);
+            metrics.bytes.add(stats[0]);
+            return cnt;
+        } finally {
+            metrics.execute.record(System.nanoTime() - start);
+            typeConflicts.add(stats[1]);
+            if (null != sentBytes) {
+                sentBytes[0] += stats[0];
+            }
+        }
+    }
 
-            } catch (SQLException | ClassNotFoundException ex) {
-                LOG.error("could not insert", ex);
+    private static boolean hasArray(ColumnType[] types) {
+        for (ColumnType type : types) {
+            if (type.isArray()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int insertPrepared(FlatBatch batch, ColumnType[] types) throws SQLException {
+        String sql = PreparedInsert.sql(fullTableName, batch.getColumnNames());
+        String[] values = new String[batch.getColumnCount()];
+        long conflicts = 0;
+        try (ClickhouseConnectionPool.PooledConnection pooled = pool.acquire()) {
+            PreparedStatementCache cache = pooled.attribute(this,
+                    connection -> new PreparedStatementCache(connection, maxPreparedStatements));
+            PreparedStatement statement = cache.get(sql, schemaVersion);
+            long start = System.nanoTime();
+            try {
+                for (int row = 0; row < batch.getRowCount(); row++) {
+                    batch.fillRow(row, values);
+                    conflicts += PreparedInsert.bindRow(statement, values, types);
+                    statement.addBatch();
+                }
+                metrics.render.record(System.nanoTime() - start);
+                start = System.nanoTime();
+                int[] counts = statement.executeBatch();
+                metrics.execute.record(System.nanoTime() - start);
+                return countRows(counts, batch.getRowCount());
+            } catch (SQLException ex) {
+                cache.invalidate(sql);
+                throw ex;
             }
+        } finally {
+            typeConflicts.add(conflicts);
+        }
+    }
+
+    private static int countRows(int[] counts, int rows) {
+        int cnt = 0;
+        for (int count : counts) {
+            if (count == Statement.SUCCESS_NO_INFO) {
+                return rows;
+            }
+            cnt += Math.max(count, 0);
         }
         return cnt;
     }
 
-    private int insertBulkImpl(List<Map<String, Object>> mapList) throws SQLException {
-        try (Statement statement = connection.createStatement()) {
-            String query = queryFactory.createInsert(mapList, fullTableName);
-            LOG.trace("Query: {}", query);
-            if (!statement.execute(query)) {
+    private ColumnType[] getColumnTypes(FlatBatch batch) throws SQLException {
+        Map<String, String> columns = loadColumns();
+        ColumnType[] types = new ColumnType[batch.getColumnCount()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = ColumnType.fromSql(columns.get(batch.getColumnName(i)));
+        }
+        return types;
+    }
+
+    private int executeInsert(Statement statement, String query) throws SQLException {
+        LOG.trace("Query: {}", query);
+        long start = System.nanoTime();
+        try {
+            boolean hasResult = statement.execute(query);
+            metrics.bytes.add(query.length());
+            if (!hasResult) {
                 LOG.trace("insert {} rows", statement.getUpdateCount());
                 return statement.getUpdateCount();
             }
+            return 0;
+        } finally {
+            metrics.execute.record(System.nanoTime() - start);
         }
-        return 0;
     }
 
-    private void addColumns(Map<String, Object> map) throws SQLException, ClassNotFoundException {
-        addColumns(map.keySet().stream());
+    /**
+     * Creates the columns of the batch that are missing in the table, and widens nullable
+     * numeric and date columns whose type does not accept a value of the batch along
+     * {@code UInt64}, {@code Int64}, {@code Float64} and {@code String}. Columns that are not
+     * nullable, like those of the {@link TableLayout}, keep their type: a value they do not accept
+     * is sent as it is, so the server rejects its row.
+     */
+    public void ensureColumns(FlatBatch batch) throws SQLException {
+        Map<String, String> loaded = loadColumns();
+        if (null == findMissingColumns(batch, loaded) && null == findNarrowColumns(batch, loaded)) {
+            return;
+        }
+        synchronized (schemaLock) {
+            Map<String, String> columns = loadColumns();
+            Map<String, String> updated = new HashMap<>(columns);
+            int[] newColumns = findMissingColumns(batch, columns);
+            if (null != newColumns) {
+                ColumnTypeInference inference = typeInference;
+                ColumnType[] types = null == inference ? null : inference.infer(batch, newColumns);
+                Map<String, String> added = new LinkedHashMap<>();
+                for (int i = 0; i < newColumns.length; i++) {
+                    int arrayDepth = batch.getDictionary().arrayDepth(batch.getColumnIndex(newColumns[i]));
+                    String type = arrayDepth > 0 ? ColumnType.arraySql(arrayDepth)
+                            : null == types ? "String" : types[i].getSql();
+                    added.put(batch.getColumnName(newColumns[i]), type);
+                }
+                LOG.info("Need add {} columns to {}: {}", added.size(), fullTableName, added);
+                createColumns(added);
+                updated.putAll(added);
+            }
+            Map<String, String> widened = findNarrowColumns(batch, updated);
+            if (null != widened) {
+                LOG.info("Need widen {} columns of {}: {}", widened.size(), fullTableName, widened);
+                modifyColumns(widened);
+                widenedColumns.add(widened.size());
+                updated.putAll(widened);
+            }
+            if (null == newColumns && null == widened) {
+                return;
+            }
+            dbColumns = Collections.unmodifiableMap(updated);
+            schemaVersion++;
+        }
     }
 
-    private void addColumns(List<Map<String, Object>> mapList) throws SQLException, ClassNotFoundException {
-        addColumns(mapList.stream().flatMap(x -> x.keySet().stream()));
+    /**
+     * @return nullable numeric and date columns of the batch that do not accept all of its
+     * values, with the first wider type that does; null if there are none
+     */
+    private static Map<String, String> findNarrowColumns(FlatBatch batch, Map<String, String> columns) {
+        ColumnType[] types = null;
+        for (int i = 0; i < batch.getColumnCount(); i++) {
+            ColumnType type = ColumnType.fromSql(columns.get(batch.getColumnName(i)));
+            if (type.isNullable() && (type.isNumeric() || type.isTemporal())) {
+                if (null == types) {
+                    types = new ColumnType[batch.getColumnCount()];
+                }
+                types[i] = type;
+            }
+        }
+        if (null == types) {
+            return null;
+        }
+        Map<String, String> widened = null;
+        for (int cell = 0; cell < batch.getCellCount(); cell++) {
+            int position = batch.getCellPosition(cell);
+            ColumnType type = types[position];
+            String value = batch.getCellValue(cell);
+            if (null == type || null == value || type.accepts(value)) {
+                continue;
+            }
+            do {
+                type = type.widen();
+            } while (!acceptsAll(batch, position, type));
+            types[position] = type;
+            if (null == widened) {
+                widened = new LinkedHashMap<>();
+            }
+            widened.put(batch.getColumnName(position), type.getSql());
+        }
+        return widened;
     }
 
-    private void addColumns(Stream<String> columns) throws SQLException, ClassNotFoundException {
-        loadColumns(connection);
-        Iterator<String> newColumns = columns
-                .filter(x -> !dbColumns.containsKey(x))
-                .iterator();
-        while (newColumns.hasNext()) {
-            String newColumn = newColumns.next();
-            createColumn(newColumn);
-            dbColumns.put(newColumn, newColumn);
+    private static boolean acceptsAll(FlatBatch batch, int position, ColumnType type) {
+        for (int cell = 0; cell < batch.getCellCount(); cell++) {
+            String value = batch.getCellValue(cell);
+            if (batch.getCellPosition(cell) == position && null != value && !type.accepts(value)) {
+                return false;
+            }
         }
+        return true;
     }
 
-    private static void getListsColumnsAndValues(Map<String, Object> map,
-                                                 String postfix,
-                                                 List<String> columns,
-                                                 List<String> values) {
-        map.forEach((k, v) -> {
-            if(v instanceof List) {
-                columns.add("tag_"+k);
-                List<Map<String, Object>> vGroups = (List<Map<String, Object>>) v;
-                values.add(String.valueOf(vGroups.size()));
-                for(int i = 1; i <= vGroups.size(); i++) {
-                    getListsColumnsAndValues(vGroups.get(i - 1), postfix + "_" + i, columns, values);
+    private static int[] findMissingColumns(FlatBatch batch, Map<String, String> columns) {
+        int[] missing = null;
+        int count = 0;
+        for (int i = 0; i < batch.getColumnCount(); i++) {
+            if (!columns.containsKey(batch.getColumnName(i))) {
+                if (null == missing) {
+                    missing = new int[batch.getColumnCount() - i];
                 }
-            } else {
-                columns.add("tag_" + k + postfix);
-                values.add(v.toString());
+                missing[count++] = i;
+            }
+        }
+        return null == missing ? null : Arrays.copyOf(missing, count);
+    }
+
+    private void createColumns(Map<String, String> newColumns) throws SQLException {
+        TableLayout layout = tableLayout;
+        try (ClickhouseConnectionPool.PooledConnection pooled = pool.acquire();
+             Statement statement = pooled.connection().createStatement()) {
+            StringBuilder query = new StringBuilder("ALTER TABLE ").append(fullTableName);
+            String separator = " ";
+            for (Map.Entry<String, String> column : newColumns.entrySet()) {
+                query.append(separator).append("ADD COLUMN IF NOT EXISTS ")
+                        .append(layout.columnDefinition(column.getKey(), column.getValue()));
+                separator = ", ";
             }
-        });
+            LOG.debug("Query: {}", query);
+            executeDdl(statement, query.toString());
+        }
     }
 
-    private void createColumn(String newColumn) throws SQLException {
-        try(Statement statement = connection.createStatement()) {
-            String query = "ALTER TABLE "+fullTableName+" ADD COLUMN "+newColumn+" String ";
+    private void modifyColumns(Map<String, String> columns) throws SQLException {
+        TableLayout layout = tableLayout;
+        try (ClickhouseConnectionPool.PooledConnection pooled = pool.acquire();
+             Statement statement = pooled.connection().createStatement()) {
+            StringBuilder query = new StringBuilder("ALTER TABLE ").append(fullTableName);
+            String separator = " ";
+            for (Map.Entry<String, String> column : columns.entrySet()) {
+                query.append(separator).append("MODIFY COLUMN ")
+                        .append(layout.columnDefinition(column.getKey(), column.getValue()));
+                separator = ", ";
+            }
             LOG.debug("Query: {}", query);
+            executeDdl(statement, query.toString());
+        }
+    }
+
+    private void executeDdl(Statement statement, String query) throws SQLException {
+        long start = System.nanoTime();
+        try {
             statement.execute(query);
+        } finally {
+            metrics.ddl.record(System.nanoTime() - start);
         }
     }
 
-    private void loadColumns(Connection connection) throws SQLException, ClassNotFoundException {
-        if(null != dbColumns) {
-            return;
+    /**
+     * @return the columns of the table, read now if they are not known or were reset by a
+     * schema error of a concurrent insert
+     */
+    private Map<String, String> loadColumns() throws SQLException {
+        Map<String, String> loaded = dbColumns;
+        if(null != loaded) {
+            return loaded;
         }
-        synchronized (this) {
+        synchronized (schemaLock) {
             if(null != dbColumns) {
-                return;
+                return dbColumns;
             }
-            String query = "SELECT * FROM system.tables WHERE database = '"
-                    + database + "' and name = '" + simpleTableName + "'";
-            try (Statement statement = connection.createStatement()) {
-
-                LOG.debug("Query: {}", query);
-                try (ResultSet rs = statement.executeQuery(query)) {
-                     if (null == rs || !rs.next()) {
-                         createTableIfNotExists();
-                    }
+            Map<String, String> columns = queryColumns();
+            if (columns.isEmpty()) {
+                createTableIfNotExists();
+                columns = queryColumns();
+            }
+            dbColumns = Collections.unmodifiableMap(columns);
+            return dbColumns;
+        }
+    }
+
+    /**
+     * Uses columns read elsewhere, like the schema of a whole database, instead of querying them
+     * on first use. Ignored if the columns are loaded already or the table has none.
+     */
+    void preloadColumns(Map<String, String> columns) {
+        synchronized (schemaLock) {
+            if (null == dbColumns && !columns.isEmpty()) {
+                dbColumns = Collections.unmodifiableMap(new HashMap<>(columns));
+            }
+        }
+    }
+
+    private Map<String, String> queryColumns() throws SQLException {
+        String query = "SELECT name, type FROM system.columns WHERE database = '"
+                + database + "' and table = '" + simpleTableName + "'";
+        Map<String, String> columns = new HashMap<>();
+        try (ClickhouseConnectionPool.PooledConnection pooled = pool.acquire();
+             Statement statement = pooled.connection().createStatement()) {
+            LOG.debug("Query: {}", query);
+            long start = System.nanoTime();
+            try (ResultSet rs = statement.executeQuery(query)) {
+                while (null != rs && rs.next()) {
+                    columns.put(rs.getString("name"), rs.getString("type"));
                 }
+            } finally {
+                metrics.ddl.record(System.nanoTime() - start);
+            }
+        }
+        return columns;
+    }
 
-                Map<String, String> columns = new HashMap<>();
+    /**
+     * Reads back every row that matches {@code where} with all tags of the table.
+     */
+    public RowCursor select(String where) throws SQLException {
+        return select(null, where);
+    }
 
-                LOG.debug("Query: {}", query);
-                try (ResultSet rs = statement.executeQuery(query)) {
-                    while (rs.next()) {
-                        String val = rs.getString("name");
-                        String type = rs.getString("type");
-                        columns.put(val, type);
-                    }
+    /**
+     * Reads back rows as the nested maps that were inserted, selecting only the columns of the
+     * given top-level tags. Groups are read with the {@link #setRowLayout row layout}; columns of
+     * tags it does not know are read as values.
+     *
+     * @param tags top-level tags, null for all
+     * @param where SQL condition, null for all rows
+     */
+    public RowCursor select(Collection<String> tags, String where) throws SQLException {
+        Map<String, String> tableColumns = loadColumns();
+        RowLayout layout = getRowLayout();
+        boolean arrayGroups = queryFactory.isArrayGroups();
+        String columnPrefix = queryFactory.getColumnPrefix();
+        List<String> columns;
+        if (null != tags) {
+            layout = layout.project(tags);
+            columns = RowCursor.columns(layout, columnPrefix, tableColumns.keySet(), arrayGroups);
+        } else {
+            columns = RowCursor.columns(layout, columnPrefix, tableColumns.keySet(), arrayGroups);
+            RowLayout.Builder rest = RowLayout.builder();
+            for (String column : new TreeSet<>(tableColumns.keySet())) {
+                if (column.startsWith(columnPrefix) && !columns.contains(column)) {
+                    rest.tag(column.substring(columnPrefix.length()));
+                    columns.add(column);
                 }
-                dbColumns = columns;
             }
+            layout = layout.merge(rest.build());
+        }
+        String query = "SELECT " + (columns.isEmpty() ? "1" : String.join(", ", columns)) + " FROM " + fullTableName
+                + (null == where || where.isEmpty() ? "" : " WHERE " + where);
+        ClickhouseConnectionPool.PooledConnection pooled = pool.acquire();
+        Statement statement = null;
+        try {
+            statement = pooled.connection().createStatement();
+            statement.setFetchSize(fetchSize);
+            LOG.debug("Query: {}", query);
+            ResultSet rs = statement.executeQuery(query);
+            return new RowCursor(pooled, statement, rs, columnPrefix, layout, arrayGroups, columns);
+        } catch (SQLException ex) {
+            if (null != statement) {
+                statement.close();
+            }
+            pooled.close();
+            throw ex;
         }
     }
 
     public void createTableIfNotExists() throws SQLException {
-        Statement statement = connection.createStatement();
-        String query = "CREATE TABLE IF NOT EXISTS " + fullTableName +
-                " ( date Date DEFAULT today() ) ENGINE = MergeTree(date, (date), 8192)";
-        LOG.debug("Query: {}", query);
-        statement.execute(query);
+        try (ClickhouseConnectionPool.PooledConnection pooled = pool.acquire();
+             Statement statement = pooled.connection().createStatement()) {
+            String query = tableLayout.createTableSql(fullTableName);
+            LOG.debug("Query: {}", query);
+            executeDdl(statement, query);
+        }
     }
 
     public void dropTableIfExists() {
         String query = "";
-        try (Statement statement = connection.createStatement()) {
+        try (ClickhouseConnectionPool.PooledConnection pooled = pool.acquire();
+             Statement statement = pooled.connection().createStatement()) {
             query = "DROP TABLE IF EXISTS " + fullTableName;
             LOG.debug("Query: {}", query);
-            statement.execute(query);
+            executeDdl(statement, query);
         } catch (SQLException ex) {
             LOG.error("could not execute " + query, ex);
         }
-        dbColumns = null;
+        resetColumns();
+    }
+
+    /**
+     * Enables typed columns: new columns get the type inferred from the batch that introduces
+     * them instead of String. Null switches back to String columns.
+     */
+    public void setTypeInference(ColumnTypeInference typeInference) {
+        this.typeInference = typeInference;
+    }
+
+    public ColumnTypeInference getTypeInference() {
+        return typeInference;
+    }
+
+    /**
+     * @return number of values sent as they are because their column type does not accept them
+     */
+    public long getTypeConflicts() {
+        return typeConflicts.sum();
+    }
+
+    /**
+     * @return number of times a column was widened to a type that accepts a new value
+     */
+    public long getWidenedColumns() {
+        return widenedColumns.sum();
+    }
+
+    /**
+     * Records the metrics of this table into the registry instead of a private in-memory one.
+     */
+    public void setMetricsRegistry(MetricsRegistry registry) {
+        IngestMetrics metrics = new IngestMetrics(registry, fullTableName);
+        metrics.setBatchSizeController(batchSizeController);
+        this.metrics = metrics;
+    }
+
+    public IngestMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Retries of inserts that failed with a transient error; by default failed inserts are not
+     * retried, apart from a few retries after the schema changed outside the helper.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Sends a content hash of every batch as {@code insert_deduplication_token}, so a retried or
+     * replayed batch that the server has already committed is discarded. The server deduplicates
+     * inserts into replicated tables, and into other MergeTree tables with
+     * {@code non_replicated_deduplication_window} set. Not used by prepared inserts. Statements
+     * of a batch that is split by length get their number appended; retries resume at the failed
+     * statement, so it is sent with its earlier token and the ones before it are not sent again.
+     */
+    public void setDeduplicate(boolean deduplicate) {
+        this.deduplicate = deduplicate;
+    }
+
+    public boolean isDeduplicate() {
+        return deduplicate;
+    }
+
+    /**
+     * When set, a batch that fails with a parse or type error is split in halves until the
+     * rejected rows are isolated; they go to the sink and the other rows are inserted. Other
+     * errors fail the whole batch.
+     */
+    public void setDeadLetterSink(DeadLetterSink deadLetterSink) {
+        this.deadLetterSink = deadLetterSink;
+    }
+
+    /**
+     * Controller fed with the size and latency of every insert statement batch, for a
+     * {@link BatchingWriter} that sizes its batches by it.
+     */
+    public void setBatchSizeController(BatchSizeController batchSizeController) {
+        this.batchSizeController = batchSizeController;
+        metrics.setBatchSizeController(batchSizeController);
+    }
+
+    public BatchSizeController getBatchSizeController() {
+        return batchSizeController;
+    }
+
+    /**
+     * Sends inserts over the HTTP interface instead of JDBC, in either insert mode; columns are
+     * still created and loaded over JDBC. Null to go back to JDBC.
+     */
+    public void setHttpTransport(HttpInsertTransport httpTransport) {
+        this.httpTransport = httpTransport;
+    }
+
+    public HttpInsertTransport getHttpTransport() {
+        return httpTransport;
+    }
+
+    /**
+     * Layout of the rows for {@link #select}. By default it is learned from the rows inserted
+     * through this helper, so a reader in another process should set it. The learned layout
+     * outlives the path cache: tries the cache drops are merged into it first.
+     */
+    public void setRowLayout(RowLayout rowLayout) {
+        this.rowLayout = rowLayout;
+    }
+
+    public RowLayout getRowLayout() {
+        RowLayout layout = rowLayout;
+        if (null != layout) {
+            return layout;
+        }
+        return evictedLayout.merge(RowLayout.of(queryFactory.getPathCache().root()));
+    }
+
+    /**
+     * Number of rows the driver fetches at a time when reading back.
+     */
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * Engine clauses and predefined columns of the table when the helper creates it, and
+     * codecs of the columns it adds.
+     */
+    public void setTableLayout(TableLayout tableLayout) {
+        this.tableLayout = tableLayout;
+    }
+
+    public TableLayout getTableLayout() {
+        return tableLayout;
+    }
+
+    /**
+     * Enables sparse inserts: every set of present columns is sent as its own insert, so
+     * missing columns get their table default instead of an empty string. Shapes with fewer
+     * than {@code minShapeRows} rows are combined into one padded insert to avoid many tiny
+     * parts. Zero sends every batch as one padded insert.
+     */
+    public void setSparseMinShapeRows(int minShapeRows) {
+        this.sparseMinShapeRows = minShapeRows;
+    }
+
+    public int getSparseMinShapeRows() {
+        return sparseMinShapeRows;
+    }
+
+    public void setInsertMode(InsertMode insertMode) {
+        this.insertMode = insertMode;
+    }
+
+    public InsertMode getInsertMode() {
+        return insertMode;
+    }
+
+    /**
+     * Number of prepared statements kept per connection in {@link InsertMode#PREPARED} mode;
+     * applies to connections the helper has not used yet.
+     */
+    public void setMaxPreparedStatements(int maxPreparedStatements) {
+        this.maxPreparedStatements = maxPreparedStatements;
+    }
+
+    public ClickhouseConnectionPool getConnectionPool() {
+        return pool;
+    }
+
+    /**
+     * Batches that fail with a transient error, see {@link RetryPolicy#isTransient(SQLException)},
+     * are appended to the spool instead of being dropped. Other failures would fail again on
+     * replay and are only logged. Start {@link #startReplay(long)} to insert them again; spooled
+     * batches that then fail with an error that is not transient go to the spool's dead letters.
+     */
+    public void setSpool(WriteAheadSpool spool) {
+        this.spool = spool;
+    }
+
+    public WriteAheadSpool getSpool() {
+        return spool;
+    }
+
+    public void startReplay(long intervalMillis) {
+        spool.startReplayer(queryFactory::getDictionary, this::insertBatchOrThrow, intervalMillis);
+    }
+
+    public QueryFactory getQueryFactory() {
+        return queryFactory;
     }
 
     public String getDatabase() {
@@ -0,0 +1,77 @@
+package com.oz.db.clickhouse;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns every flattened column name a stable int index. Indexes are never reused, so
+ * they can address per-column arrays for the lifetime of the dictionary. The
+ * {@link ColumnPathCache} starts a new dictionary when it drops its trie, which bounds it.
+ * Lookups of known names are lock free, new names are added under a lock.
+ * <p>
+ * A column may be registered with an array depth: the number of {@code Array} levels its
+ * values are nested in when repeating groups are stored as arrays.
+ */
+public class ColumnDictionary {
+
+    private final ConcurrentHashMap<String, Integer> indexes = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[64];
+    private volatile int[] arrayDepths = new int[64];
+    private volatile int size;
+
+    public int indexOf(String name) {
+        return indexOf(name, 0);
+    }
+
+    /**
+     * @param arrayDepth used only when the name is new
+     */
+    public int indexOf(String name, int arrayDepth) {
+        Integer index = indexes.get(name);
+        if (null != index) {
+            return index;
+        }
+        return add(name, arrayDepth);
+    }
+
+    /**
+     * @return the index of the column or -1 if the name has never been seen
+     */
+    public int find(String name) {
+        Integer index = indexes.get(name);
+        return null == index ? -1 : index;
+    }
+
+    private synchronized int add(String name, int arrayDepth) {
+        Integer index = indexes.get(name);
+        if (null != index) {
+            return index;
+        }
+        int newIndex = size;
+        String[] current = names;
+        int[] depths = arrayDepths;
+        if (newIndex == current.length) {
+            current = Arrays.copyOf(current, current.length * 2);
+            depths = Arrays.copyOf(depths, current.length);
+        }
+        current[newIndex] = name;
+        depths[newIndex] = arrayDepth;
+        arrayDepths = depths;
+        names = current;
+        size = newIndex + 1;
+        indexes.put(name, newIndex);
+        return newIndex;
+    }
+
+    public String name(int index) {
+        return names[index];
+    }
+
+    public int arrayDepth(int index) {
+        return arrayDepths[index];
+    }
+
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,227 @@
+package com.oz.db.clickhouse;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Trie of flattened column paths. A {@link Scope} stands for one postfix ({@code ""} at the top
+ * level, {@code "_1_2"} inside the second element of the first group element) and maps a key to
+ * its {@link Column}; a column maps a group element number to the nested scope. Names are built
+ * once per path, so walking known paths does not allocate.
+ * <p>
+ * A column can also map to one scope for all elements of its group, {@link Column#elements()},
+ * whose columns are named {@code col_2.col_21} and hold one array value per element.
+ * <p>
+ * The number of cached columns is bounded; when the bound is exceeded the trie is dropped together
+ * with its {@link ColumnDictionary} and both are rebuilt on demand. A batch keeps the dictionary it
+ * was flattened with, so its column indexes stay valid; {@link #root(ColumnDictionary)} walks paths
+ * into such a dictionary.
+ */
+public class ColumnPathCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 100_000;
+
+    private static final Scope[] NO_GROUPS = new Scope[0];
+
+    private final String columnPrefix;
+    private final int maxEntries;
+    private final AtomicInteger entries = new AtomicInteger();
+
+    private volatile Scope root;
+    private volatile Consumer<Scope> evictionListener;
+
+    public ColumnPathCache(String columnPrefix) {
+        this(columnPrefix, DEFAULT_MAX_ENTRIES);
+    }
+
+    public ColumnPathCache(String columnPrefix, int maxEntries) {
+        this.columnPrefix = columnPrefix;
+        this.maxEntries = maxEntries;
+        this.root = new Scope(new ColumnDictionary(), "", "", 0);
+    }
+
+    public Scope root() {
+        return root;
+    }
+
+    /**
+     * @return the root if its columns are indexed by the dictionary, otherwise a new root over
+     * the dictionary that is not cached, for a batch started before the trie was dropped
+     */
+    public Scope root(ColumnDictionary dictionary) {
+        Scope current = root;
+        return current.dictionary == dictionary ? current : new Scope(dictionary, "", "", 0);
+    }
+
+    /**
+     * @return dictionary of the current trie
+     */
+    public ColumnDictionary getDictionary() {
+        return root.dictionary;
+    }
+
+    public int size() {
+        return entries.get();
+    }
+
+    /**
+     * @param evictionListener gets the root of the trie that is about to be dropped
+     */
+    public void setEvictionListener(Consumer<Scope> evictionListener) {
+        this.evictionListener = evictionListener;
+    }
+
+    private void onNewEntry() {
+        if (entries.incrementAndGet() > maxEntries) {
+            synchronized (this) {
+                if (entries.get() > maxEntries) {
+                    Consumer<Scope> listener = evictionListener;
+                    if (null != listener) {
+                        listener.accept(root);
+                    }
+                    root = new Scope(new ColumnDictionary(), "", "", 0);
+                    entries.set(0);
+                }
+            }
+        }
+    }
+
+    public final class Scope {
+
+        private final ColumnDictionary dictionary;
+        private final String namePrefix;
+        private final String postfix;
+        private final int arrayDepth;
+        private final ConcurrentHashMap<String, Column> columns = new ConcurrentHashMap<>();
+
+        private Scope(ColumnDictionary dictionary, String namePrefix, String postfix, int arrayDepth) {
+            this.dictionary = dictionary;
+            this.namePrefix = namePrefix;
+            this.postfix = postfix;
+            this.arrayDepth = arrayDepth;
+        }
+
+        public Column column(String key) {
+            Column column = columns.get(key);
+            if (null == column) {
+                column = addColumn(key);
+            }
+            return column;
+        }
+
+        private Column addColumn(String key) {
+            Column column = new Column(dictionary, namePrefix + columnPrefix + key + postfix, postfix, arrayDepth);
+            Column existing = columns.putIfAbsent(key, column);
+            if (null != existing) {
+                return existing;
+            }
+            onNewEntry();
+            return column;
+        }
+
+        Map<String, Column> getColumns() {
+            return Collections.unmodifiableMap(columns);
+        }
+
+        public String getPostfix() {
+            return postfix;
+        }
+
+        public int getArrayDepth() {
+            return arrayDepth;
+        }
+
+        public ColumnDictionary getDictionary() {
+            return dictionary;
+        }
+    }
+
+    public final class Column {
+
+        private final ColumnDictionary dictionary;
+        private final String name;
+        private final int index;
+        private final String postfix;
+        private final int arrayDepth;
+        private volatile Scope[] groups = NO_GROUPS;
+        private volatile Scope elements;
+
+        private Column(ColumnDictionary dictionary, String name, String postfix, int arrayDepth) {
+            this.dictionary = dictionary;
+            this.name = name;
+            this.index = dictionary.indexOf(name, arrayDepth);
+            this.postfix = postfix;
+            this.arrayDepth = arrayDepth;
+        }
+
+        /**
+         * @return scope of the columns that hold the group's values as arrays
+         */
+        public Scope elements() {
+            Scope current = elements;
+            if (null == current) {
+                synchronized (this) {
+                    current = elements;
+                    if (null == current) {
+                        current = new Scope(dictionary, name + ".", "", arrayDepth + 1);
+                        elements = current;
+                    }
+                }
+            }
+            return current;
+        }
+
+        /**
+         * @param number element number in the group, starting with 1
+         */
+        public Scope group(int number) {
+            Scope[] current = groups;
+            if (number < current.length && null != current[number]) {
+                return current[number];
+            }
+            return addGroup(number);
+        }
+
+        private synchronized Scope addGroup(int number) {
+            Scope[] current = groups;
+            if (number >= current.length) {
+                current = Arrays.copyOf(current, Math.max(number + 1, current.length * 2));
+            }
+            if (null == current[number]) {
+                current[number] = new Scope(dictionary, "", postfix + "_" + number, arrayDepth);
+            }
+            groups = current;
+            return current[number];
+        }
+
+        /**
+         * @return scopes of the group elements seen so far, some may be null
+         */
+        Scope[] getGroups() {
+            return groups;
+        }
+
+        /**
+         * @return scope of the array columns, or null if it was never used
+         */
+        Scope getElements() {
+            return elements;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public int getArrayDepth() {
+            return arrayDepth;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package com.oz.db.clickhouse;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * How values of a column are written into an insert. Types created by this library map to one
+ * constant each; other server types are mapped by {@link #fromSql(String)} to the constant with
+ * the same literal syntax.
+ */
+public enum ColumnType {
+
+    STRING("String", false, false, false),
+    NULLABLE_STRING("Nullable(String)", false, false, true),
+    LOW_CARDINALITY("LowCardinality(String)", false, false, false),
+    INT64("Int64", true, false, false),
+    NULLABLE_INT64("Nullable(Int64)", true, false, true),
+    UINT64("UInt64", true, false, false),
+    NULLABLE_UINT64("Nullable(UInt64)", true, false, true),
+    FLOAT64("Float64", true, false, false),
+    NULLABLE_FLOAT64("Nullable(Float64)", true, false, true),
+    DATETIME64("DateTime64(3)", false, true, false),
+    NULLABLE_DATETIME64("Nullable(DateTime64(3))", false, true, true),
+    /** any {@code Array}; values are complete array literals and are written as they are */
+    ARRAY("Array(String)", false, false, false);
+
+    private static final Map<String, ColumnType> PARSED = new ConcurrentHashMap<>();
+
+    private static final String MAX_INT64 = "9223372036854775807";
+    private static final String MIN_INT64 = "9223372036854775808";
+    private static final String MAX_UINT64 = "18446744073709551615";
+
+    private final String sql;
+    private final boolean numeric;
+    private final boolean temporal;
+    private final boolean nullable;
+
+    ColumnType(String sql, boolean numeric, boolean temporal, boolean nullable) {
+        this.sql = sql;
+        this.numeric = numeric;
+        this.temporal = temporal;
+        this.nullable = nullable;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    public boolean isNumeric() {
+        return numeric;
+    }
+
+    public boolean isTemporal() {
+        return temporal;
+    }
+
+    public boolean isNullable() {
+        return nullable;
+    }
+
+    public boolean isArray() {
+        return this == ARRAY;
+    }
+
+    /**
+     * @return the next wider type along {@code UInt64}, {@code Int64}, {@code Float64},
+     * {@code String} with the same nullability, null for string and array types; date and time
+     * types widen to {@code String}
+     */
+    public ColumnType widen() {
+        switch (this) {
+            case UINT64:
+                return INT64;
+            case NULLABLE_UINT64:
+                return NULLABLE_INT64;
+            case INT64:
+                return FLOAT64;
+            case NULLABLE_INT64:
+                return NULLABLE_FLOAT64;
+            case FLOAT64:
+            case DATETIME64:
+                return STRING;
+            case NULLABLE_FLOAT64:
+            case NULLABLE_DATETIME64:
+                return NULLABLE_STRING;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return {@code String} nested in {@code depth} levels of {@code Array}
+     */
+    public static String arraySql(int depth) {
+        StringBuilder sql = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            sql.append("Array(");
+        }
+        sql.append("String");
+        for (int i = 0; i < depth; i++) {
+            sql.append(')');
+        }
+        return sql.toString();
+    }
+
+    public static ColumnType fromSql(String type) {
+        if (null == type) {
+            return STRING;
+        }
+        ColumnType parsed = PARSED.get(type);
+        if (null == parsed) {
+            parsed = parse(type);
+            PARSED.put(type, parsed);
+        }
+        return parsed;
+    }
+
+    private static ColumnType parse(String type) {
+        String t = type.trim();
+        boolean nullable = false;
+        if (t.startsWith("Array(")) {
+            return ARRAY;
+        }
+        if (t.startsWith("LowCardinality(")) {
+            t = t.substring("LowCardinality(".length(), t.length() - 1);
+        }
+        if (t.startsWith("Nullable(")) {
+            nullable = true;
+            t = t.substring("Nullable(".length(), t.length() - 1);
+        }
+        if (t.startsWith("UInt")) {
+            return nullable ? NULLABLE_UINT64 : UINT64;
+        } else if (t.startsWith("Int")) {
+            return nullable ? NULLABLE_INT64 : INT64;
+        } else if (t.startsWith("Float") || t.startsWith("Decimal")) {
+            return nullable ? NULLABLE_FLOAT64 : FLOAT64;
+        } else if (t.startsWith("DateTime")) {
+            return nullable ? NULLABLE_DATETIME64 : DATETIME64;
+        }
+        return nullable ? NULLABLE_STRING : STRING;
+    }
+
+    /**
+     * @return true if the value can be written as a literal of this type
+     */
+    public boolean accepts(CharSequence value) {
+        switch (this) {
+            case INT64:
+            case NULLABLE_INT64:
+                return isInteger(value, true);
+            case UINT64:
+            case NULLABLE_UINT64:
+                return isInteger(value, false);
+            case FLOAT64:
+            case NULLABLE_FLOAT64:
+                return isNumber(value);
+            case DATETIME64:
+            case NULLABLE_DATETIME64:
+                return isDateTime(value);
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Only canonical integers are accepted: no sign for positive values and no leading zeros,
+     * so codes like {@code 007} stay strings.
+     */
+    static boolean isInteger(CharSequence value, boolean signed) {
+        int length = value.length();
+        int start = 0;
+        if (length > 0 && value.charAt(0) == '-') {
+            if (!signed) {
+                return false;
+            }
+            start = 1;
+        }
+        int digits = length - start;
+        if (digits == 0 || (digits > 1 && value.charAt(start) == '0')) {
+            return false;
+        }
+        for (int i = start; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        String max = !signed ? MAX_UINT64 : start == 0 ? MAX_INT64 : MIN_INT64;
+        if (digits != max.length()) {
+            return digits < max.length();
+        }
+        for (int i = 0; i < digits; i++) {
+            char c = value.charAt(start + i);
+            if (c != max.charAt(i)) {
+                return c < max.charAt(i);
+            }
+        }
+        return true;
+    }
+
+    static boolean isNumber(CharSequence value) {
+        int length = value.length();
+        int i = 0;
+        if (i < length && value.charAt(i) == '-') {
+            i++;
+        }
+        int intStart = i;
+        while (i < length && isDigit(value.charAt(i))) {
+            i++;
+        }
+        int intDigits = i - intStart;
+        if (intDigits == 0 || (intDigits > 1 && value.charAt(intStart) == '0')) {
+            return false;
+        }
+        if (i < length && value.charAt(i) == '.') {
+            int fractionStart = ++i;
+            while (i < length && isDigit(value.charAt(i))) {
+                i++;
+            }
+            if (i == fractionStart) {
+                return false;
+            }
+        }
+        if (i < length && (value.charAt(i) == 'e' || value.charAt(i) == 'E')) {
+            i++;
+            if (i < length && (value.charAt(i) == '-' || value.charAt(i) == '+')) {
+                i++;
+            }
+            int exponentStart = i;
+            while (i < length && isDigit(value.charAt(i))) {
+                i++;
+            }
+            if (i == exponentStart) {
+                return false;
+            }
+        }
+        return i == length;
+    }
+
+    /**
+     * Accepts {@code yyyy-MM-dd HH:mm:ss} with an optional {@code T} separator and fraction.
+     */
+    static boolean isDateTime(CharSequence value) {
+        int length = value.length();
+        if (length < 19) {
+            return false;
+        }
+        for (int i = 0; i < 19; i++) {
+            char c = value.charAt(i);
+            boolean ok;
+            switch (i) {
+                case 4:
+                case 7:
+                    ok = c == '-';
+                    break;
+                case 10:
+                    ok = c == ' ' || c == 'T';
+                    break;
+                case 13:
+                case 16:
+                    ok = c == ':';
+                    break;
+                default:
+                    ok = isDigit(c);
+            }
+            if (!ok) {
+                return false;
+            }
+        }
+        if (length == 19) {
+            return true;
+        }
+        if (value.charAt(19) != '.' || length == 20 || length > 29) {
+            return false;
+        }
+        for (int i = 20; i < length; i++) {
+            if (!isDigit(value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
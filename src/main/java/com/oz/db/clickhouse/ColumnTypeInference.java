@@ -0,0 +1,92 @@
+package com.oz.db.clickhouse;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Picks the type of new columns from the values of the batch that introduces them.
+ * <p>
+ * Up to {@code sampleSize} values per column are checked. A column becomes
+ * {@code Nullable(UInt64)}, {@code Nullable(Int64)}, {@code Nullable(Float64)} or
+ * {@code Nullable(DateTime64(3))} if every sampled value is a canonical literal of that type,
+ * checked in this order. Otherwise it is {@code LowCardinality(String)} when there are at least
+ * {@code minLowCardinalitySamples} samples with at most {@code maxLowCardinalityRatio} of them
+ * distinct, and {@code String} in all other cases. Typed columns are always nullable so that
+ * missing values are stored as NULL and the helper can widen a column when a later value does
+ * not fit, see {@link ClickhouseTableHelper#ensureColumns}.
+ */
+public class ColumnTypeInference {
+
+    private final int sampleSize;
+    private final int minLowCardinalitySamples;
+    private final double maxLowCardinalityRatio;
+
+    public ColumnTypeInference() {
+        this(1000, 50, 0.1);
+    }
+
+    public ColumnTypeInference(int sampleSize, int minLowCardinalitySamples, double maxLowCardinalityRatio) {
+        this.sampleSize = sampleSize;
+        this.minLowCardinalitySamples = minLowCardinalitySamples;
+        this.maxLowCardinalityRatio = maxLowCardinalityRatio;
+    }
+
+    /**
+     * @param positions batch positions of the columns to infer
+     * @return types in the order of {@code positions}
+     */
+    public ColumnType[] infer(FlatBatch batch, int[] positions) {
+        Sample[] samples = new Sample[batch.getColumnCount()];
+        for (int position : positions) {
+            samples[position] = new Sample();
+        }
+        for (int cell = 0; cell < batch.getCellCount(); cell++) {
+            Sample sample = samples[batch.getCellPosition(cell)];
+            if (null != sample && sample.count < sampleSize) {
+                sample.add(batch.getCellValue(cell));
+            }
+        }
+        ColumnType[] types = new ColumnType[positions.length];
+        for (int i = 0; i < positions.length; i++) {
+            types[i] = samples[positions[i]].type();
+        }
+        return types;
+    }
+
+    private class Sample {
+        private int count;
+        private boolean unsigned = true;
+        private boolean signed = true;
+        private boolean number = true;
+        private boolean dateTime = true;
+        private final Set<String> distinct = new HashSet<>();
+
+        private void add(String value) {
+            count++;
+            unsigned = unsigned && ColumnType.isInteger(value, false);
+            signed = signed && ColumnType.isInteger(value, true);
+            number = number && ColumnType.isNumber(value);
+            dateTime = dateTime && ColumnType.isDateTime(value);
+            if (distinct.size() <= sampleSize * maxLowCardinalityRatio) {
+                distinct.add(value);
+            }
+        }
+
+        private ColumnType type() {
+            if (count == 0) {
+                return ColumnType.STRING;
+            } else if (unsigned) {
+                return ColumnType.NULLABLE_UINT64;
+            } else if (signed) {
+                return ColumnType.NULLABLE_INT64;
+            } else if (number) {
+                return ColumnType.NULLABLE_FLOAT64;
+            } else if (dateTime) {
+                return ColumnType.NULLABLE_DATETIME64;
+            } else if (count >= minLowCardinalitySamples && distinct.size() <= count * maxLowCardinalityRatio) {
+                return ColumnType.LOW_CARDINALITY;
+            }
+            return ColumnType.STRING;
+        }
+    }
+}
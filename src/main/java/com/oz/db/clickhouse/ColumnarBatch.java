@@ -0,0 +1,564 @@
+package com.oz.db.clickhouse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.*;
+
+/**
+ * Column-major copy of a {@link FlatBatch} typed by the table schema. Absent and null values are
+ * marked in a bitmap per column. Integer and float columns are arrays of {@code long} and
+ * {@code double}; string and date columns are a dictionary of their distinct values and a code
+ * per row, so repeated values like symbols or venues are kept once.
+ * <p>
+ * The batch is written in ClickHouse's binary formats, {@code INSERT INTO t (...) FORMAT Native}
+ * or {@code RowBinary}. Every distinct string is encoded once; in {@code Native},
+ * {@code LowCardinality} columns are sent as their dictionary and indexes, so their size depends
+ * on the distinct values rather than on the rows. Supported types are {@code String},
+ * {@code (U)Int8..64}, {@code Float32/64}, {@code Date}, {@code DateTime}, {@code DateTime64},
+ * each also {@code Nullable} and {@code LowCardinality}; {@link #supports(String)} tells if a
+ * type is one of them. A value that does not fit its type cannot be sent in a binary format, so
+ * {@link #of} rejects the batch; sent as {@code Values}, the server rejects only its row. Date
+ * and time text is read in the given zone, UTC by default.
+ */
+public class ColumnarBatch {
+
+    public enum Format {
+        NATIVE("Native"),
+        ROW_BINARY("RowBinary");
+
+        private final String sql;
+
+        Format(String sql) {
+            this.sql = sql;
+        }
+
+        public String getSql() {
+            return sql;
+        }
+    }
+
+    private final int rowCount;
+    private final Column[] columns;
+
+    private ColumnarBatch(int rowCount, Column[] columns) {
+        this.rowCount = rowCount;
+        this.columns = columns;
+    }
+
+    public static ColumnarBatch of(FlatBatch batch, Map<String, String> columnTypes) {
+        return of(batch, columnTypes, ZoneOffset.UTC);
+    }
+
+    /**
+     * @param columnTypes SQL type of each column; columns that are not there are {@code String}
+     * @throws IllegalArgumentException if a column type is not supported or a value does not fit
+     * its column type
+     */
+    public static ColumnarBatch of(FlatBatch batch, Map<String, String> columnTypes, ZoneId zone) {
+        int rows = batch.getRowCount();
+        Column[] columns = new Column[batch.getColumnCount()];
+        for (int i = 0; i < columns.length; i++) {
+            String name = batch.getColumnName(i);
+            columns[i] = new Column(name, columnTypes.getOrDefault(name, "String"), rows, zone);
+        }
+        for (int row = 0; row < rows; row++) {
+            for (int cell = batch.getRowStart(row); cell < batch.getRowStart(row + 1); cell++) {
+                columns[batch.getCellPosition(cell)].set(row, batch.getCellValue(cell));
+            }
+        }
+        for (Column column : columns) {
+            column.index = null;
+        }
+        return new ColumnarBatch(rows, columns);
+    }
+
+    /**
+     * @return true if columns of the SQL type can be written in the binary formats
+     */
+    public static boolean supports(String sqlType) {
+        try {
+            BinaryType.parse(sqlType, ZoneOffset.UTC);
+            return true;
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * @return {@code INSERT INTO table (columns) FORMAT format}, to be followed by the data
+     */
+    public String insertSql(String tableName, Format format) {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(tableName).append(" (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i > 0 ? ", " : "").append(columns[i].name);
+        }
+        return sql.append(") FORMAT ").append(format.getSql()).toString();
+    }
+
+    public void write(Format format, OutputStream out) throws IOException {
+        if (format == Format.NATIVE) {
+            writeNative(out);
+        } else {
+            writeRowBinary(out);
+        }
+    }
+
+    public void writeRowBinary(OutputStream out) throws IOException {
+        writeRowBinary(out, 0, rowCount);
+    }
+
+    /**
+     * Writes the rows from {@code from} to {@code to}, exclusive.
+     */
+    public void writeRowBinary(OutputStream out, int from, int to) throws IOException {
+        BinaryOutput output = new BinaryOutput(out);
+        for (Column column : columns) {
+            column.prepareWrite();
+        }
+        for (int row = from; row < to; row++) {
+            for (Column column : columns) {
+                boolean isNull = column.isNull(row);
+                if (column.type.nullable) {
+                    output.writeByte(isNull ? 1 : 0);
+                    if (isNull) {
+                        continue;
+                    }
+                }
+                column.writeValue(output, row, isNull);
+            }
+        }
+        output.flush();
+    }
+
+    /**
+     * Writes one block in the {@code Native} format as the HTTP interface reads it, without
+     * block info.
+     */
+    public void writeNative(OutputStream out) throws IOException {
+        writeNative(out, 0, rowCount);
+    }
+
+    /**
+     * Writes the rows from {@code from} to {@code to}, exclusive, as one {@code Native} block;
+     * a {@code LowCardinality} column carries only the keys used in the block.
+     */
+    public void writeNative(OutputStream out, int from, int to) throws IOException {
+        BinaryOutput output = new BinaryOutput(out);
+        output.writeVarInt(columns.length);
+        output.writeVarInt(to - from);
+        for (Column column : columns) {
+            column.prepareWrite();
+            output.writeString(column.name);
+            output.writeString(column.sqlType);
+            if (column.type.lowCardinality) {
+                column.writeLowCardinality(output, from, to);
+                continue;
+            }
+            if (column.type.nullable) {
+                for (int row = from; row < to; row++) {
+                    output.writeByte(column.isNull(row) ? 1 : 0);
+                }
+            }
+            for (int row = from; row < to; row++) {
+                column.writeValue(output, row, column.isNull(row));
+            }
+        }
+        output.flush();
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    public String getColumnName(int column) {
+        return columns[column].name;
+    }
+
+    public String getSqlType(int column) {
+        return columns[column].sqlType;
+    }
+
+    public boolean isNull(int column, int row) {
+        return columns[column].isNull(row);
+    }
+
+    /**
+     * @return the value as text, null if it is absent or did not fit the type
+     */
+    public String getValue(int column, int row) {
+        return columns[column].getValue(row);
+    }
+
+    /**
+     * @return number of distinct values of a dictionary encoded column, -1 for numeric columns
+     */
+    public int getDistinctCount(int column) {
+        Column c = columns[column];
+        return null == c.dictionary ? -1 : c.dictionarySize;
+    }
+
+    private enum Kind {
+        STRING, INT, UINT, FLOAT, DATE, DATETIME, DATETIME64
+    }
+
+    private static final class BinaryType {
+        boolean lowCardinality;
+        boolean nullable;
+        Kind kind;
+        int width;
+        int scale;
+        ZoneId zone;
+
+        static BinaryType parse(String sqlType, ZoneId defaultZone) {
+            BinaryType type = new BinaryType();
+            String t = sqlType.trim();
+            if (t.startsWith("LowCardinality(")) {
+                type.lowCardinality = true;
+                t = t.substring("LowCardinality(".length(), t.length() - 1);
+            }
+            if (t.startsWith("Nullable(")) {
+                type.nullable = true;
+                t = t.substring("Nullable(".length(), t.length() - 1);
+            }
+            type.zone = defaultZone;
+            if (t.equals("String")) {
+                type.kind = Kind.STRING;
+            } else if (t.matches("U?Int(8|16|32|64)")) {
+                type.kind = t.startsWith("U") ? Kind.UINT : Kind.INT;
+                type.width = Integer.parseInt(t.substring(t.indexOf('t') + 1)) / 8;
+            } else if (t.equals("Float32") || t.equals("Float64")) {
+                type.kind = Kind.FLOAT;
+                type.width = t.equals("Float32") ? 4 : 8;
+            } else if (t.equals("Date")) {
+                type.kind = Kind.DATE;
+            } else if (t.equals("DateTime") || t.startsWith("DateTime(")) {
+                type.kind = Kind.DATETIME;
+                type.zone = zone(t, "DateTime(".length(), defaultZone);
+            } else if (t.startsWith("DateTime64(")) {
+                type.kind = Kind.DATETIME64;
+                String arguments = t.substring("DateTime64(".length(), t.length() - 1);
+                int comma = arguments.indexOf(',');
+                type.scale = Integer.parseInt((comma < 0 ? arguments : arguments.substring(0, comma)).trim());
+                type.zone = comma < 0 ? defaultZone : zone(arguments, comma + 1, defaultZone);
+            } else {
+                throw new IllegalArgumentException("Type is not supported in binary formats: " + sqlType);
+            }
+            if (type.lowCardinality && type.kind != Kind.STRING) {
+                throw new IllegalArgumentException("Type is not supported in binary formats: " + sqlType);
+            }
+            return type;
+        }
+
+        private static ZoneId zone(String arguments, int start, ZoneId defaultZone) {
+            int open = arguments.indexOf('\'', start);
+            if (open < 0) {
+                return defaultZone;
+            }
+            return ZoneId.of(arguments.substring(open + 1, arguments.indexOf('\'', open + 1)));
+        }
+    }
+
+    private static final class Column {
+        final String name;
+        final String sqlType;
+        final BinaryType type;
+        final long[] nulls;
+
+        long[] longs;
+        double[] doubles;
+        int[] codes;
+        String[] dictionary;
+        int dictionarySize;
+        Map<String, Integer> index;
+
+        /** Per dictionary entry, filled for writing: encoded strings or temporal values. */
+        byte[][] encoded;
+        long[] converted;
+
+        Column(String name, String sqlType, int rows, ZoneId zone) {
+            this.name = name;
+            this.sqlType = sqlType;
+            this.type = BinaryType.parse(sqlType, zone);
+            this.nulls = new long[(rows + 63) >>> 6];
+            Arrays.fill(nulls, -1L);
+            switch (type.kind) {
+                case INT:
+                case UINT:
+                    longs = new long[rows];
+                    break;
+                case FLOAT:
+                    doubles = new double[rows];
+                    break;
+                default:
+                    codes = new int[rows];
+                    dictionary = new String[16];
+                    index = new HashMap<>();
+            }
+        }
+
+        void set(int row, String value) {
+            if (null == value) {
+                return;
+            }
+            switch (type.kind) {
+                case INT:
+                case UINT:
+                    if (!ColumnType.isInteger(value, type.kind == Kind.INT) || !fits(value)) {
+                        throw doesNotFit(value);
+                    }
+                    longs[row] = type.kind == Kind.INT ? Long.parseLong(value) : Long.parseUnsignedLong(value);
+                    break;
+                case FLOAT:
+                    if (!ColumnType.isNumber(value)) {
+                        throw doesNotFit(value);
+                    }
+                    doubles[row] = Double.parseDouble(value);
+                    break;
+                case STRING:
+                    codes[row] = code(value);
+                    break;
+                default:
+                    if (type.kind == Kind.DATE ? !isDate(value) : !ColumnType.isDateTime(value)) {
+                        throw doesNotFit(value);
+                    }
+                    codes[row] = code(value);
+            }
+            nulls[row >>> 6] &= ~(1L << row);
+        }
+
+        private IllegalArgumentException doesNotFit(String value) {
+            return new IllegalArgumentException("Value of " + name + " does not fit " + sqlType + ": " + value);
+        }
+
+        private boolean fits(String value) {
+            if (type.width == 8) {
+                return true;
+            }
+            long v;
+            try {
+                v = Long.parseLong(value);
+            } catch (NumberFormatException ex) {
+                return false;
+            }
+            int bits = type.width * 8;
+            return type.kind == Kind.UINT ? v < (1L << bits) : v >= -(1L << (bits - 1)) && v < (1L << (bits - 1));
+        }
+
+        private static boolean isDate(String value) {
+            try {
+                LocalDate.parse(value.length() > 10 ? value.substring(0, 10) : value);
+                return true;
+            } catch (RuntimeException ex) {
+                return false;
+            }
+        }
+
+        private int code(String value) {
+            Integer code = index.get(value);
+            if (null == code) {
+                code = dictionarySize;
+                if (dictionarySize == dictionary.length) {
+                    dictionary = Arrays.copyOf(dictionary, dictionarySize * 2);
+                }
+                dictionary[dictionarySize++] = value;
+                index.put(value, code);
+            }
+            return code;
+        }
+
+        boolean isNull(int row) {
+            return (nulls[row >>> 6] & (1L << row)) != 0;
+        }
+
+        String getValue(int row) {
+            if (isNull(row)) {
+                return null;
+            }
+            switch (type.kind) {
+                case INT:
+                    return Long.toString(longs[row]);
+                case UINT:
+                    return Long.toUnsignedString(longs[row]);
+                case FLOAT:
+                    return Double.toString(doubles[row]);
+                default:
+                    return dictionary[codes[row]];
+            }
+        }
+
+        void prepareWrite() {
+            if (null == dictionary || null != encoded || null != converted) {
+                return;
+            }
+            if (type.kind == Kind.STRING) {
+                encoded = new byte[dictionarySize][];
+                for (int i = 0; i < dictionarySize; i++) {
+                    encoded[i] = dictionary[i].getBytes(StandardCharsets.UTF_8);
+                }
+            } else {
+                converted = new long[dictionarySize];
+                for (int i = 0; i < dictionarySize; i++) {
+                    converted[i] = convert(dictionary[i]);
+                }
+            }
+        }
+
+        private long convert(String value) {
+            if (type.kind == Kind.DATE) {
+                return LocalDate.parse(value.substring(0, 10)).toEpochDay();
+            }
+            LocalDateTime time = LocalDateTime.parse(value.substring(0, 10) + 'T' + value.substring(11, 19));
+            long seconds = time.atZone(type.zone).toEpochSecond();
+            if (type.kind == Kind.DATETIME) {
+                return seconds;
+            }
+            long ticks = seconds;
+            for (int i = 0; i < type.scale; i++) {
+                int position = 20 + i;
+                ticks = ticks * 10 + (position < value.length() ? value.charAt(position) - '0' : 0);
+            }
+            return ticks;
+        }
+
+        void writeValue(BinaryOutput out, int row, boolean isNull) throws IOException {
+            switch (type.kind) {
+                case INT:
+                case UINT:
+                    out.writeLong(isNull ? 0 : longs[row], type.width);
+                    break;
+                case FLOAT:
+                    double value = isNull ? 0 : doubles[row];
+                    if (type.width == 4) {
+                        out.writeLong(Float.floatToIntBits((float) value), 4);
+                    } else {
+                        out.writeLong(Double.doubleToLongBits(value), 8);
+                    }
+                    break;
+                case STRING:
+                    if (isNull) {
+                        out.writeVarInt(0);
+                    } else {
+                        out.writeBytes(encoded[codes[row]]);
+                    }
+                    break;
+                case DATE:
+                    out.writeLong(isNull ? 0 : converted[codes[row]], 2);
+                    break;
+                case DATETIME:
+                    out.writeLong(isNull ? 0 : converted[codes[row]], 4);
+                    break;
+                default:
+                    out.writeLong(isNull ? 0 : converted[codes[row]], 8);
+            }
+        }
+
+        /**
+         * Writes the values of the rows used as additional keys and the indexes into them. Key 0
+         * of a nullable column stands for NULL.
+         */
+        void writeLowCardinality(BinaryOutput out, int from, int to) throws IOException {
+            int shift = type.nullable ? 1 : 0;
+            int[] local = new int[dictionarySize];
+            int[] keys = new int[Math.min(dictionarySize, to - from)];
+            int keyCount = 0;
+            for (int row = from; row < to; row++) {
+                if (!isNull(row) && local[codes[row]] == 0) {
+                    keys[keyCount++] = codes[row];
+                    local[codes[row]] = keyCount;
+                }
+            }
+            long keysSize = keyCount + shift;
+            int indexType = keysSize <= 1 << 8 ? 0 : keysSize <= 1 << 16 ? 1 : 2;
+            out.writeLong(1, 8);
+            out.writeLong(indexType | (1 << 9), 8);
+            out.writeLong(keysSize, 8);
+            if (type.nullable) {
+                out.writeVarInt(0);
+            }
+            for (int i = 0; i < keyCount; i++) {
+                out.writeBytes(encoded[keys[i]]);
+            }
+            out.writeLong(to - from, 8);
+            int width = 1 << indexType;
+            for (int row = from; row < to; row++) {
+                out.writeLong(isNull(row) ? 0 : local[codes[row]] - 1 + shift, width);
+            }
+        }
+    }
+
+    /**
+     * Little-endian output with ClickHouse's variable length integers and strings.
+     */
+    private static final class BinaryOutput {
+        private final OutputStream out;
+        private final byte[] buffer = new byte[8192];
+        private int position;
+
+        BinaryOutput(OutputStream out) {
+            this.out = out;
+        }
+
+        void writeByte(int b) throws IOException {
+            if (position == buffer.length) {
+                flushBuffer();
+            }
+            buffer[position++] = (byte) b;
+        }
+
+        void writeLong(long value, int bytes) throws IOException {
+            if (position + bytes > buffer.length) {
+                flushBuffer();
+            }
+            for (int i = 0; i < bytes; i++) {
+                buffer[position++] = (byte) (value >>> (8 * i));
+            }
+        }
+
+        void writeVarInt(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                writeByte((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            writeByte((int) value);
+        }
+
+        /**
+         * Writes the bytes with their length.
+         */
+        void writeBytes(byte[] bytes) throws IOException {
+            writeVarInt(bytes.length);
+            if (bytes.length > buffer.length - position) {
+                flushBuffer();
+                if (bytes.length > buffer.length) {
+                    out.write(bytes);
+                    return;
+                }
+            }
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        void writeString(String value) throws IOException {
+            writeBytes(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void flushBuffer() throws IOException {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+
+        void flush() throws IOException {
+            flushBuffer();
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.oz.db.clickhouse;
+
+import java.sql.SQLException;
+
+/**
+ * Receives rows that the server rejects on their own, after a failing batch has been split
+ * down to single rows.
+ */
+@FunctionalInterface
+public interface DeadLetterSink {
+
+    void accept(String fullTableName, FlatBatch rows, SQLException cause);
+}
@@ -0,0 +1,69 @@
+package com.oz.db.clickhouse;
+
+/**
+ * Deterministic content hash of a batch, used as {@code insert_deduplication_token} so the
+ * server discards a batch that is sent again after an ambiguous failure. The same rows with
+ * the same columns in the same order always give the same token.
+ */
+public final class DeduplicationToken {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private DeduplicationToken() {
+    }
+
+    /**
+     * @return 128 bits as 32 hex digits
+     */
+    public static String of(FlatBatch batch) {
+        long h1 = FNV_OFFSET;
+        long h2 = 0x9e3779b97f4a7c15L;
+        for (int i = 0; i < batch.getColumnCount(); i++) {
+            String name = batch.getColumnName(i);
+            h1 = mix1(h1, name);
+            h2 = mix2(h2, name);
+        }
+        for (int row = 0; row < batch.getRowCount(); row++) {
+            h1 = (h1 ^ -1) * FNV_PRIME;
+            h2 = h2 * 31 + 0x7f;
+            for (int cell = batch.getRowStart(row); cell < batch.getRowStart(row + 1); cell++) {
+                int position = batch.getCellPosition(cell);
+                h1 = (h1 ^ position) * FNV_PRIME;
+                h2 = h2 * 31 + position;
+                String value = batch.getCellValue(cell);
+                h1 = mix1(h1, value);
+                h2 = mix2(h2, value);
+            }
+        }
+        return hex(finish(h1)) + hex(finish(h2 ^ batch.getRowCount()));
+    }
+
+    private static long mix1(long hash, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        return (hash ^ 0xff) * FNV_PRIME;
+    }
+
+    private static long mix2(long hash, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash + value.charAt(i)) * 0xc6a4a7935bd1e995L;
+            hash ^= hash >>> 47;
+        }
+        return hash * 31 + value.length();
+    }
+
+    private static long finish(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    private static String hex(long value) {
+        String hex = Long.toHexString(value);
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+}
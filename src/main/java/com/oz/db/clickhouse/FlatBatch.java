@@ -0,0 +1,255 @@
+package com.oz.db.clickhouse;
+
+import java.util.*;
+
+/**
+ * Flattened rows of one insert batch. Columns are kept in order of first appearance and
+ * addressed by {@link ColumnDictionary} index; each row stores only the cells it has, as
+ * (column position, value) pairs in one shared array.
+ */
+public class FlatBatch {
+
+    private static final int[] NO_POSITIONS = new int[0];
+
+    private final ColumnDictionary dictionary;
+
+    private int[] columns = new int[16];
+    private int columnCount;
+    private int[] positions = NO_POSITIONS;
+
+    private int[] rowStarts = new int[17];
+    private int rowCount;
+
+    private int[] cellPositions = new int[64];
+    private String[] cellValues = new String[64];
+    private int cellCount;
+
+    public FlatBatch(ColumnDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    public void add(int column, String value) {
+        if (column >= positions.length) {
+            positions = Arrays.copyOf(positions, Math.max(column + 1, positions.length * 2));
+        }
+        int position = positions[column] - 1;
+        if (position < 0) {
+            if (columnCount == columns.length) {
+                columns = Arrays.copyOf(columns, columnCount * 2);
+            }
+            position = columnCount;
+            columns[columnCount++] = column;
+            positions[column] = columnCount;
+        }
+        if (cellCount == cellValues.length) {
+            cellPositions = Arrays.copyOf(cellPositions, cellCount * 2);
+            cellValues = Arrays.copyOf(cellValues, cellCount * 2);
+        }
+        cellPositions[cellCount] = position;
+        cellValues[cellCount++] = value;
+    }
+
+    public void endRow() {
+        if (rowCount + 1 == rowStarts.length) {
+            rowStarts = Arrays.copyOf(rowStarts, rowStarts.length * 2);
+        }
+        rowStarts[++rowCount] = cellCount;
+    }
+
+    /**
+     * Appends the rows of another batch of the same dictionary. Columns that are new for this
+     * batch are added in the other batch's order, so appending the flattened slices of a list in
+     * order gives the same batch as flattening the whole list.
+     */
+    public void append(FlatBatch other) {
+        int[] remap = new int[other.columnCount];
+        for (int i = 0; i < other.columnCount; i++) {
+            int column = other.columns[i];
+            if (column >= positions.length) {
+                positions = Arrays.copyOf(positions, Math.max(column + 1, positions.length * 2));
+            }
+            if (positions[column] == 0) {
+                if (columnCount == columns.length) {
+                    columns = Arrays.copyOf(columns, columnCount * 2);
+                }
+                columns[columnCount++] = column;
+                positions[column] = columnCount;
+            }
+            remap[i] = positions[column] - 1;
+        }
+        int newCellCount = cellCount + other.cellCount;
+        if (newCellCount > cellValues.length) {
+            cellPositions = Arrays.copyOf(cellPositions, Math.max(newCellCount, cellValues.length * 2));
+            cellValues = Arrays.copyOf(cellValues, cellPositions.length);
+        }
+        for (int cell = 0; cell < other.cellCount; cell++) {
+            cellPositions[cellCount + cell] = remap[other.cellPositions[cell]];
+        }
+        System.arraycopy(other.cellValues, 0, cellValues, cellCount, other.cellCount);
+        int newRowCount = rowCount + other.rowCount;
+        if (newRowCount + 1 > rowStarts.length) {
+            rowStarts = Arrays.copyOf(rowStarts, Math.max(newRowCount + 1, rowStarts.length * 2));
+        }
+        for (int row = 1; row <= other.rowCount; row++) {
+            rowStarts[rowCount + row] = cellCount + other.rowStarts[row];
+        }
+        rowCount = newRowCount;
+        cellCount = newCellCount;
+    }
+
+    /**
+     * @return a new batch with the given rows in the given order
+     */
+    public FlatBatch select(int[] rows, int count) {
+        FlatBatch selected = new FlatBatch(dictionary);
+        for (int i = 0; i < count; i++) {
+            int row = rows[i];
+            for (int cell = rowStarts[row]; cell < rowStarts[row + 1]; cell++) {
+                selected.add(columns[cellPositions[cell]], cellValues[cell]);
+            }
+            selected.endRow();
+        }
+        return selected;
+    }
+
+    /**
+     * Splits the batch into batches whose rows all have the same set of columns, in order of
+     * first appearance. Rows of shapes with fewer than {@code minShapeRows} rows are put
+     * together into one last batch over the union of their columns.
+     */
+    public List<FlatBatch> splitByShape(int minShapeRows) {
+        Map<Shape, Shape> shapes = new LinkedHashMap<>();
+        for (int row = 0; row < rowCount; row++) {
+            int[] positions = Arrays.copyOfRange(cellPositions, rowStarts[row], rowStarts[row + 1]);
+            Arrays.sort(positions);
+            Shape shape = new Shape(positions);
+            Shape existing = shapes.putIfAbsent(shape, shape);
+            (null == existing ? shape : existing).addRow(row);
+        }
+        List<FlatBatch> parts = new ArrayList<>();
+        int[] rest = new int[rowCount];
+        int restCount = 0;
+        for (Shape shape : shapes.keySet()) {
+            if (shape.count >= minShapeRows) {
+                parts.add(select(shape.rows, shape.count));
+            } else {
+                System.arraycopy(shape.rows, 0, rest, restCount, shape.count);
+                restCount += shape.count;
+            }
+        }
+        if (restCount > 0) {
+            Arrays.sort(rest, 0, restCount);
+            parts.add(select(rest, restCount));
+        }
+        return parts;
+    }
+
+    private static final class Shape {
+        private final int[] positions;
+        private final int hash;
+        private int[] rows = new int[4];
+        private int count;
+
+        Shape(int[] positions) {
+            this.positions = positions;
+            this.hash = Arrays.hashCode(positions);
+        }
+
+        void addRow(int row) {
+            if (count == rows.length) {
+                rows = Arrays.copyOf(rows, count * 2);
+            }
+            rows[count++] = row;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Shape && Arrays.equals(positions, ((Shape) o).positions);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getColumnCount() {
+        return columnCount;
+    }
+
+    public int getColumnIndex(int position) {
+        return columns[position];
+    }
+
+    public String getColumnName(int position) {
+        return dictionary.name(columns[position]);
+    }
+
+    public List<String> getColumnNames() {
+        return new AbstractList<>() {
+            @Override
+            public String get(int index) {
+                return getColumnName(index);
+            }
+
+            @Override
+            public int size() {
+                return columnCount;
+            }
+        };
+    }
+
+    /**
+     * @return index of the first cell of the row; {@code getRowStart(getRowCount())} is the cell count
+     */
+    public int getRowStart(int row) {
+        return rowStarts[row];
+    }
+
+    public int getCellCount() {
+        return cellCount;
+    }
+
+    public int getCellPosition(int cell) {
+        return cellPositions[cell];
+    }
+
+    public String getCellValue(int cell) {
+        return cellValues[cell];
+    }
+
+    /**
+     * Replaces the value of a cell that has already been added, for values like group counts
+     * that are known only after the cells that follow them.
+     */
+    public void setCellValue(int cell, String value) {
+        cellValues[cell] = value;
+    }
+
+    public ColumnDictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Fills {@code values} (at least {@link #getColumnCount()} long) with the row's values by
+     * column position; absent columns are set to null.
+     */
+    public void fillRow(int row, String[] values) {
+        Arrays.fill(values, 0, columnCount, null);
+        for (int cell = rowStarts[row]; cell < rowStarts[row + 1]; cell++) {
+            values[cellPositions[cell]] = cellValues[cell];
+        }
+    }
+
+    public Map<String, String> getRow(int row) {
+        Map<String, String> values = new TreeMap<>();
+        for (int cell = rowStarts[row]; cell < rowStarts[row + 1]; cell++) {
+            values.put(getColumnName(cellPositions[cell]), cellValues[cell]);
+        }
+        return values;
+    }
+}
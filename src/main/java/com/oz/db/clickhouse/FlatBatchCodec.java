@@ -0,0 +1,105 @@
+package com.oz.db.clickhouse;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Compact binary form of a {@link FlatBatch}: the column names and array depths once, then
+ * every row as its cell count followed by (column position, value) pairs. Numbers are unsigned varints and
+ * strings are UTF-8 with a varint length prefix.
+ */
+public class FlatBatchCodec {
+
+    private byte[] buffer = new byte[4096];
+    private int length;
+
+    public byte[] encode(FlatBatch batch) {
+        length = 0;
+        writeVarint(batch.getColumnCount());
+        for (int i = 0; i < batch.getColumnCount(); i++) {
+            writeString(batch.getColumnName(i));
+            writeVarint(batch.getDictionary().arrayDepth(batch.getColumnIndex(i)));
+        }
+        writeVarint(batch.getRowCount());
+        for (int row = 0; row < batch.getRowCount(); row++) {
+            int from = batch.getRowStart(row);
+            int to = batch.getRowStart(row + 1);
+            writeVarint(to - from);
+            for (int cell = from; cell < to; cell++) {
+                writeVarint(batch.getCellPosition(cell));
+                writeString(batch.getCellValue(cell));
+            }
+        }
+        return Arrays.copyOf(buffer, length);
+    }
+
+    public static FlatBatch decode(ByteBuffer in, ColumnDictionary dictionary) {
+        int columnCount = readVarint(in);
+        int[] columns = new int[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            String name = readString(in);
+            columns[i] = dictionary.indexOf(name, readVarint(in));
+        }
+        FlatBatch batch = new FlatBatch(dictionary);
+        int rowCount = readVarint(in);
+        for (int row = 0; row < rowCount; row++) {
+            int cells = readVarint(in);
+            for (int cell = 0; cell < cells; cell++) {
+                int position = readVarint(in);
+                batch.add(columns[position], readString(in));
+            }
+            batch.endRow();
+        }
+        return batch;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(length + extra, buffer.length * 2));
+        }
+    }
+
+    private void writeVarint(int value) {
+        ensureCapacity(5);
+        while ((value & ~0x7F) != 0) {
+            buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[length++] = (byte) value;
+    }
+
+    private void writeString(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(bytes.length);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static String readString(ByteBuffer in) {
+        int size = readVarint(in);
+        String value;
+        if (in.hasArray()) {
+            value = new String(in.array(), in.arrayOffset() + in.position(), size, StandardCharsets.UTF_8);
+            in.position(in.position() + size);
+        } else {
+            byte[] bytes = new byte[size];
+            in.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,599 @@
+package com.oz.db.clickhouse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import java.time.Duration;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Sends inserts to the HTTP interface of ClickHouse as {@code POST ?query=INSERT ... FORMAT f}
+ * with the rows in the request body. The body is encoded a chunk of rows at a time while the
+ * client reads it, compressed on the way, and sent chunked, so a batch is never held as one
+ * statement string. Set it on a {@link ClickhouseTableHelper} to send its inserts this way;
+ * columns are still created over JDBC.
+ * <pre>
+ * helper.setHttpTransport(HttpInsertTransport.builder(URI.create("http://localhost:8123/"))
+ *         .user("default")
+ *         .compression(HttpInsertTransport.Compression.GZIP)
+ *         .format(HttpInsertTransport.Format.ROW_BINARY)
+ *         .build());
+ * </pre>
+ * A batch with a column type {@link ColumnarBatch} cannot write, or with a value that does not
+ * fit its column type, is sent as {@code Values}.
+ * Errors reported by the server become {@link SQLException}s with its message, so schema
+ * errors and retries are handled as on the JDBC path.
+ */
+public class HttpInsertTransport {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HttpInsertTransport.class);
+
+    private static final Pattern WRITTEN_ROWS = Pattern.compile("\"written_rows\":\"?(\\d+)");
+
+    public enum Format {
+        VALUES("Values"),
+        ROW_BINARY("RowBinary"),
+        NATIVE("Native");
+
+        private final String sql;
+
+        Format(String sql) {
+            this.sql = sql;
+        }
+
+        public String getSql() {
+            return sql;
+        }
+    }
+
+    public enum Compression {
+        NONE(null),
+        GZIP("gzip"),
+        DEFLATE("deflate");
+
+        private final String contentEncoding;
+
+        Compression(String contentEncoding) {
+            this.contentEncoding = contentEncoding;
+        }
+
+        public String getContentEncoding() {
+            return contentEncoding;
+        }
+
+        OutputStream wrap(OutputStream out) throws IOException {
+            switch (this) {
+                case GZIP:
+                    return new GZIPOutputStream(out, 64 * 1024);
+                case DEFLATE:
+                    return new DeflaterOutputStream(out);
+                default:
+                    return out;
+            }
+        }
+    }
+
+    /**
+     * Writes the rows from {@code from} to {@code to}, exclusive, of the body.
+     */
+    @FunctionalInterface
+    private interface ChunkWriter {
+        /**
+         * @return number of values that did not fit their column type
+         */
+        int write(OutputStream out, int from, int to) throws IOException;
+    }
+
+    private final URI endpoint;
+    private final String user;
+    private final String password;
+    private final Compression compression;
+    private final Format format;
+    private final int chunkRows;
+    private final long requestTimeoutMillis;
+    private final ZoneId zone;
+    private final HttpClient client;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder uncompressedBytes = new LongAdder();
+    private final LongAdder valuesFallbacks = new LongAdder();
+
+    private HttpInsertTransport(Builder builder) {
+        this.endpoint = builder.endpoint;
+        this.user = builder.user;
+        this.password = builder.password;
+        this.compression = builder.compression;
+        this.format = builder.format;
+        this.chunkRows = builder.chunkRows;
+        this.requestTimeoutMillis = builder.requestTimeoutMillis;
+        this.zone = builder.zone;
+        this.client = null != builder.client ? builder.client : HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofMillis(builder.connectTimeoutMillis))
+                .build();
+    }
+
+    /**
+     * @param endpoint base URI of the HTTP interface, like {@code http://localhost:8123/}
+     */
+    public static Builder builder(URI endpoint) {
+        return new Builder(endpoint);
+    }
+
+    /**
+     * Sends the batch in one request.
+     *
+     * @param columnTypes SQL type of each column of the table
+     * @param deduplicationToken sent as the {@code insert_deduplication_token} setting, may be null
+     * @return number of rows written as reported by the server, the batch size if it did not
+     */
+    public int insert(String tableName, FlatBatch batch, Map<String, String> columnTypes,
+                      String deduplicationToken) throws SQLException {
+        return insert(tableName, batch, columnTypes, deduplicationToken, null);
+    }
+
+    /**
+     * @param stats if not null, the bytes sent are added to its first element and the values
+     *              that did not fit their column type to its second
+     */
+    int insert(String tableName, FlatBatch batch, Map<String, String> columnTypes,
+               String deduplicationToken, long[] stats) throws SQLException {
+        int rows = batch.getRowCount();
+        if (rows == 0) {
+            return 0;
+        }
+        String sql;
+        ChunkWriter writer;
+        Format batchFormat = formatOf(batch, columnTypes);
+        ColumnarBatch columnar = null;
+        if (batchFormat != Format.VALUES) {
+            try {
+                columnar = ColumnarBatch.of(batch, columnTypes, zone);
+            } catch (IllegalArgumentException ex) {
+                LOG.debug("Batch cannot be sent as {}, send Values: {}", batchFormat.getSql(), ex.getMessage());
+                valuesFallbacks.increment();
+                batchFormat = Format.VALUES;
+            }
+        }
+        if (null == columnar) {
+            ColumnType[] types = new ColumnType[batch.getColumnCount()];
+            for (int i = 0; i < types.length; i++) {
+                types[i] = ColumnType.fromSql(columnTypes.get(batch.getColumnName(i)));
+            }
+            sql = valuesSql(tableName, batch);
+            writer = (out, from, to) -> writeValues(out, batch, types, from, to);
+        } else {
+            ColumnarBatch encoded = columnar;
+            boolean isNative = batchFormat == Format.NATIVE;
+            sql = columnar.insertSql(tableName, isNative ? ColumnarBatch.Format.NATIVE : ColumnarBatch.Format.ROW_BINARY);
+            writer = (out, from, to) -> {
+                if (isNative) {
+                    encoded.writeNative(out, from, to);
+                } else {
+                    encoded.writeRowBinary(out, from, to);
+                }
+                return 0;
+            };
+        }
+        BodySupplier body = new BodySupplier(writer, rows, chunkRows, compression);
+        LOG.trace("Query: {}", sql);
+        HttpResponse<String> response;
+        try {
+            response = client.send(request(sql, deduplicationToken, body), HttpResponse.BodyHandlers.ofString());
+        } catch (HttpTimeoutException ex) {
+            failures.increment();
+            throw new SQLTimeoutException("insert into " + tableName + " timed out: " + ex.getMessage(), ex);
+        } catch (IOException ex) {
+            failures.increment();
+            throw new SQLRecoverableException("could not send insert into " + tableName + ": " + ex.getMessage(), ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            failures.increment();
+            throw new SQLException("insert into " + tableName + " interrupted", ex);
+        } finally {
+            requests.increment();
+            Body sent = body.last;
+            if (null != sent) {
+                bytesSent.add(sent.getBytes());
+                uncompressedBytes.add(sent.getUncompressedBytes());
+                if (null != stats) {
+                    stats[0] += sent.getBytes();
+                    stats[1] += sent.getConflicts();
+                }
+            }
+        }
+        if (response.statusCode() != 200) {
+            failures.increment();
+            throw error(response);
+        }
+        return writtenRows(response, rows);
+    }
+
+    private Format formatOf(FlatBatch batch, Map<String, String> columnTypes) {
+        if (format == Format.VALUES) {
+            return format;
+        }
+        for (int i = 0; i < batch.getColumnCount(); i++) {
+            String type = columnTypes.get(batch.getColumnName(i));
+            if (null != type && !ColumnarBatch.supports(type)) {
+                LOG.debug("Column {} of type {} cannot be sent as {}, send Values",
+                        batch.getColumnName(i), type, format.getSql());
+                valuesFallbacks.increment();
+                return Format.VALUES;
+            }
+        }
+        return format;
+    }
+
+    private static String valuesSql(String tableName, FlatBatch batch) {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(tableName).append(" (");
+        for (int i = 0; i < batch.getColumnCount(); i++) {
+            sql.append(i > 0 ? ", " : "").append(batch.getColumnName(i));
+        }
+        return sql.append(") FORMAT ").append(Format.VALUES.getSql()).toString();
+    }
+
+    private static int writeValues(OutputStream out, FlatBatch batch, ColumnType[] types, int from, int to)
+            throws IOException {
+        StringBuilder text = new StringBuilder();
+        String[] values = new String[batch.getColumnCount()];
+        int[] groups = InsertEncoder.nestedGroups(batch);
+        int conflicts = 0;
+        for (int row = from; row < to; row++) {
+            batch.fillRow(row, values);
+            if (null != groups) {
+                InsertEncoder.padArrays(batch, values, groups);
+            }
+            conflicts += InsertEncoder.writeRow(text, values, types);
+        }
+        out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+        return conflicts;
+    }
+
+    private HttpRequest request(String sql, String deduplicationToken, BodySupplier body) {
+        StringBuilder uri = new StringBuilder(endpoint.toString())
+                .append(null == endpoint.getQuery() ? '?' : '&')
+                .append("query=").append(URLEncoder.encode(sql, StandardCharsets.UTF_8));
+        if (null != deduplicationToken) {
+            uri.append("&insert_deduplication_token=")
+                    .append(URLEncoder.encode(deduplicationToken, StandardCharsets.UTF_8));
+        }
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(uri.toString()))
+                .timeout(Duration.ofMillis(requestTimeoutMillis))
+                .POST(HttpRequest.BodyPublishers.ofInputStream(body));
+        if (null != user) {
+            request.header("X-ClickHouse-User", user);
+        }
+        if (null != password) {
+            request.header("X-ClickHouse-Key", password);
+        }
+        if (null != compression.getContentEncoding()) {
+            request.header("Content-Encoding", compression.getContentEncoding());
+        }
+        return request.build();
+    }
+
+    private static SQLException error(HttpResponse<String> response) {
+        int status = response.statusCode();
+        String message = null == response.body() || response.body().isBlank()
+                ? "HTTP " + status : response.body().trim();
+        int code = response.headers().firstValue("X-ClickHouse-Exception-Code")
+                .map(HttpInsertTransport::parseCode).orElse(status);
+        if (status == 502 || status == 503 || status == 504) {
+            return new SQLTransientConnectionException(message, null, code);
+        }
+        return new SQLException(message, null, code);
+    }
+
+    private static int parseCode(String code) {
+        try {
+            return Integer.parseInt(code.trim());
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    private static int writtenRows(HttpResponse<String> response, int rows) {
+        String summary = response.headers().firstValue("X-ClickHouse-Summary").orElse(null);
+        if (null != summary) {
+            Matcher m = WRITTEN_ROWS.matcher(summary);
+            if (m.find()) {
+                return Integer.parseInt(m.group(1));
+            }
+        }
+        return rows;
+    }
+
+    public URI getEndpoint() {
+        return endpoint;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    /**
+     * @return bytes of request bodies sent, after compression
+     */
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    /**
+     * @return bytes of request bodies before compression
+     */
+    public long getUncompressedBytes() {
+        return uncompressedBytes.sum();
+    }
+
+    /**
+     * @return number of batches sent as {@code Values} because of a column type the binary
+     * formats do not support or a value that does not fit its column type
+     */
+    public long getValuesFallbacks() {
+        return valuesFallbacks.sum();
+    }
+
+    /**
+     * Encodes the body again each time the client asks for it, since a stream can be read only
+     * once. The last body is kept for the statistics.
+     */
+    private static final class BodySupplier implements Supplier<InputStream> {
+        private final ChunkWriter writer;
+        private final int rows;
+        private final int chunkRows;
+        private final Compression compression;
+
+        private volatile Body last;
+
+        BodySupplier(ChunkWriter writer, int rows, int chunkRows, Compression compression) {
+            this.writer = writer;
+            this.rows = rows;
+            this.chunkRows = chunkRows;
+            this.compression = compression;
+        }
+
+        @Override
+        public InputStream get() {
+            try {
+                last = new Body(writer, rows, chunkRows, compression);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            return last;
+        }
+    }
+
+    /**
+     * Request body that encodes and compresses the next chunk of rows whenever the bytes of the
+     * previous one have been read.
+     */
+    private static final class Body extends InputStream {
+        private final ChunkWriter writer;
+        private final int rows;
+        private final int chunkRows;
+        private final Buffer buffer = new Buffer();
+        private final Counter counter;
+        private final OutputStream sink;
+
+        private int nextRow;
+        private int position;
+        private boolean finished;
+        private long bytes;
+        private long conflicts;
+
+        Body(ChunkWriter writer, int rows, int chunkRows, Compression compression) throws IOException {
+            this.writer = writer;
+            this.rows = rows;
+            this.chunkRows = chunkRows;
+            this.counter = new Counter(compression.wrap(buffer));
+            this.sink = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (position == buffer.size()) {
+                if (finished) {
+                    return -1;
+                }
+                fill();
+            }
+            int n = Math.min(len, buffer.size() - position);
+            System.arraycopy(buffer.array(), position, b, off, n);
+            position += n;
+            bytes += n;
+            return n;
+        }
+
+        private void fill() throws IOException {
+            buffer.reset();
+            position = 0;
+            if (nextRow < rows) {
+                int to = Math.min(rows, nextRow + chunkRows);
+                conflicts += writer.write(sink, nextRow, to);
+                nextRow = to;
+            } else {
+                sink.close();
+                finished = true;
+            }
+        }
+
+        long getBytes() {
+            return bytes;
+        }
+
+        long getUncompressedBytes() {
+            return counter.count;
+        }
+
+        long getConflicts() {
+            return conflicts;
+        }
+    }
+
+    private static final class Buffer extends ByteArrayOutputStream {
+        Buffer() {
+            super(64 * 1024);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+
+    private static final class Counter extends FilterOutputStream {
+        private long count;
+
+        Counter(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    public static class Builder {
+        private final URI endpoint;
+        private String user;
+        private String password;
+        private Compression compression = Compression.GZIP;
+        private Format format = Format.ROW_BINARY;
+        private int chunkRows = 8192;
+        private long connectTimeoutMillis = 10_000;
+        private long requestTimeoutMillis = 300_000;
+        private ZoneId zone = ZoneOffset.UTC;
+        private HttpClient client;
+
+        private Builder(URI endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        public Builder user(String user) {
+            this.user = user;
+            return this;
+        }
+
+        public Builder password(String password) {
+            this.password = password;
+            return this;
+        }
+
+        /**
+         * Compression of the request body, gzip by default.
+         */
+        public Builder compression(Compression compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        /**
+         * Format of the request body, {@code RowBinary} by default.
+         */
+        public Builder format(Format format) {
+            this.format = format;
+            return this;
+        }
+
+        /**
+         * Number of rows encoded at a time while the body is sent; a {@code Native} body has a
+         * block per chunk.
+         */
+        public Builder chunkRows(int chunkRows) {
+            this.chunkRows = chunkRows;
+            return this;
+        }
+
+        public Builder connectTimeoutMillis(long connectTimeoutMillis) {
+            this.connectTimeoutMillis = connectTimeoutMillis;
+            return this;
+        }
+
+        public Builder requestTimeoutMillis(long requestTimeoutMillis) {
+            this.requestTimeoutMillis = requestTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * Zone date and time text is read in for the binary formats, UTC by default.
+         */
+        public Builder zone(ZoneId zone) {
+            this.zone = zone;
+            return this;
+        }
+
+        /**
+         * Client to send with instead of one built from the timeouts.
+         */
+        public Builder httpClient(HttpClient client) {
+            this.client = client;
+            return this;
+        }
+
+        public HttpInsertTransport build() {
+            if (null == endpoint) {
+                throw new IllegalStateException("No endpoint");
+            }
+            if (chunkRows < 1) {
+                throw new IllegalArgumentException("Chunk rows must be positive: " + chunkRows);
+            }
+            return new HttpInsertTransport(this);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.oz.db.clickhouse;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Ingestion metrics of one table. The counters and timers are resolved from the registry once,
+ * so recording is a few adds without allocation.
+ * <ul>
+ *     <li>{@code inserts}, {@code rows}, {@code bytes}: successful inserts, their rows and the
+ *     length of the statements sent in characters</li>
+ *     <li>{@code flatten}, {@code render}, {@code execute}: time spent in each stage</li>
+ *     <li>{@code ddl}: time spent loading the schema and creating tables and columns</li>
+ *     <li>{@code schemaRetries}: inserts repeated after the schema changed outside</li>
+ *     <li>{@code retries}: inserts repeated after a transient error</li>
+ *     <li>{@code deadLetterRows}: rows rejected by the server and sent to the dead letter sink</li>
+ *     <li>{@code latency}: whole insert, including DDL and retries</li>
+ *     <li>{@code batch.target.rows}, {@code batch.target.bytes}: current targets of the
+ *     {@link BatchSizeController}, if one is set</li>
+ * </ul>
+ */
+public class IngestMetrics implements IngestMetricsMXBean {
+
+    private final MetricsRegistry registry;
+    private final String table;
+    private volatile BatchSizeController batchSizeController;
+    final MetricsRegistry.Counter inserts;
+    final MetricsRegistry.Counter rows;
+    final MetricsRegistry.Counter bytes;
+    final MetricsRegistry.Counter failedInserts;
+    final MetricsRegistry.Counter schemaRetries;
+    final MetricsRegistry.Counter retries;
+    final MetricsRegistry.Counter deadLetterRows;
+    final MetricsRegistry.Timer flatten;
+    final MetricsRegistry.Timer render;
+    final MetricsRegistry.Timer execute;
+    final MetricsRegistry.Timer ddl;
+    final MetricsRegistry.Timer latency;
+
+    public IngestMetrics(MetricsRegistry registry, String table) {
+        this.registry = registry;
+        this.table = table;
+        this.inserts = registry.counter("clickhouse.insert.count", table);
+        this.rows = registry.counter("clickhouse.insert.rows", table);
+        this.bytes = registry.counter("clickhouse.insert.bytes", table);
+        this.failedInserts = registry.counter("clickhouse.insert.failed", table);
+        this.schemaRetries = registry.counter("clickhouse.insert.schema.retries", table);
+        this.retries = registry.counter("clickhouse.insert.retries", table);
+        this.deadLetterRows = registry.counter("clickhouse.insert.dead.letter.rows", table);
+        this.flatten = registry.timer("clickhouse.insert.flatten", table);
+        this.render = registry.timer("clickhouse.insert.render", table);
+        this.execute = registry.timer("clickhouse.insert.execute", table);
+        this.ddl = registry.timer("clickhouse.ddl", table);
+        this.latency = registry.timer("clickhouse.insert.latency", table);
+    }
+
+    void setBatchSizeController(BatchSizeController controller) {
+        this.batchSizeController = controller;
+        if (null != controller) {
+            registry.gauge("clickhouse.batch.target.rows", table, controller::getTargetRows);
+            registry.gauge("clickhouse.batch.target.bytes", table, controller::getTargetBytes);
+        }
+    }
+
+    /**
+     * Registers this object in the platform MBean server as
+     * {@code com.oz.db.clickhouse:type=IngestMetrics,table=<table>}.
+     */
+    public ObjectName registerMBean() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = objectName();
+        if (!server.isRegistered(name)) {
+            server.registerMBean(this, name);
+        }
+        return name;
+    }
+
+    public void unregisterMBean() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = objectName();
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+    }
+
+    private ObjectName objectName() throws JMException {
+        return new ObjectName("com.oz.db.clickhouse:type=IngestMetrics,table=" + ObjectName.quote(table));
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    @Override
+    public long getInserts() {
+        return inserts.get();
+    }
+
+    @Override
+    public long getRows() {
+        return rows.get();
+    }
+
+    @Override
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    @Override
+    public long getFailedInserts() {
+        return failedInserts.get();
+    }
+
+    @Override
+    public long getSchemaRetries() {
+        return schemaRetries.get();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.get();
+    }
+
+    @Override
+    public long getDeadLetterRows() {
+        return deadLetterRows.get();
+    }
+
+    @Override
+    public long getFlattenNanos() {
+        return flatten.getTotalNanos();
+    }
+
+    @Override
+    public long getRenderNanos() {
+        return render.getTotalNanos();
+    }
+
+    @Override
+    public long getExecuteNanos() {
+        return execute.getTotalNanos();
+    }
+
+    @Override
+    public long getDdlCount() {
+        return ddl.getCount();
+    }
+
+    @Override
+    public long getDdlNanos() {
+        return ddl.getTotalNanos();
+    }
+
+    @Override
+    public long getLatencyP50Nanos() {
+        return latency.getPercentileNanos(0.5);
+    }
+
+    @Override
+    public long getLatencyP99Nanos() {
+        return latency.getPercentileNanos(0.99);
+    }
+
+    @Override
+    public long getLatencyMaxNanos() {
+        return latency.getMaxNanos();
+    }
+
+    @Override
+    public long getBatchTargetRows() {
+        BatchSizeController controller = batchSizeController;
+        return null == controller ? 0 : controller.getTargetRows();
+    }
+
+    @Override
+    public long getBatchTargetBytes() {
+        BatchSizeController controller = batchSizeController;
+        return null == controller ? 0 : controller.getTargetBytes();
+    }
+}
@@ -0,0 +1,41 @@
+package com.oz.db.clickhouse;
+
+/**
+ * JMX view of {@link IngestMetrics}; times are in nanoseconds.
+ */
+public interface IngestMetricsMXBean {
+
+    long getInserts();
+
+    long getRows();
+
+    long getBytes();
+
+    long getFailedInserts();
+
+    long getSchemaRetries();
+
+    long getRetries();
+
+    long getDeadLetterRows();
+
+    long getFlattenNanos();
+
+    long getRenderNanos();
+
+    long getExecuteNanos();
+
+    long getDdlCount();
+
+    long getDdlNanos();
+
+    long getLatencyP50Nanos();
+
+    long getLatencyP99Nanos();
+
+    long getLatencyMaxNanos();
+
+    long getBatchTargetRows();
+
+    long getBatchTargetBytes();
+}
@@ -0,0 +1,531 @@
+package com.oz.db.clickhouse;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Renders {@code insert into ... values (...)(...)} statements into a reusable buffer.
+ * Values are escaped as ClickHouse string literals while they are appended, so no
+ * per-value strings are created. When the buffer grows past {@code maxStatementLength}
+ * the statement is handed to a {@link StatementSink} and a new one is started, so the
+ * text of a whole batch is never held in memory at once.
+ * <p>
+ * Instances are not thread safe.
+ */
+public class InsertEncoder {
+
+    public static final int DEFAULT_MAX_STATEMENT_LENGTH = 8 * 1024 * 1024;
+
+    private static final int DEFAULT_INITIAL_CAPACITY = 64 * 1024;
+
+    private final StringBuilder buffer;
+    private final int maxStatementLength;
+    private long typeConflicts;
+    private long sinkNanos;
+
+    public InsertEncoder() {
+        this(DEFAULT_INITIAL_CAPACITY, DEFAULT_MAX_STATEMENT_LENGTH);
+    }
+
+    public InsertEncoder(int initialCapacity, int maxStatementLength) {
+        this.buffer = new StringBuilder(Math.min(initialCapacity, maxStatementLength));
+        this.maxStatementLength = maxStatementLength;
+    }
+
+    @FunctionalInterface
+    public interface StatementSink {
+        int execute(String statement) throws SQLException;
+    }
+
+    /**
+     * Encodes all rows, splitting them into as many statements as needed to respect the
+     * length bound, and returns the sum of the counts reported by the sink.
+     */
+    public int encode(String tableName, FlatBatch batch, StatementSink sink) throws SQLException {
+        return encode(tableName, batch, null, sink);
+    }
+
+    /**
+     * @param types value types by batch column position, null to write every value as a string
+     */
+    public int encode(String tableName, FlatBatch batch, ColumnType[] types, StatementSink sink) throws SQLException {
+        return encode(tableName, batch, types, null, sink);
+    }
+
+    /**
+     * @param deduplicationToken sent as {@code insert_deduplication_token} with a statement
+     *                           number appended, so every statement of the batch has its own
+     *                           token; null to send none
+     */
+    public int encode(String tableName, FlatBatch batch, ColumnType[] types, String deduplicationToken,
+                      StatementSink sink) throws SQLException {
+        return encode(tableName, batch, types, deduplicationToken, new Progress(), sink);
+    }
+
+    /**
+     * Encodes the rows from the progress on and advances it after every statement the sink
+     * executes. Passing the same progress again after a failure sends only the rows that were
+     * not inserted, starting with the failed statement under its statement number, so its token
+     * matches the one of the failed attempt as long as the rows render the same.
+     *
+     * @return sum of the counts reported by the sink in this call
+     */
+    public int encode(String tableName, FlatBatch batch, ColumnType[] types, String deduplicationToken,
+                      Progress progress, StatementSink sink) throws SQLException {
+        int cnt = 0;
+        int rowsInStatement = 0;
+        String[] values = new String[batch.getColumnCount()];
+        List<String> columns = batch.getColumnNames();
+        int[] groups = null == types ? null : nestedGroups(batch);
+        buffer.setLength(0);
+        sinkNanos = 0;
+        for (int row = progress.rows; row < batch.getRowCount(); row++) {
+            if (rowsInStatement == 0) {
+                writeHeader(buffer, tableName, columns,
+                        null == deduplicationToken ? null : deduplicationToken + "_" + progress.statements);
+            }
+            batch.fillRow(row, values);
+            if (null != groups) {
+                padArrays(batch, values, groups);
+            }
+            if (null == types) {
+                writeRow(buffer, values);
+            } else {
+                typeConflicts += writeRow(buffer, values, types);
+            }
+            rowsInStatement++;
+            if (buffer.length() >= maxStatementLength || row + 1 == batch.getRowCount()) {
+                int count = execute(sink);
+                cnt += count;
+                progress.advance(row + 1, count);
+                buffer.setLength(0);
+                rowsInStatement = 0;
+            }
+        }
+        trim();
+        return cnt;
+    }
+
+    /**
+     * Rows and statements of a batch that the sink has executed, and the sum of its counts.
+     */
+    public static final class Progress {
+        private int rows;
+        private int statements;
+        private int count;
+
+        private void advance(int rows, int count) {
+            this.rows = rows;
+            this.statements++;
+            this.count += count;
+        }
+
+        public int getRows() {
+            return rows;
+        }
+
+        public int getStatements() {
+            return statements;
+        }
+
+        public int getCount() {
+            return count;
+        }
+    }
+
+    private int execute(StatementSink sink) throws SQLException {
+        String statement = buffer.toString();
+        long start = System.nanoTime();
+        try {
+            return sink.execute(statement);
+        } finally {
+            sinkNanos += System.nanoTime() - start;
+        }
+    }
+
+    public static void writeInsert(Appendable out, String tableName, FlatBatch batch) {
+        writeInsert(out, tableName, batch, null);
+    }
+
+    /**
+     * @param types value types by batch column position, null to write every value as a string
+     */
+    public static void writeInsert(Appendable out, String tableName, FlatBatch batch, ColumnType[] types) {
+        String[] values = new String[batch.getColumnCount()];
+        int[] groups = null == types ? null : nestedGroups(batch);
+        writeHeader(out, tableName, batch.getColumnNames());
+        for (int row = 0; row < batch.getRowCount(); row++) {
+            batch.fillRow(row, values);
+            if (null != groups) {
+                padArrays(batch, values, groups);
+            }
+            if (null == types) {
+                writeRow(out, values);
+            } else {
+                writeRow(out, values, types);
+            }
+        }
+    }
+
+    private void trim() {
+        buffer.setLength(0);
+        if (buffer.capacity() > maxStatementLength * 2) {
+            buffer.trimToSize();
+        }
+    }
+
+    public static void writeHeader(Appendable out, String tableName, List<String> columns) {
+        writeHeader(out, tableName, columns, null);
+    }
+
+    public static void writeHeader(Appendable out, String tableName, List<String> columns, String deduplicationToken) {
+        try {
+            out.append("insert into ").append(tableName).append(" ( ");
+            for (int i = 0; i < columns.size(); i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                out.append(columns.get(i));
+            }
+            out.append(" )");
+            if (null != deduplicationToken) {
+                out.append(" SETTINGS insert_deduplication_token = ");
+                writeQuoted(out, deduplicationToken);
+            }
+            out.append(" values ");
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Writes one {@code (...)} tuple; null values are written as {@code ''}.
+     */
+    public static void writeRow(Appendable out, String[] values) {
+        try {
+            out.append('(');
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                writeQuoted(out, values[i]);
+            }
+            out.append(')');
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Writes one tuple with every value as a literal of its column type. Missing values are
+     * written as NULL, or as zero if the column is not nullable. Values that are not valid
+     * literals of a numeric or date type are written quoted as they are, so the server rejects
+     * the row rather than storing a value that was not sent.
+     *
+     * @return number of present values that did not fit their column type
+     */
+    public static int writeRow(Appendable out, String[] values, ColumnType[] types) {
+        int conflicts = 0;
+        try {
+            out.append('(');
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                if (!writeValue(out, values[i], types[i])) {
+                    conflicts++;
+                }
+            }
+            out.append(')');
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return conflicts;
+    }
+
+    /**
+     * Arrays are parsed and written again element by element: strings are quoted like string
+     * values, other elements must be numbers or {@code NULL}. A value that is not an array
+     * literal is written as one quoted string, so the server rejects the row.
+     *
+     * @return false if a present value did not fit the type and was written as a string
+     */
+    public static boolean writeValue(Appendable out, String value, ColumnType type) throws IOException {
+        if (type.isArray()) {
+            if (null == value) {
+                out.append("[]");
+                return true;
+            }
+            StringBuilder array = new StringBuilder(value.length() + 2);
+            if (writeArray(array, value, 0, new StringBuilder(), null) != value.length()) {
+                writeQuoted(out, value);
+                return false;
+            }
+            out.append(array);
+            return true;
+        }
+        if (!type.isNumeric() && !type.isTemporal()) {
+            if (null == value && type.isNullable()) {
+                out.append("NULL");
+            } else {
+                writeQuoted(out, value);
+            }
+            return true;
+        }
+        if (null == value) {
+            out.append(type.isNullable() ? "NULL" : "0");
+            return true;
+        }
+        if (!type.accepts(value)) {
+            writeQuoted(out, value);
+            return false;
+        }
+        if (type.isNumeric()) {
+            out.append(value);
+        } else {
+            out.append('\'').append(value, 0, 10).append(' ').append(value, 11, value.length()).append('\'');
+        }
+        return true;
+    }
+
+    /**
+     * @return for every column position of the batch, the number of the {@code Nested} group of
+     * an array column, named by the column name up to its first dot, or -1 for other columns;
+     * null if the batch has no such columns
+     */
+    static int[] nestedGroups(FlatBatch batch) {
+        int[] groups = null;
+        List<String> prefixes = new ArrayList<>();
+        for (int i = 0; i < batch.getColumnCount(); i++) {
+            String name = batch.getColumnName(i);
+            int dot = name.indexOf('.');
+            if (dot < 0 || batch.getDictionary().arrayDepth(batch.getColumnIndex(i)) == 0) {
+                continue;
+            }
+            if (null == groups) {
+                groups = new int[batch.getColumnCount()];
+                Arrays.fill(groups, -1);
+            }
+            String prefix = name.substring(0, dot);
+            int group = prefixes.indexOf(prefix);
+            if (group < 0) {
+                group = prefixes.size();
+                prefixes.add(prefix);
+            }
+            groups[i] = group;
+        }
+        return groups;
+    }
+
+    /**
+     * Sets the absent values of array columns to arrays of empty elements as long as the other
+     * arrays of their group in the row: the server rejects rows whose arrays of one
+     * {@code Nested} group differ in size.
+     *
+     * @param groups from {@link #nestedGroups(FlatBatch)}
+     */
+    static void padArrays(FlatBatch batch, String[] values, int[] groups) {
+        for (int i = 0; i < groups.length; i++) {
+            if (groups[i] < 0 || null != values[i]) {
+                continue;
+            }
+            int size = -1;
+            for (int j = 0; j < groups.length && size < 0; j++) {
+                if (j != i && groups[j] == groups[i] && null != values[j]) {
+                    size = arraySize(values[j]);
+                }
+            }
+            if (size > 0) {
+                boolean nested = batch.getDictionary().arrayDepth(batch.getColumnIndex(i)) > 1;
+                StringBuilder padded = new StringBuilder(size * 3 + 1).append('[');
+                for (int element = 0; element < size; element++) {
+                    padded.append(element > 0 ? "," : "").append(nested ? "[]" : "''");
+                }
+                values[i] = padded.append(']').toString();
+            }
+        }
+    }
+
+    /**
+     * @return number of elements of the array literal, -1 if the value is not one
+     */
+    private static int arraySize(String value) {
+        int[] size = new int[1];
+        try {
+            return writeArray(null, value, 0, new StringBuilder(), size) == value.length() ? size[0] : -1;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Parses the array literal at {@code start} and writes it to {@code out}, if not null, with
+     * every string element quoted by {@link #writeQuoted}.
+     *
+     * @param size if not null, its first element is set to the number of elements
+     * @return index after the literal, -1 if there is no valid array literal
+     */
+    private static int writeArray(StringBuilder out, CharSequence value, int start, StringBuilder element,
+                                  int[] size) throws IOException {
+        int length = value.length();
+        if (start >= length || value.charAt(start) != '[') {
+            return -1;
+        }
+        append(out, "[");
+        int i = skipSpaces(value, start + 1);
+        int elements = 0;
+        if (i < length && value.charAt(i) == ']') {
+            append(out, "]");
+            i++;
+        } else {
+            while (true) {
+                i = writeElement(out, value, i, element);
+                if (i < 0) {
+                    return -1;
+                }
+                elements++;
+                i = skipSpaces(value, i);
+                if (i >= length) {
+                    return -1;
+                }
+                char c = value.charAt(i++);
+                if (c == ']') {
+                    append(out, "]");
+                    break;
+                } else if (c != ',') {
+                    return -1;
+                }
+                append(out, ",");
+                i = skipSpaces(value, i);
+            }
+        }
+        if (null != size) {
+            size[0] = elements;
+        }
+        return i;
+    }
+
+    private static int writeElement(StringBuilder out, CharSequence value, int start, StringBuilder element)
+            throws IOException {
+        int length = value.length();
+        if (start >= length) {
+            return -1;
+        }
+        char c = value.charAt(start);
+        if (c == '[') {
+            return writeArray(out, value, start, element, null);
+        }
+        if (c == '\'') {
+            element.setLength(0);
+            for (int i = start + 1; i < length; i++) {
+                c = value.charAt(i);
+                if (c == '\'') {
+                    if (null != out) {
+                        writeQuoted(out, element);
+                    }
+                    return i + 1;
+                } else if (c == '\\') {
+                    if (++i == length) {
+                        return -1;
+                    }
+                    element.append(unescape(value.charAt(i)));
+                } else {
+                    element.append(c);
+                }
+            }
+            return -1;
+        }
+        int end = start;
+        while (end < length && (c = value.charAt(end)) != ',' && c != ']' && c != ' ') {
+            end++;
+        }
+        CharSequence token = value.subSequence(start, end);
+        if (!"NULL".contentEquals(token) && !ColumnType.isNumber(token)) {
+            return -1;
+        }
+        append(out, token);
+        return end;
+    }
+
+    private static char unescape(char c) {
+        switch (c) {
+            case 'n': return '\n';
+            case 'r': return '\r';
+            case 't': return '\t';
+            case '0': return '\0';
+            default: return c;
+        }
+    }
+
+    private static int skipSpaces(CharSequence value, int i) {
+        while (i < value.length() && value.charAt(i) == ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    private static void append(StringBuilder out, CharSequence text) {
+        if (null != out) {
+            out.append(text);
+        }
+    }
+
+    public long getTypeConflicts() {
+        return typeConflicts;
+    }
+
+    /**
+     * @return time the last {@code encode} call spent in the sink, the rest was rendering
+     */
+    public long getLastSinkNanos() {
+        return sinkNanos;
+    }
+
+    public static void writeRow(Appendable out, List<String> values) {
+        try {
+            out.append('(');
+            for (int i = 0; i < values.size(); i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                writeQuoted(out, values.get(i));
+            }
+            out.append(')');
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    public static void writeQuoted(Appendable out, CharSequence value) throws IOException {
+        out.append('\'');
+        if (null != value) {
+            writeEscaped(out, value);
+        }
+        out.append('\'');
+    }
+
+    public static void writeEscaped(Appendable out, CharSequence value) throws IOException {
+        int length = value.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            char escaped;
+            switch (c) {
+                case '\'': escaped = '\''; break;
+                case '\\': escaped = '\\'; break;
+                case '\n': escaped = 'n'; break;
+                case '\r': escaped = 'r'; break;
+                case '\t': escaped = 't'; break;
+                case '\0': escaped = '0'; break;
+                default: continue;
+            }
+            out.append(value, start, i).append('\\').append(escaped);
+            start = i + 1;
+        }
+        out.append(value, start, length);
+    }
+}
@@ -0,0 +1,530 @@
+package com.oz.db.clickhouse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Flattens UTF-8 JSON messages straight into a {@link FlatBatch} in one pass, without building
+ * {@code Map}s first. Input is one object, a stream of objects as in {@code JSONEachRow}, or an
+ * array of objects; every object is one row.
+ * <p>
+ * Columns are named like {@link QueryFactory#flatten(List)} names them for the equivalent
+ * {@code Map}: a key maps to {@code columnPrefix + key}, an array of objects is a repeating
+ * group with a count column and one indexed column per key and element, or array columns if
+ * {@link QueryFactory#isArrayGroups()} is set. Strings are unescaped; numbers, {@code true} and
+ * {@code false} keep their JSON text; nested objects and arrays of scalars are stored as their
+ * JSON text. Null values are skipped.
+ * <p>
+ * Instances are not thread safe.
+ */
+public class JsonFlattener {
+
+    private static final int KEY_CACHE_SIZE = 1024;
+    private static final int MAX_CACHED_KEY = 32;
+
+    private final QueryFactory queryFactory;
+    private final StringBuilder chars = new StringBuilder();
+    private final byte[][] keyBytes = new byte[KEY_CACHE_SIZE][];
+    private final String[] keyStrings = new String[KEY_CACHE_SIZE];
+
+    private InputStream in;
+    private byte[] buffer;
+    private int pos;
+    private int limit;
+    private int mark = -1;
+    private long offset;
+
+    public JsonFlattener(QueryFactory queryFactory) {
+        this.queryFactory = queryFactory;
+    }
+
+    public FlatBatch flatten(byte[] json) throws IOException {
+        FlatBatch batch = new FlatBatch(queryFactory.getDictionary());
+        flatten(json, 0, json.length, batch);
+        return batch;
+    }
+
+    public FlatBatch flatten(ByteBuffer json) throws IOException {
+        FlatBatch batch = new FlatBatch(queryFactory.getDictionary());
+        if (json.hasArray()) {
+            flatten(json.array(), json.arrayOffset() + json.position(), json.arrayOffset() + json.limit(), batch);
+            json.position(json.limit());
+        } else {
+            flatten(new ByteBufferInputStream(json), batch);
+        }
+        return batch;
+    }
+
+    public FlatBatch flatten(InputStream json) throws IOException {
+        FlatBatch batch = new FlatBatch(queryFactory.getDictionary());
+        flatten(json, batch);
+        return batch;
+    }
+
+    /**
+     * Appends the rows of {@code json[from, to)} to the batch.
+     *
+     * @return number of rows added
+     */
+    public int flatten(byte[] json, int from, int to, FlatBatch batch) throws IOException {
+        reset(null, json, from, to);
+        return parseRows(batch);
+    }
+
+    /**
+     * Appends the rows read from the stream to the batch; the stream is not closed.
+     *
+     * @return number of rows added
+     */
+    public int flatten(InputStream json, FlatBatch batch) throws IOException {
+        reset(json, new byte[8192], 0, 0);
+        try {
+            return parseRows(batch);
+        } finally {
+            reset(null, null, 0, 0);
+        }
+    }
+
+    private void reset(InputStream in, byte[] buffer, int from, int to) {
+        this.in = in;
+        this.buffer = buffer;
+        this.pos = from;
+        this.limit = to;
+        this.mark = -1;
+        this.offset = -from;
+    }
+
+    private int parseRows(FlatBatch batch) throws IOException {
+        ColumnPathCache.Scope root = queryFactory.getPathCache().root(batch.getDictionary());
+        int rows = 0;
+        int c = skipWhitespace();
+        boolean array = c == '[';
+        if (array) {
+            pos++;
+            c = skipWhitespace();
+        }
+        while (c >= 0) {
+            if (array && c == ']') {
+                pos++;
+                array = false;
+            } else if (c == ',' && (array || rows > 0)) {
+                pos++;
+            } else {
+                expect('{');
+                parseObject(root, batch);
+                batch.endRow();
+                rows++;
+            }
+            c = skipWhitespace();
+        }
+        if (array) {
+            throw error("Unterminated array");
+        }
+        return rows;
+    }
+
+    private void parseObject(ColumnPathCache.Scope scope, FlatBatch batch) throws IOException {
+        int c = skipWhitespace();
+        if (c == '}') {
+            pos++;
+            return;
+        }
+        while (true) {
+            expect('"');
+            ColumnPathCache.Column column = scope.column(readKey());
+            skipWhitespace();
+            expect(':');
+            parseValue(column, batch);
+            c = skipWhitespace();
+            if (c != ',' && c != '}') {
+                throw error("Expected ',' or '}'");
+            }
+            pos++;
+            if (c == '}') {
+                return;
+            }
+            skipWhitespace();
+        }
+    }
+
+    private void parseValue(ColumnPathCache.Column column, FlatBatch batch) throws IOException {
+        int c = skipWhitespace();
+        switch (c) {
+            case '"':
+                pos++;
+                batch.add(column.getIndex(), readString());
+                break;
+            case '[':
+                parseArray(column, batch);
+                break;
+            case '{':
+                batch.add(column.getIndex(), readRaw());
+                break;
+            case 'n':
+                readLiteral();
+                break;
+            case -1:
+                throw error("Unexpected end of input");
+            default:
+                batch.add(column.getIndex(), readLiteral());
+        }
+    }
+
+    private void parseArray(ColumnPathCache.Column column, FlatBatch batch) throws IOException {
+        mark = pos;
+        pos++;
+        int c = skipWhitespace();
+        if (c != '{' && c != ']') {
+            pos = mark;
+            batch.add(column.getIndex(), readRaw());
+            return;
+        }
+        mark = -1;
+        if (queryFactory.isArrayGroups()) {
+            List<Map<String, Object>> elements = new ArrayList<>();
+            while (skipWhitespace() != ']') {
+                expect('{');
+                elements.add(readObject());
+                if (skipWhitespace() == ',') {
+                    pos++;
+                }
+            }
+            pos++;
+            queryFactory.addArrays(elements, column, batch);
+            return;
+        }
+        int countCell = batch.getCellCount();
+        batch.add(column.getIndex(), null);
+        int number = 0;
+        while (skipWhitespace() != ']') {
+            expect('{');
+            parseObject(column.group(++number), batch);
+            c = skipWhitespace();
+            if (c == ',') {
+                pos++;
+            } else if (c != ']') {
+                throw error("Expected ',' or ']'");
+            }
+        }
+        pos++;
+        batch.setCellValue(countCell, QueryFactory.countValue(number));
+    }
+
+    /**
+     * Reads an object as a map for array groups, with the same value rules as the flat path.
+     */
+    private Map<String, Object> readObject() throws IOException {
+        Map<String, Object> map = new LinkedHashMap<>();
+        int c = skipWhitespace();
+        if (c == '}') {
+            pos++;
+            return map;
+        }
+        while (true) {
+            expect('"');
+            String key = readKey();
+            skipWhitespace();
+            expect(':');
+            c = skipWhitespace();
+            if (c == '"') {
+                pos++;
+                map.put(key, readString());
+            } else if (c == '{') {
+                map.put(key, readRaw());
+            } else if (c == '[') {
+                mark = pos;
+                pos++;
+                int first = skipWhitespace();
+                if (first == '{' || first == ']') {
+                    mark = -1;
+                    List<Map<String, Object>> elements = new ArrayList<>();
+                    while (skipWhitespace() != ']') {
+                        expect('{');
+                        elements.add(readObject());
+                        if (skipWhitespace() == ',') {
+                            pos++;
+                        }
+                    }
+                    pos++;
+                    map.put(key, elements);
+                } else {
+                    pos = mark;
+                    map.put(key, readRaw());
+                }
+            } else if (c == 'n') {
+                readLiteral();
+            } else {
+                map.put(key, readLiteral());
+            }
+            c = skipWhitespace();
+            if (c != ',' && c != '}') {
+                throw error("Expected ',' or '}'");
+            }
+            pos++;
+            if (c == '}') {
+                return map;
+            }
+            skipWhitespace();
+        }
+    }
+
+    private String readKey() throws IOException {
+        int start = pos;
+        int hash = 0;
+        for (int i = start; i < limit && i - start <= MAX_CACHED_KEY; i++) {
+            byte b = buffer[i];
+            if (b == '"') {
+                int length = i - start;
+                int slot = (hash ^ (hash >>> 16)) & (KEY_CACHE_SIZE - 1);
+                byte[] cached = keyBytes[slot];
+                if (null == cached || !Arrays.equals(cached, 0, cached.length, buffer, start, i)) {
+                    keyBytes[slot] = Arrays.copyOfRange(buffer, start, i);
+                    keyStrings[slot] = new String(buffer, start, length, StandardCharsets.ISO_8859_1);
+                }
+                pos = i + 1;
+                return keyStrings[slot];
+            } else if (b == '\\' || b < 0) {
+                break;
+            }
+            hash = hash * 31 + b;
+        }
+        return readString();
+    }
+
+    /**
+     * Reads the rest of a string after the opening quote.
+     */
+    private String readString() throws IOException {
+        for (int i = pos; i < limit; i++) {
+            byte b = buffer[i];
+            if (b == '"') {
+                String value = new String(buffer, pos, i - pos, StandardCharsets.ISO_8859_1);
+                pos = i + 1;
+                return value;
+            } else if (b == '\\' || b < 0) {
+                break;
+            }
+        }
+        chars.setLength(0);
+        while (true) {
+            int b = read();
+            if (b < 0) {
+                throw error("Unterminated string");
+            } else if (b == '"') {
+                return chars.toString();
+            } else if (b == '\\') {
+                readEscape();
+            } else if (b < 0x80) {
+                chars.append((char) b);
+            } else {
+                readUtf8(b);
+            }
+        }
+    }
+
+    private void readEscape() throws IOException {
+        int c = read();
+        switch (c) {
+            case '"':
+            case '\\':
+            case '/':
+                chars.append((char) c);
+                break;
+            case 'b':
+                chars.append('\b');
+                break;
+            case 'f':
+                chars.append('\f');
+                break;
+            case 'n':
+                chars.append('\n');
+                break;
+            case 'r':
+                chars.append('\r');
+                break;
+            case 't':
+                chars.append('\t');
+                break;
+            case 'u':
+                int code = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(read(), 16);
+                    if (digit < 0) {
+                        throw error("Invalid unicode escape");
+                    }
+                    code = code * 16 + digit;
+                }
+                chars.append((char) code);
+                break;
+            default:
+                throw error("Invalid escape");
+        }
+    }
+
+    private void readUtf8(int first) throws IOException {
+        int extra;
+        int code;
+        if ((first & 0xE0) == 0xC0) {
+            extra = 1;
+            code = first & 0x1F;
+        } else if ((first & 0xF0) == 0xE0) {
+            extra = 2;
+            code = first & 0x0F;
+        } else if ((first & 0xF8) == 0xF0) {
+            extra = 3;
+            code = first & 0x07;
+        } else {
+            throw error("Invalid UTF-8");
+        }
+        for (int i = 0; i < extra; i++) {
+            int b = read();
+            if ((b & 0xC0) != 0x80) {
+                throw error("Invalid UTF-8");
+            }
+            code = (code << 6) | (b & 0x3F);
+        }
+        chars.appendCodePoint(code);
+    }
+
+    /**
+     * Reads a number, {@code true}, {@code false} or {@code null}.
+     */
+    private String readLiteral() throws IOException {
+        mark = pos;
+        int c;
+        while ((c = peek()) >= 0 && c != ',' && c != '}' && c != ']' && !isWhitespace(c)) {
+            pos++;
+        }
+        String value = sinceMark();
+        if (value.isEmpty()) {
+            throw error("Expected a value");
+        }
+        return value;
+    }
+
+    /**
+     * Reads an object or array as its JSON text.
+     */
+    private String readRaw() throws IOException {
+        if (mark < 0) {
+            mark = pos;
+        }
+        int depth = 0;
+        boolean quoted = false;
+        while (true) {
+            int c = read();
+            if (c < 0) {
+                throw error("Unexpected end of input");
+            } else if (quoted) {
+                if (c == '\\') {
+                    read();
+                } else if (c == '"') {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if ((c == '}' || c == ']') && --depth == 0) {
+                return sinceMark();
+            }
+        }
+    }
+
+    private String sinceMark() {
+        String value = new String(buffer, mark, pos - mark, StandardCharsets.UTF_8);
+        mark = -1;
+        return value;
+    }
+
+    private void expect(char expected) throws IOException {
+        int c = read();
+        if (c != expected) {
+            throw error("Expected '" + expected + "'");
+        }
+    }
+
+    private int skipWhitespace() throws IOException {
+        int c;
+        while (isWhitespace(c = peek())) {
+            pos++;
+        }
+        return c;
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+
+    private int peek() throws IOException {
+        if (pos == limit && !fill()) {
+            return -1;
+        }
+        return buffer[pos] & 0xFF;
+    }
+
+    private int read() throws IOException {
+        if (pos == limit && !fill()) {
+            return -1;
+        }
+        return buffer[pos++] & 0xFF;
+    }
+
+    /**
+     * Reads more input, keeping the bytes from the mark on.
+     */
+    private boolean fill() throws IOException {
+        if (null == in) {
+            return false;
+        }
+        int keep = mark >= 0 ? mark : pos;
+        if (keep > 0) {
+            System.arraycopy(buffer, keep, buffer, 0, limit - keep);
+            limit -= keep;
+            pos -= keep;
+            offset += keep;
+            if (mark >= 0) {
+                mark = 0;
+            }
+        }
+        if (limit == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        int n = in.read(buffer, limit, buffer.length - limit);
+        if (n <= 0) {
+            return false;
+        }
+        limit += n;
+        return true;
+    }
+
+    private IOException error(String message) {
+        return new IOException(message + " at offset " + (offset + pos));
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+    }
+}
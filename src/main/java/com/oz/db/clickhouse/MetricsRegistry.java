@@ -0,0 +1,51 @@
+package com.oz.db.clickhouse;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Source of the counters and timers the library records into. Implement it to forward the
+ * metrics to an existing monitoring system; {@link SimpleMetricsRegistry} keeps them in memory.
+ * <p>
+ * Metrics are looked up once when a helper is configured, so implementations may allocate in
+ * {@link #counter} and {@link #timer} but recording must not.
+ */
+public interface MetricsRegistry {
+
+    Counter counter(String name, String table);
+
+    Timer timer(String name, String table);
+
+    /**
+     * Registers a value that is read when the metrics are reported; ignored by default.
+     */
+    default void gauge(String name, String table, LongSupplier value) {
+    }
+
+    interface Counter {
+
+        void add(long amount);
+
+        default void increment() {
+            add(1);
+        }
+
+        long get();
+    }
+
+    interface Timer {
+
+        void record(long nanos);
+
+        long getCount();
+
+        long getTotalNanos();
+
+        long getMaxNanos();
+
+        /**
+         * @param quantile from 0 to 1
+         * @return upper bound of the recorded durations below which this quantile falls
+         */
+        long getPercentileNanos(double quantile);
+    }
+}
@@ -0,0 +1,99 @@
+package com.oz.db.clickhouse;
+
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Types;
+import java.util.List;
+
+/**
+ * SQL text and parameter binding of {@code insert into ... values (?, ...)} statements.
+ * Values are bound with the setter of their column type and follow the same rules as
+ * {@link InsertEncoder#writeValue}: missing values of a numeric or date column are bound as
+ * NULL, or as zero if the column is not nullable, and values that do not fit are bound as
+ * strings for the server to reject.
+ */
+public final class PreparedInsert {
+
+    private PreparedInsert() {
+    }
+
+    public static String sql(String tableName, List<String> columns) {
+        StringBuilder sql = new StringBuilder();
+        InsertEncoder.writeHeader(sql, tableName, columns);
+        sql.append('(');
+        for (int i = 0; i < columns.size(); i++) {
+            sql.append(i > 0 ? ",?" : "?");
+        }
+        return sql.append(')').toString();
+    }
+
+    /**
+     * @param types value types by position, null to bind every value as a string
+     * @return number of present values that did not fit their column type
+     */
+    public static int bindRow(PreparedStatement statement, String[] values, ColumnType[] types) throws SQLException {
+        int conflicts = 0;
+        for (int i = 0; i < values.length; i++) {
+            ColumnType type = null == types ? ColumnType.STRING : types[i];
+            if (!bindValue(statement, i + 1, values[i], type)) {
+                conflicts++;
+            }
+        }
+        return conflicts;
+    }
+
+    private static boolean bindValue(PreparedStatement statement, int index, String value, ColumnType type)
+            throws SQLException {
+        if (type.isArray()) {
+            throw new SQLFeatureNotSupportedException("Array columns are inserted as VALUES only");
+        }
+        if (!type.isNumeric() && !type.isTemporal()) {
+            if (null == value && type.isNullable()) {
+                statement.setNull(index, Types.VARCHAR);
+            } else {
+                statement.setString(index, null == value ? "" : value);
+            }
+            return true;
+        }
+        if (null == value) {
+            if (type.isNullable()) {
+                statement.setNull(index, type.isNumeric() ? Types.NUMERIC : Types.TIMESTAMP);
+            } else if (type.isNumeric()) {
+                statement.setLong(index, 0);
+            } else {
+                statement.setString(index, "1970-01-01 00:00:00");
+            }
+        } else if (!type.accepts(value)) {
+            statement.setString(index, value);
+            return false;
+        } else {
+            switch (type) {
+                case INT64:
+                case NULLABLE_INT64:
+                    statement.setLong(index, Long.parseLong(value));
+                    break;
+                case UINT64:
+                case NULLABLE_UINT64:
+                    if (ColumnType.isInteger(value, true)) {
+                        statement.setLong(index, Long.parseLong(value));
+                    } else {
+                        statement.setBigDecimal(index, new BigDecimal(value));
+                    }
+                    break;
+                case FLOAT64:
+                case NULLABLE_FLOAT64:
+                    statement.setDouble(index, Double.parseDouble(value));
+                    break;
+                case DATETIME64:
+                case NULLABLE_DATETIME64:
+                    statement.setString(index, value.replace('T', ' '));
+                    break;
+                default:
+                    statement.setString(index, value);
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,103 @@
+package com.oz.db.clickhouse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Prepared statements of one connection by SQL text, closing the least recently used one
+ * when there are more than {@code maxSize}. Statements prepared for an older schema version
+ * are all closed on the first lookup with a newer one.
+ */
+public class PreparedStatementCache implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PreparedStatementCache.class);
+
+    public static final int DEFAULT_MAX_SIZE = 64;
+
+    private final Connection connection;
+    private final int maxSize;
+    private final LinkedHashMap<String, PreparedStatement> statements = new LinkedHashMap<>(16, 0.75f, true);
+    private long schemaVersion;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public PreparedStatementCache(Connection connection, int maxSize) {
+        this.connection = connection;
+        this.maxSize = maxSize;
+    }
+
+    public synchronized PreparedStatement get(String sql, long schemaVersion) throws SQLException {
+        if (schemaVersion != this.schemaVersion) {
+            closeAll();
+            this.schemaVersion = schemaVersion;
+        }
+        PreparedStatement statement = statements.get(sql);
+        if (null != statement) {
+            hits++;
+            return statement;
+        }
+        misses++;
+        statement = connection.prepareStatement(sql);
+        statements.put(sql, statement);
+        if (statements.size() > maxSize) {
+            Iterator<PreparedStatement> eldest = statements.values().iterator();
+            closeQuietly(eldest.next());
+            eldest.remove();
+            evictions++;
+        }
+        return statement;
+    }
+
+    /**
+     * Closes the statement after it failed, the next lookup prepares it again.
+     */
+    public synchronized void invalidate(String sql) {
+        PreparedStatement statement = statements.remove(sql);
+        if (null != statement) {
+            closeQuietly(statement);
+        }
+    }
+
+    private void closeAll() {
+        for (PreparedStatement statement : statements.values()) {
+            closeQuietly(statement);
+        }
+        statements.clear();
+    }
+
+    private static void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException ex) {
+            LOG.warn("could not close prepared statement", ex);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closeAll();
+    }
+
+    public synchronized int size() {
+        return statements.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+}
@@ -3,42 +3,91 @@ package com.oz.db.clickhouse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.SQLException;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 public class QueryFactory {
 
     private static final Logger LOG = LoggerFactory.getLogger(QueryFactory.class);
 
+    private static final String[] COUNTS = new String[256];
+
+    static {
+        for (int i = 0; i < COUNTS.length; i++) {
+            COUNTS[i] = String.valueOf(i);
+        }
+    }
+
     private final String columnPrefix;
+    private final ColumnPathCache pathCache;
+
+    private volatile boolean arrayGroups;
+    private volatile int parallelThreshold;
+    private volatile ForkJoinPool forkJoinPool = ForkJoinPool.commonPool();
 
     public QueryFactory(String columnPrefix) {
+        this(columnPrefix, ColumnPathCache.DEFAULT_MAX_ENTRIES);
+    }
+
+    public QueryFactory(String columnPrefix, int maxCachedPaths) {
         this.columnPrefix = columnPrefix;
+        this.pathCache = new ColumnPathCache(columnPrefix, maxCachedPaths);
     }
 
     public String createInsert(List<Map<String, Object>> dataListOfMap, String tableName) {
-        List<String> columns = new ArrayList<>();
-        List<Map<String, String>> valuesWithColumns = new ArrayList<>();
-        getColumnsAndValuesForBulk(dataListOfMap, columns, valuesWithColumns);
+        FlatBatch batch = flatten(dataListOfMap);
+
+        StringBuilder query = new StringBuilder();
+        InsertEncoder.writeInsert(query, tableName, batch, arrayGroups ? arrayTypes(batch) : null);
+        return query.toString();
+    }
 
-        List<List<String>> fulfilledValuesList = getFulfilledValues(valuesWithColumns, columns);
+    private static ColumnType[] arrayTypes(FlatBatch batch) {
+        ColumnType[] types = new ColumnType[batch.getColumnCount()];
+        for (int i = 0; i < types.length; i++) {
+            boolean array = batch.getDictionary().arrayDepth(batch.getColumnIndex(i)) > 0;
+            types[i] = array ? ColumnType.ARRAY : ColumnType.STRING;
+        }
+        return types;
+    }
 
-        return generateInsert(fulfilledValuesList, columns, tableName);
+    public int writeInsert(List<Map<String, Object>> dataListOfMap,
+                           String tableName,
+                           InsertEncoder encoder,
+                           InsertEncoder.StatementSink sink) throws SQLException {
+        FlatBatch batch = flatten(dataListOfMap);
 
+        return encoder.encode(tableName, batch, sink);
     }
 
     public String generateInsert(List<List<String>> values,
                                  List<String> columns,
                                  String tableName) {
-        String strValues = values.stream()
-                .map(list -> list.stream()
-                        .map(x -> "'" + x + "'")
-                        .collect(Collectors.joining(",", "(", ")")))
-                .collect(Collectors.joining(""));
-        String strColumns = String.join(",", columns);
+        StringBuilder query = new StringBuilder();
+        InsertEncoder.writeHeader(query, tableName, columns);
+        for (List<String> row : values) {
+            InsertEncoder.writeRow(query, row);
+        }
+        return query.toString();
+    }
+
+    public String getColumnPrefix() {
+        return columnPrefix;
+    }
 
-        String query = "insert into " + tableName + " ( " + strColumns + " ) values " + strValues;
-        return query;
+    /**
+     * @return dictionary of the current column path trie; it is replaced when the trie is dropped
+     */
+    public ColumnDictionary getDictionary() {
+        return pathCache.getDictionary();
+    }
+
+    ColumnPathCache getPathCache() {
+        return pathCache;
     }
 
     public List<List<String>> getFulfilledValues(List<Map<String, String>> dataListOfMap,
@@ -61,57 +110,199 @@ public class QueryFactory {
     }
 
     private void prepareColumnsAndValues(Map<String, Object> dataMap,
-                                         String postfix,
-                                         List<String> columns,
-                                         Map<String, String> valuesWithColumns) {
-        dataMap.forEach((k, v) -> {
-            String columnName = columnPrefix + k + postfix;
-            if (!columns.contains(columnName)) {
-                columns.add(columnName);
-            }
-            String columnValue;
-            if (v instanceof List) {
+                                         ColumnPathCache.Scope scope,
+                                         FlatBatch batch) {
+        for (Map.Entry<String, Object> entry : dataMap.entrySet()) {
+            ColumnPathCache.Column column = scope.column(entry.getKey());
+            Object v = entry.getValue();
+            if (v instanceof List && arrayGroups) {
+                addArrays((List<?>) v, column, batch);
+            } else if (v instanceof List) {
                 List<Map<String, Object>> vGroups = (List<Map<String, Object>>) v;
-                columnValue = String.valueOf(vGroups.size());
+                batch.add(column.getIndex(), countValue(vGroups.size()));
                 for (int i = 1; i <= vGroups.size(); i++) {
-                    prepareColumnsAndValues(vGroups.get(i - 1), postfix + "_" + i, columns, valuesWithColumns);
+                    prepareColumnsAndValues(vGroups.get(i - 1), column.group(i), batch);
                 }
             } else {
-                columnValue = v.toString();
+                batch.add(column.getIndex(), v.toString());
             }
+        }
+    }
 
-            valuesWithColumns.put(columnName, columnValue);
-        });
+    void addArrays(List<?> elements, ColumnPathCache.Column group, FlatBatch batch) {
+        ColumnPathCache.Scope scope = group.elements();
+        Map<ColumnPathCache.Column, String[]> arrays = new LinkedHashMap<>();
+        collectArrays(elements, scope, arrays);
+        StringBuilder literal = new StringBuilder();
+        for (Map.Entry<ColumnPathCache.Column, String[]> entry : arrays.entrySet()) {
+            literal.setLength(0);
+            writeArray(literal, entry.getValue(), entry.getKey().getArrayDepth() > scope.getArrayDepth());
+            batch.add(entry.getKey().getIndex(), literal.toString());
+        }
+    }
+
+    /**
+     * Collects the literals of every column of the group elements by element number. Columns of
+     * nested groups get one array literal per element of this group.
+     */
+    private void collectArrays(List<?> elements,
+                               ColumnPathCache.Scope scope,
+                               Map<ColumnPathCache.Column, String[]> arrays) {
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < elements.size(); i++) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) elements.get(i)).entrySet()) {
+                ColumnPathCache.Column column = scope.column(entry.getKey().toString());
+                Object v = entry.getValue();
+                if (v instanceof List) {
+                    ColumnPathCache.Scope nested = column.elements();
+                    Map<ColumnPathCache.Column, String[]> inner = new LinkedHashMap<>();
+                    collectArrays((List<?>) v, nested, inner);
+                    for (Map.Entry<ColumnPathCache.Column, String[]> array : inner.entrySet()) {
+                        literal.setLength(0);
+                        writeArray(literal, array.getValue(), array.getKey().getArrayDepth() > nested.getArrayDepth());
+                        arrays.computeIfAbsent(array.getKey(), x -> new String[elements.size()])[i] = literal.toString();
+                    }
+                } else {
+                    literal.setLength(0);
+                    try {
+                        InsertEncoder.writeQuoted(literal, v.toString());
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                    arrays.computeIfAbsent(column, x -> new String[elements.size()])[i] = literal.toString();
+                }
+            }
+        }
+    }
+
+    private static void writeArray(StringBuilder out, String[] items, boolean nested) {
+        out.append('[');
+        for (int i = 0; i < items.length; i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            out.append(null != items[i] ? items[i] : nested ? "[]" : "''");
+        }
+        out.append(']');
+    }
+
+    static String countValue(int count) {
+        return count < COUNTS.length ? COUNTS[count] : String.valueOf(count);
+    }
+
+    public FlatBatch flatten(List<Map<String, Object>> mapList) {
+        int threshold = parallelThreshold;
+        ColumnPathCache.Scope root = pathCache.root();
+        if (threshold > 0 && mapList.size() > threshold) {
+            return forkJoinPool.invoke(new FlattenTask(mapList, 0, mapList.size(), threshold, root));
+        }
+        return flatten(mapList, 0, mapList.size(), root);
+    }
+
+    private FlatBatch flatten(List<Map<String, Object>> mapList, int from, int to, ColumnPathCache.Scope root) {
+        FlatBatch batch = new FlatBatch(root.getDictionary());
+        for (int i = from; i < to; i++) {
+            prepareColumnsAndValues(mapList.get(i), root, batch);
+            batch.endRow();
+        }
+        return batch;
+    }
+
+    @SuppressWarnings("serial")
+    private class FlattenTask extends RecursiveTask<FlatBatch> {
+        private final List<Map<String, Object>> mapList;
+        private final int from;
+        private final int to;
+        private final int threshold;
+        private final ColumnPathCache.Scope root;
+
+        private FlattenTask(List<Map<String, Object>> mapList, int from, int to, int threshold,
+                            ColumnPathCache.Scope root) {
+            this.mapList = mapList;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+            this.root = root;
+        }
+
+        @Override
+        protected FlatBatch compute() {
+            if (to - from <= threshold) {
+                return flatten(mapList, from, to, root);
+            }
+            int middle = (from + to) >>> 1;
+            FlattenTask right = new FlattenTask(mapList, middle, to, threshold, root);
+            right.fork();
+            FlatBatch batch = new FlattenTask(mapList, from, middle, threshold, root).compute();
+            batch.append(right.join());
+            return batch;
+        }
+    }
+
+    /**
+     * Batches with more rows than the threshold are flattened in slices of at most that many
+     * rows on the fork/join pool. The result is the same as flattening sequentially.
+     *
+     * @param parallelThreshold rows per slice, 0 to always flatten on the calling thread
+     */
+    public void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * Stores repeating groups as arrays: every tag of a group becomes one {@code Array} column
+     * named {@code col_2.col_21}, like a {@code Nested} column, holding the tag's value of every
+     * element in order. Elements without the tag get an empty string, and rows without it get
+     * as many empty strings as the group has elements when the insert is written, so the arrays
+     * of a group stay aligned. Nested groups add one {@code Array} level. The number of columns then
+     * depends only on the distinct tags, not on how often a group repeats.
+     */
+    public void setArrayGroups(boolean arrayGroups) {
+        this.arrayGroups = arrayGroups;
+    }
+
+    public boolean isArrayGroups() {
+        return arrayGroups;
+    }
+
+    public void setForkJoinPool(ForkJoinPool forkJoinPool) {
+        this.forkJoinPool = forkJoinPool;
     }
 
     public void getColumnsAndValuesForBulk(List<Map<String, Object>> mapList,
                                            List<String> columns,
                                            List<Map<String, String>> values) {
-        mapList.forEach(map -> {
-            Map<String, String> singleMsgValues = new HashMap<>();
-            prepareColumnsAndValues(map, "", columns, singleMsgValues);
-            values.add(singleMsgValues);
-        });
+        FlatBatch batch = flatten(mapList);
+        columns.addAll(batch.getColumnNames());
+        for (int row = 0; row < batch.getRowCount(); row++) {
+            values.add(batch.getRow(row));
+        }
     }
 
     public Collection<String> getColumnsForBulk(List<Map<String, Object>> dataLitOfMap) {
         Set<String> columns = new HashSet<>();
-        dataLitOfMap.forEach(map -> getColumnsForOneRow(map, "", columns));
+        dataLitOfMap.forEach(map -> getColumnsForOneRow(map, pathCache.root(), columns));
         return columns;
     }
 
-    private void getColumnsForOneRow(Map<String, Object> data, String postfix, Set<String> columns) {
-        data.forEach((k, v) -> {
-            if (v instanceof List) {
-                columns.add(columnPrefix + k + postfix);
-                List<Map<String, Object>> vGroups = (List<Map<String, Object>>) v;
+    private void getColumnsForOneRow(Map<String, Object> data, ColumnPathCache.Scope scope, Set<String> columns) {
+        for (Map.Entry<String, Object> entry : data.entrySet()) {
+            ColumnPathCache.Column column = scope.column(entry.getKey());
+            boolean group = entry.getValue() instanceof List;
+            if (!group || !arrayGroups) {
+                columns.add(column.getName());
+            }
+            if (group) {
+                List<Map<String, Object>> vGroups = (List<Map<String, Object>>) entry.getValue();
                 for (int i = 1; i <= vGroups.size(); i++) {
-                    getColumnsForOneRow(vGroups.get(i - 1), postfix + "_" + i, columns);
+                    getColumnsForOneRow(vGroups.get(i - 1), arrayGroups ? column.elements() : column.group(i), columns);
                 }
-            } else {
-                columns.add(columnPrefix + k + postfix);
             }
-        });
+        }
     }
 
 }
@@ -0,0 +1,131 @@
+package com.oz.db.clickhouse;
+
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.function.Predicate;
+
+/**
+ * How often and how soon a failed insert is sent again. Only errors accepted by the retry
+ * predicate are retried; by default these are transient JDBC errors, network errors, timeouts
+ * and server overload such as too many parts.
+ */
+public class RetryPolicy {
+
+    public static final RetryPolicy NONE = builder().maxAttempts(1).build();
+
+    private static final String[] TRANSIENT_MESSAGES = {
+            "Connection refused", "Connection reset", "timed out", "Timeout",
+            "Code: 159.", "Code: 202.", "Code: 209.", "Code: 210.", "Code: 241.", "Code: 252."
+    };
+
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final Predicate<SQLException> retryOn;
+
+    private RetryPolicy(Builder builder) {
+        this.maxAttempts = builder.maxAttempts;
+        this.initialBackoffMillis = builder.initialBackoffMillis;
+        this.maxBackoffMillis = builder.maxBackoffMillis;
+        this.retryOn = builder.retryOn;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static boolean isTransient(SQLException ex) {
+        if (ex instanceof SQLTransientException || ex instanceof SQLRecoverableException) {
+            return true;
+        }
+        for (Throwable t = ex; null != t; t = t.getCause()) {
+            String message = t.getMessage();
+            if (null != message) {
+                for (String transientMessage : TRANSIENT_MESSAGES) {
+                    if (message.contains(transientMessage)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the server error code from a {@code Code: N.} message of the exception or its
+     * causes, else the vendor code of the exception
+     */
+    public static int errorCode(SQLException ex) {
+        for (Throwable t = ex; null != t; t = t.getCause()) {
+            String message = t.getMessage();
+            int start = null == message ? -1 : message.indexOf("Code: ");
+            if (start >= 0) {
+                int end = start += "Code: ".length();
+                while (end < message.length() && Character.isDigit(message.charAt(end))) {
+                    end++;
+                }
+                if (end > start) {
+                    return Integer.parseInt(message.substring(start, end));
+                }
+            }
+        }
+        return ex.getErrorCode();
+    }
+
+    public boolean isRetryable(SQLException ex) {
+        return retryOn.test(ex);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @param attempt number of the failed attempt, starting with 1
+     */
+    public long backoffMillis(int attempt) {
+        long backoff = initialBackoffMillis << Math.min(attempt - 1, 30);
+        return Math.min(backoff, maxBackoffMillis);
+    }
+
+    public static class Builder {
+        private int maxAttempts = 3;
+        private long initialBackoffMillis = 100;
+        private long maxBackoffMillis = 10_000;
+        private Predicate<SQLException> retryOn = RetryPolicy::isTransient;
+
+        private Builder() {
+        }
+
+        /**
+         * Number of attempts including the first one.
+         */
+        public Builder maxAttempts(int maxAttempts) {
+            this.maxAttempts = maxAttempts;
+            return this;
+        }
+
+        /**
+         * Backoff after the first failure, doubled after every next one.
+         */
+        public Builder initialBackoffMillis(long initialBackoffMillis) {
+            this.initialBackoffMillis = initialBackoffMillis;
+            return this;
+        }
+
+        public Builder maxBackoffMillis(long maxBackoffMillis) {
+            this.maxBackoffMillis = maxBackoffMillis;
+            return this;
+        }
+
+        public Builder retryOn(Predicate<SQLException> retryOn) {
+            this.retryOn = retryOn;
+            return this;
+        }
+
+        public RetryPolicy build() {
+            return new RetryPolicy(this);
+        }
+    }
+}
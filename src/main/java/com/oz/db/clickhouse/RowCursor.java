@@ -0,0 +1,287 @@
+package com.oz.db.clickhouse;
+
+import java.sql.Array;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+
+/**
+ * Rows read back from a hoarded table as the nested maps that were inserted, one row at a time.
+ * Group counts bound the elements read, so columns of elements that other rows have are ignored.
+ * Values come back as strings; empty values and empty groups are left out, since the table cannot
+ * tell them from absent ones.
+ * <pre>
+ * try (RowCursor cursor = helper.select(List.of("1", "2"), "date = today()")) {
+ *     while (cursor.next()) {
+ *         Map&lt;String, Object&gt; row = cursor.get();
+ *     }
+ * }
+ * </pre>
+ * The cursor holds a pooled connection until it is closed.
+ */
+public class RowCursor implements AutoCloseable {
+
+    private static final int[] NO_PATH = new int[0];
+
+    private final ClickhouseConnectionPool.PooledConnection pooled;
+    private final Statement statement;
+    private final ResultSet resultSet;
+    private final String columnPrefix;
+    private final RowLayout layout;
+    private final boolean arrayGroups;
+    private final Map<String, Integer> positions = new HashMap<>();
+    private final Object[] values;
+
+    private Map<String, Object> current;
+    private long rowCount;
+
+    RowCursor(ClickhouseConnectionPool.PooledConnection pooled, Statement statement, ResultSet resultSet,
+              String columnPrefix, RowLayout layout, boolean arrayGroups, List<String> columns) {
+        this.pooled = pooled;
+        this.statement = statement;
+        this.resultSet = resultSet;
+        this.columnPrefix = columnPrefix;
+        this.layout = layout;
+        this.arrayGroups = arrayGroups;
+        for (String column : columns) {
+            positions.put(column, positions.size());
+        }
+        this.values = new Object[columns.size()];
+    }
+
+    /**
+     * Moves to the next row.
+     *
+     * @return false if there are no more rows
+     */
+    public boolean next() throws SQLException {
+        if (!resultSet.next()) {
+            current = null;
+            return false;
+        }
+        for (int i = 0; i < values.length; i++) {
+            values[i] = arrayGroups ? toList(resultSet.getObject(i + 1)) : resultSet.getString(i + 1);
+        }
+        current = arrayGroups ? buildFromArrays(layout, "", NO_PATH) : build(layout, "");
+        rowCount++;
+        return true;
+    }
+
+    /**
+     * @return the current row
+     */
+    public Map<String, Object> get() {
+        if (null == current) {
+            throw new NoSuchElementException();
+        }
+        return current;
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Closes the result set and the statement and returns the connection to the pool, even if
+     * closing the others fails.
+     */
+    @Override
+    public void close() throws SQLException {
+        SQLException error = null;
+        try {
+            resultSet.close();
+        } catch (SQLException ex) {
+            error = ex;
+        }
+        try {
+            statement.close();
+        } catch (SQLException ex) {
+            if (null == error) {
+                error = ex;
+            } else {
+                error.addSuppressed(ex);
+            }
+        }
+        pooled.close();
+        if (null != error) {
+            throw error;
+        }
+    }
+
+    private Map<String, Object> build(RowLayout layout, String postfix) {
+        Map<String, Object> row = new LinkedHashMap<>();
+        for (String tag : layout.getTags()) {
+            Object value = value(columnPrefix + tag + postfix);
+            RowLayout group = layout.getGroup(tag);
+            if (null == group) {
+                if (isPresent(value)) {
+                    row.put(tag, value.toString());
+                }
+                continue;
+            }
+            int count = isPresent(value) ? Integer.parseInt(value.toString()) : 0;
+            if (count > 0) {
+                List<Map<String, Object>> elements = new ArrayList<>(count);
+                for (int n = 1; n <= count; n++) {
+                    elements.add(build(group, postfix + "_" + n));
+                }
+                row.put(tag, elements);
+            }
+        }
+        return row;
+    }
+
+    /**
+     * @param path element numbers, starting with 0, of the enclosing groups
+     */
+    private Map<String, Object> buildFromArrays(RowLayout layout, String namePrefix, int[] path) {
+        Map<String, Object> row = new LinkedHashMap<>();
+        for (String tag : layout.getTags()) {
+            String name = namePrefix + columnPrefix + tag;
+            RowLayout group = layout.getGroup(tag);
+            if (null == group) {
+                Object value = element(value(name), path);
+                if (isPresent(value)) {
+                    row.put(tag, value.toString());
+                }
+                continue;
+            }
+            int count = length(group, name + ".", path);
+            if (count > 0) {
+                List<Map<String, Object>> elements = new ArrayList<>(count);
+                int[] elementPath = Arrays.copyOf(path, path.length + 1);
+                for (int i = 0; i < count; i++) {
+                    elementPath[path.length] = i;
+                    elements.add(buildFromArrays(group, name + ".", elementPath));
+                }
+                row.put(tag, elements);
+            }
+        }
+        return row;
+    }
+
+    /**
+     * @return number of elements of the group, the longest of its arrays
+     */
+    private int length(RowLayout group, String namePrefix, int[] path) {
+        int length = 0;
+        for (String tag : group.getTags()) {
+            String name = namePrefix + columnPrefix + tag;
+            if (group.isGroup(tag)) {
+                length = Math.max(length, length(group.getGroup(tag), name + ".", path));
+            } else if (element(value(name), path) instanceof List) {
+                length = Math.max(length, ((List<?>) element(value(name), path)).size());
+            }
+        }
+        return length;
+    }
+
+    private static Object element(Object value, int[] path) {
+        for (int i : path) {
+            if (!(value instanceof List) || i >= ((List<?>) value).size()) {
+                return null;
+            }
+            value = ((List<?>) value).get(i);
+        }
+        return value;
+    }
+
+    private Object value(String column) {
+        Integer position = positions.get(column);
+        return null == position ? null : values[position];
+    }
+
+    private static boolean isPresent(Object value) {
+        return null != value && !value.toString().isEmpty();
+    }
+
+    /**
+     * @return the value with JDBC and Java arrays turned into lists
+     */
+    private static Object toList(Object value) throws SQLException {
+        if (value instanceof Array) {
+            value = ((Array) value).getArray();
+        }
+        if (null != value && value.getClass().isArray()) {
+            int length = java.lang.reflect.Array.getLength(value);
+            List<Object> list = new ArrayList<>(length);
+            for (int i = 0; i < length; i++) {
+                list.add(toList(java.lang.reflect.Array.get(value, i)));
+            }
+            return list;
+        }
+        if (value instanceof List) {
+            List<Object> list = new ArrayList<>(((List<?>) value).size());
+            for (Object element : (List<?>) value) {
+                list.add(toList(element));
+            }
+            return list;
+        }
+        return value;
+    }
+
+    /**
+     * @return table columns that hold the tags of the layout
+     */
+    static List<String> columns(RowLayout layout, String columnPrefix, Collection<String> tableColumns,
+                                boolean arrayGroups) {
+        Set<String> columns = new TreeSet<>();
+        if (arrayGroups) {
+            collectArrayColumns(layout, "", columnPrefix, new HashSet<>(tableColumns), columns);
+        } else {
+            collectColumns(layout, 0, columnPrefix, indexByPath(columnPrefix, tableColumns), columns);
+        }
+        return new ArrayList<>(columns);
+    }
+
+    private static void collectColumns(RowLayout layout, int depth, String columnPrefix,
+                                       Map<String, List<String>> byPath, Set<String> columns) {
+        for (String tag : layout.getTags()) {
+            columns.addAll(byPath.getOrDefault(depth + ":" + columnPrefix + tag, Collections.emptyList()));
+            if (layout.isGroup(tag)) {
+                collectColumns(layout.getGroup(tag), depth + 1, columnPrefix, byPath, columns);
+            }
+        }
+    }
+
+    private static void collectArrayColumns(RowLayout layout, String namePrefix, String columnPrefix,
+                                            Set<String> tableColumns, Set<String> columns) {
+        for (String tag : layout.getTags()) {
+            String name = namePrefix + columnPrefix + tag;
+            if (layout.isGroup(tag)) {
+                collectArrayColumns(layout.getGroup(tag), name + ".", columnPrefix, tableColumns, columns);
+            } else if (tableColumns.contains(name)) {
+                columns.add(name);
+            }
+        }
+    }
+
+    /**
+     * Indexes every column under each way to read it as {@code name + "_i" * depth}, keyed by
+     * {@code depth:name}; {@code col_21_1} is both {@code 0:col_21_1} and {@code 1:col_21}.
+     */
+    private static Map<String, List<String>> indexByPath(String columnPrefix, Collection<String> tableColumns) {
+        Map<String, List<String>> byPath = new HashMap<>();
+        for (String column : tableColumns) {
+            if (!column.startsWith(columnPrefix)) {
+                continue;
+            }
+            int end = column.length();
+            int depth = 0;
+            while (true) {
+                byPath.computeIfAbsent(depth + ":" + column.substring(0, end), x -> new ArrayList<>()).add(column);
+                int start = end;
+                while (start > columnPrefix.length() && Character.isDigit(column.charAt(start - 1))) {
+                    start--;
+                }
+                if (start == end || start - 1 <= columnPrefix.length() || column.charAt(start - 1) != '_') {
+                    break;
+                }
+                end = start - 1;
+                depth++;
+            }
+        }
+        return byPath;
+    }
+}
@@ -0,0 +1,150 @@
+package com.oz.db.clickhouse;
+
+import java.util.*;
+
+/**
+ * Tree of the tags of a hoarded row: which tags hold values and which are repeating groups, with
+ * the layout of the group elements. Flattened column names do not tell a group element column
+ * ({@code col_21_1}) from a top-level tag named {@code 21_1}, so reading rows back needs it.
+ * <pre>
+ * RowLayout.builder()
+ *         .tag("1")
+ *         .group("2", RowLayout.builder().tag("21").group("22", RowLayout.builder().tag("221").build()).build())
+ *         .build();
+ * </pre>
+ */
+public class RowLayout {
+
+    public static final RowLayout EMPTY = builder().build();
+
+    /** Tag to its group layout, null for value tags. */
+    private final Map<String, RowLayout> tags;
+
+    private RowLayout(Map<String, RowLayout> tags) {
+        this.tags = Collections.unmodifiableMap(tags);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return layout of a row in the form accepted by {@link ClickhouseTableHelper#insert(Map)}
+     */
+    @SuppressWarnings("unchecked")
+    public static RowLayout of(Map<String, Object> row) {
+        Map<String, RowLayout> tags = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> entry : row.entrySet()) {
+            if (entry.getValue() instanceof List) {
+                RowLayout group = EMPTY;
+                for (Map<String, Object> element : (List<Map<String, Object>>) entry.getValue()) {
+                    group = group.merge(of(element));
+                }
+                tags.put(entry.getKey(), group);
+            } else {
+                tags.putIfAbsent(entry.getKey(), null);
+            }
+        }
+        return new RowLayout(tags);
+    }
+
+    /**
+     * @return layout of the paths walked through the scope so far
+     */
+    static RowLayout of(ColumnPathCache.Scope scope) {
+        Map<String, RowLayout> tags = new LinkedHashMap<>();
+        for (Map.Entry<String, ColumnPathCache.Column> entry : scope.getColumns().entrySet()) {
+            ColumnPathCache.Column column = entry.getValue();
+            RowLayout group = null;
+            for (ColumnPathCache.Scope element : column.getGroups()) {
+                if (null != element) {
+                    group = (null == group ? EMPTY : group).merge(of(element));
+                }
+            }
+            if (null != column.getElements()) {
+                group = (null == group ? EMPTY : group).merge(of(column.getElements()));
+            }
+            tags.put(entry.getKey(), group);
+        }
+        return new RowLayout(tags);
+    }
+
+    /**
+     * @return layout with the tags of both; a tag that is a group in either is a group
+     */
+    public RowLayout merge(RowLayout other) {
+        Map<String, RowLayout> merged = new LinkedHashMap<>(tags);
+        for (Map.Entry<String, RowLayout> entry : other.tags.entrySet()) {
+            RowLayout mine = merged.get(entry.getKey());
+            RowLayout theirs = entry.getValue();
+            if (null == mine || null == theirs) {
+                merged.put(entry.getKey(), null == mine ? theirs : mine);
+            } else {
+                merged.put(entry.getKey(), mine.merge(theirs));
+            }
+        }
+        return new RowLayout(merged);
+    }
+
+    /**
+     * @return layout with only the given top-level tags; tags it does not know are value tags
+     */
+    public RowLayout project(Collection<String> projection) {
+        Map<String, RowLayout> projected = new LinkedHashMap<>();
+        for (String tag : projection) {
+            projected.put(tag, tags.get(tag));
+        }
+        return new RowLayout(projected);
+    }
+
+    public Set<String> getTags() {
+        return tags.keySet();
+    }
+
+    public boolean isGroup(String tag) {
+        return null != tags.get(tag);
+    }
+
+    /**
+     * @return layout of the group elements, null if the tag holds values
+     */
+    public RowLayout getGroup(String tag) {
+        return tags.get(tag);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof RowLayout && tags.equals(((RowLayout) o).tags);
+    }
+
+    @Override
+    public int hashCode() {
+        return tags.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return tags.toString();
+    }
+
+    public static class Builder {
+        private final Map<String, RowLayout> tags = new LinkedHashMap<>();
+
+        private Builder() {
+        }
+
+        public Builder tag(String tag) {
+            tags.put(tag, null);
+            return this;
+        }
+
+        public Builder group(String tag, RowLayout elements) {
+            tags.put(tag, elements);
+            return this;
+        }
+
+        public RowLayout build() {
+            return new RowLayout(new LinkedHashMap<>(tags));
+        }
+    }
+}
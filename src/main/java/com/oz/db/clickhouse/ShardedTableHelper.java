@@ -0,0 +1,143 @@
+package com.oz.db.clickhouse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Writes rows straight into the local tables of several shards. Each row goes to the shard
+ * chosen by the hash of its sharding key; rows without a key are spread round robin.
+ * <p>
+ * A batch is flattened once. Columns it introduces are created on every shard, so all local
+ * tables keep the same schema, and then every shard gets its part of the batch in parallel.
+ */
+public class ShardedTableHelper {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ShardedTableHelper.class);
+
+    private final List<ClickhouseTableHelper> shards;
+    private final Function<Map<String, Object>, Object> shardingKey;
+    private final ExecutorService executor;
+    private final QueryFactory queryFactory;
+    private final AtomicInteger roundRobin = new AtomicInteger();
+
+    public ShardedTableHelper(List<ClickhouseTableHelper> shards,
+                              Function<Map<String, Object>, Object> shardingKey,
+                              ExecutorService executor) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("No shards");
+        }
+        this.shards = List.copyOf(shards);
+        this.shardingKey = shardingKey;
+        this.executor = executor;
+        QueryFactory shardFactory = shards.get(0).getQueryFactory();
+        this.queryFactory = new QueryFactory(shardFactory.getColumnPrefix());
+        this.queryFactory.setArrayGroups(shardFactory.isArrayGroups());
+    }
+
+    public static ShardedTableHelper create(List<Connection> connections,
+                                            String localTableName,
+                                            String columnPrefix,
+                                            Function<Map<String, Object>, Object> shardingKey,
+                                            ExecutorService executor) {
+        List<ClickhouseTableHelper> shards = new ArrayList<>();
+        connections.forEach(x -> shards.add(new ClickhouseTableHelper(x, localTableName, columnPrefix)));
+        return new ShardedTableHelper(shards, shardingKey, executor);
+    }
+
+    /**
+     * Sharding key taken from the top level value of a tag.
+     */
+    public static Function<Map<String, Object>, Object> byTag(String tag) {
+        return map -> map.get(tag);
+    }
+
+    public int shardOf(Map<String, Object> row) {
+        Object key = shardingKey.apply(row);
+        if (null == key) {
+            return Math.floorMod(roundRobin.getAndIncrement(), shards.size());
+        }
+        return Math.floorMod(key.toString().hashCode(), shards.size());
+    }
+
+    public int insert(Map<String, Object> map) {
+        return insertBulk(Collections.singletonList(map));
+    }
+
+    public int insertBulk(List<Map<String, Object>> mapList) {
+        FlatBatch batch = queryFactory.flatten(mapList);
+        // a shard that could not add the columns tries again in insertBatch and spools its part
+        // if that fails too
+        ensureColumns(batch);
+
+        int[][] rowsByShard = new int[shards.size()][];
+        int[] counts = new int[shards.size()];
+        for (int row = 0; row < mapList.size(); row++) {
+            int shard = shardOf(mapList.get(row));
+            if (null == rowsByShard[shard]) {
+                rowsByShard[shard] = new int[mapList.size() - row];
+            }
+            rowsByShard[shard][counts[shard]++] = row;
+        }
+
+        List<Future<Integer>> results = new ArrayList<>();
+        for (int shard = 0; shard < shards.size(); shard++) {
+            if (counts[shard] > 0) {
+                FlatBatch part = batch.select(rowsByShard[shard], counts[shard]);
+                ClickhouseTableHelper helper = shards.get(shard);
+                results.add(executor.submit(() -> helper.insertBatch(part)));
+            }
+        }
+        int cnt = 0;
+        for (Future<Integer> result : results) {
+            cnt += await(result, 0);
+        }
+        return cnt;
+    }
+
+    private void ensureColumns(FlatBatch batch) {
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (ClickhouseTableHelper shard : shards) {
+            results.add(executor.submit(() -> {
+                try {
+                    shard.ensureColumns(batch);
+                    return true;
+                } catch (SQLException ex) {
+                    LOG.warn("could not add columns to {}", shard.getFullTableName(), ex);
+                    return false;
+                }
+            }));
+        }
+        for (Future<Boolean> result : results) {
+            await(result, false);
+        }
+    }
+
+    private static <T> T await(Future<T> future, T failed) {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return failed;
+        } catch (ExecutionException ex) {
+            LOG.error("could not insert", ex.getCause());
+            return failed;
+        }
+    }
+
+    public QueryFactory getQueryFactory() {
+        return queryFactory;
+    }
+
+    public List<ClickhouseTableHelper> getShards() {
+        return shards;
+    }
+}
@@ -0,0 +1,139 @@
+package com.oz.db.clickhouse;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * In-memory {@link MetricsRegistry}. Counters are {@link LongAdder}s and timers keep a
+ * histogram with eight linear buckets per power of two, so percentiles are exact to within
+ * about 12%.
+ */
+public class SimpleMetricsRegistry implements MetricsRegistry {
+
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    @Override
+    public Counter counter(String name, String table) {
+        return counters.computeIfAbsent(name + '|' + table, x -> new AdderCounter());
+    }
+
+    @Override
+    public Timer timer(String name, String table) {
+        return timers.computeIfAbsent(name + '|' + table, x -> new HistogramTimer());
+    }
+
+    @Override
+    public void gauge(String name, String table, LongSupplier value) {
+        gauges.put(name + '|' + table, value);
+    }
+
+    /**
+     * @return current value of the gauge, 0 if it is not registered
+     */
+    public long getGauge(String name, String table) {
+        LongSupplier gauge = gauges.get(name + '|' + table);
+        return null == gauge ? 0 : gauge.getAsLong();
+    }
+
+    static class AdderCounter implements Counter {
+
+        private final LongAdder value = new LongAdder();
+
+        @Override
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        @Override
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    static class HistogramTimer implements Timer {
+
+        private static final int SUB_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private static final int LINEAR = 2 * SUB_BUCKETS;
+        private static final int BUCKETS = LINEAR + (63 - SUB_BITS - 1) * SUB_BUCKETS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        @Override
+        public void record(long nanos) {
+            long value = Math.max(0, nanos);
+            buckets.incrementAndGet(bucket(value));
+            count.increment();
+            total.add(value);
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+                // retry
+            }
+        }
+
+        static int bucket(long value) {
+            if (value < LINEAR) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return LINEAR + (exponent - SUB_BITS - 1) * SUB_BUCKETS + sub;
+        }
+
+        static long upperBound(int bucket) {
+            if (bucket < LINEAR) {
+                return bucket;
+            }
+            int exponent = (bucket - LINEAR) / SUB_BUCKETS + SUB_BITS + 1;
+            int sub = (bucket - LINEAR) % SUB_BUCKETS;
+            int shift = exponent - SUB_BITS;
+            return ((long) (SUB_BUCKETS + sub) << shift) + (1L << shift) - 1;
+        }
+
+        @Override
+        public long getCount() {
+            return count.sum();
+        }
+
+        @Override
+        public long getTotalNanos() {
+            return total.sum();
+        }
+
+        @Override
+        public long getMaxNanos() {
+            return max.get();
+        }
+
+        @Override
+        public long getPercentileNanos(double quantile) {
+            long[] snapshot = new long[BUCKETS];
+            long recorded = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = buckets.get(i);
+                recorded += snapshot[i];
+            }
+            if (recorded == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * recorded));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+            return max.get();
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package com.oz.db.clickhouse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * Layout of a hoarded table: engine clauses used by {@code CREATE TABLE}, columns created with
+ * the table, and the codecs of columns added later.
+ * <pre>
+ * TableLayout.builder()
+ *         .column("col_55", "LowCardinality(String)")
+ *         .orderBy("col_55", "date")
+ *         .partitionBy("toYYYYMM(date)")
+ *         .codec("col_52", "Delta, ZSTD")
+ *         .defaultCodec("ZSTD(1)")
+ *         .ttl("date + INTERVAL 90 DAY")
+ *         .index("col_11_idx", "col_11", "bloom_filter", 4)
+ *         .build();
+ * </pre>
+ * Column names are the flattened names, prefix included. Codecs and {@code LowCardinality} are
+ * applied to the columns whose type allows them, see {@link #columnDefinition(String, String)}.
+ */
+public class TableLayout {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TableLayout.class);
+
+    /** codecs that only work on numbers, dates and times */
+    private static final Set<String> NUMERIC_CODECS = Set.of("Delta", "DoubleDelta", "Gorilla", "T64", "FPC");
+
+    public static final TableLayout DEFAULT = builder().build();
+
+    private final Map<String, String> columns;
+    private final String partitionBy;
+    private final List<String> orderBy;
+    private final List<String> primaryKey;
+    private final int indexGranularity;
+    private final Map<String, String> codecs;
+    private final String defaultCodec;
+    private final Set<String> lowCardinality;
+    private final String ttl;
+    private final List<String> indexes;
+
+    private TableLayout(Builder builder) {
+        this.columns = Collections.unmodifiableMap(new LinkedHashMap<>(builder.columns));
+        this.partitionBy = builder.partitionBy;
+        this.orderBy = List.copyOf(builder.orderBy);
+        this.primaryKey = List.copyOf(builder.primaryKey);
+        this.indexGranularity = builder.indexGranularity;
+        this.codecs = Map.copyOf(builder.codecs);
+        this.defaultCodec = builder.defaultCodec;
+        this.lowCardinality = Set.copyOf(builder.lowCardinality);
+        this.ttl = builder.ttl;
+        this.indexes = List.copyOf(builder.indexes);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public String createTableSql(String fullTableName) {
+        StringBuilder sql = new StringBuilder("CREATE TABLE IF NOT EXISTS ").append(fullTableName).append(" ( ");
+        String separator = "";
+        for (Map.Entry<String, String> column : columns.entrySet()) {
+            sql.append(separator).append(columnDefinition(column.getKey(), column.getValue()));
+            separator = ", ";
+        }
+        for (String index : indexes) {
+            sql.append(separator).append(index);
+        }
+        sql.append(" ) ENGINE = MergeTree");
+        if (null != partitionBy) {
+            sql.append(" PARTITION BY ").append(partitionBy);
+        }
+        sql.append(" ORDER BY ").append(tuple(orderBy));
+        if (!primaryKey.isEmpty()) {
+            sql.append(" PRIMARY KEY ").append(tuple(primaryKey));
+        }
+        if (null != ttl) {
+            sql.append(" TTL ").append(ttl);
+        }
+        return sql.append(" SETTINGS index_granularity = ").append(indexGranularity).toString();
+    }
+
+    /**
+     * @return {@code name type [CODEC(...)]} with the type wrapped in {@code LowCardinality} if
+     * configured for the column and the type is a string. Codecs like {@code Delta} that only
+     * work on numbers, dates and times are left out of the codec list of other columns.
+     */
+    public String columnDefinition(String name, String type) {
+        StringBuilder definition = new StringBuilder(name).append(' ');
+        if (lowCardinality.contains(name) && isString(type)) {
+            definition.append("LowCardinality(").append(type).append(')');
+        } else {
+            if (lowCardinality.contains(name) && !type.startsWith("LowCardinality(")) {
+                LOG.warn("Column {} of type {} cannot be LowCardinality", name, type);
+            }
+            definition.append(type);
+        }
+        String codec = codecs.getOrDefault(name, defaultCodec);
+        if (null != codec && !isNumeric(type)) {
+            codec = withoutNumericCodecs(name, type, codec);
+        }
+        if (null != codec) {
+            definition.append(" CODEC(").append(codec).append(')');
+        }
+        return definition.toString();
+    }
+
+    private static boolean isString(String type) {
+        return type.startsWith("String") || type.startsWith("Nullable(String");
+    }
+
+    private static boolean isNumeric(String type) {
+        ColumnType columnType = ColumnType.fromSql(type);
+        return columnType.isNumeric() || columnType.isTemporal()
+                || type.startsWith("Date") || type.startsWith("Nullable(Date");
+    }
+
+    /**
+     * @return the codecs of the list that apply to any type, null if there are none
+     */
+    private static String withoutNumericCodecs(String name, String type, String codec) {
+        StringJoiner kept = new StringJoiner(", ");
+        for (String part : codec.split(",")) {
+            String trimmed = part.trim();
+            int parenthesis = trimmed.indexOf('(');
+            if (NUMERIC_CODECS.contains(parenthesis < 0 ? trimmed : trimmed.substring(0, parenthesis))) {
+                LOG.warn("Codec {} does not apply to column {} of type {}", trimmed, name, type);
+            } else {
+                kept.add(trimmed);
+            }
+        }
+        return kept.length() == 0 ? null : kept.toString();
+    }
+
+    private static String tuple(List<String> expressions) {
+        if (expressions.isEmpty()) {
+            return "tuple()";
+        }
+        return expressions.size() == 1 ? expressions.get(0) : "(" + String.join(", ", expressions) + ")";
+    }
+
+    public Map<String, String> getColumns() {
+        return columns;
+    }
+
+    public static class Builder {
+        private final Map<String, String> columns = new LinkedHashMap<>();
+        private String partitionBy = "toYYYYMM(date)";
+        private List<String> orderBy = List.of("date");
+        private List<String> primaryKey = List.of();
+        private int indexGranularity = 8192;
+        private final Map<String, String> codecs = new HashMap<>();
+        private String defaultCodec;
+        private final Set<String> lowCardinality = new HashSet<>();
+        private String ttl;
+        private final List<String> indexes = new ArrayList<>();
+
+        private Builder() {
+            columns.put("date", "Date DEFAULT today()");
+        }
+
+        /**
+         * Column created with the table, needed for tags used in the sorting key or indexes.
+         */
+        public Builder column(String name, String type) {
+            columns.put(name, type);
+            return this;
+        }
+
+        /**
+         * @param expression partition expression, null for no partitioning
+         */
+        public Builder partitionBy(String expression) {
+            this.partitionBy = expression;
+            return this;
+        }
+
+        public Builder orderBy(String... expressions) {
+            this.orderBy = List.of(expressions);
+            return this;
+        }
+
+        /**
+         * Prefix of the sorting key used as primary key, by default the whole sorting key.
+         */
+        public Builder primaryKey(String... expressions) {
+            this.primaryKey = List.of(expressions);
+            return this;
+        }
+
+        public Builder indexGranularity(int indexGranularity) {
+            this.indexGranularity = indexGranularity;
+            return this;
+        }
+
+        /**
+         * @param codec codec list without {@code CODEC(...)}, like {@code "Delta, ZSTD"}
+         */
+        public Builder codec(String column, String codec) {
+            codecs.put(column, codec);
+            return this;
+        }
+
+        /**
+         * Codec of all columns without their own.
+         */
+        public Builder defaultCodec(String codec) {
+            this.defaultCodec = codec;
+            return this;
+        }
+
+        public Builder lowCardinality(String column) {
+            lowCardinality.add(column);
+            return this;
+        }
+
+        public Builder ttl(String expression) {
+            this.ttl = expression;
+            return this;
+        }
+
+        /**
+         * Data skipping index, like {@code index("sym_idx", "col_55", "set(100)", 4)}.
+         */
+        public Builder index(String name, String expression, String type, int granularity) {
+            indexes.add("INDEX " + name + " " + expression + " TYPE " + type + " GRANULARITY " + granularity);
+            return this;
+        }
+
+        public TableLayout build() {
+            return new TableLayout(this);
+        }
+    }
+}
@@ -0,0 +1,422 @@
+package com.oz.db.clickhouse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+import java.util.regex.Pattern;
+
+/**
+ * Hoards rows of many message types into one table per type. Each row is routed to its table
+ * by a function, helpers and batching writers are created on first use, and the schemas of all
+ * tables of the database can be loaded with one query up front instead of one per table.
+ * <p>
+ * Inserts run on virtual threads when the JVM has them, on platform threads otherwise, and at
+ * most {@code maxConcurrentInserts} run at once over all tables.
+ * <p>
+ * Table names come from the data, so only plain identifiers are accepted and at most
+ * {@code maxTables} tables are created; other rows are counted as unrouted.
+ * <pre>
+ * TableRegistry registry = TableRegistry.builder(pool, "db")
+ *         .route(TableRegistry.byTag("35"))
+ *         .maxConcurrentInserts(8)
+ *         .build();
+ * registry.preloadSchemas();
+ * registry.add(row);
+ * </pre>
+ */
+public class TableRegistry implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TableRegistry.class);
+
+    private static final Pattern NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    private final ClickhouseConnectionPool pool;
+    private final String database;
+    private final String columnPrefix;
+    private final Function<Map<String, Object>, String> route;
+    private final Consumer<ClickhouseTableHelper> helperSetup;
+    private final UnaryOperator<BatchingWriter.Builder> writerSetup;
+    private final Semaphore permits;
+    private final int maxConcurrentInserts;
+    private final int maxTables;
+    private final ThreadFactory threadFactory;
+    private final boolean virtualThreads;
+    private final ExecutorService executor;
+
+    private final ConcurrentHashMap<String, ClickhouseTableHelper> helpers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, BatchingWriter> writers = new ConcurrentHashMap<>();
+    private volatile Map<String, Map<String, String>> schemas = Collections.emptyMap();
+
+    private final AtomicInteger tableCount = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private final LongAdder unroutedRows = new LongAdder();
+
+    private TableRegistry(Builder builder) {
+        this.pool = builder.pool;
+        this.database = builder.database;
+        this.columnPrefix = builder.columnPrefix;
+        this.route = builder.route;
+        this.helperSetup = builder.helperSetup;
+        this.writerSetup = builder.writerSetup;
+        this.maxConcurrentInserts = builder.maxConcurrentInserts;
+        this.permits = new Semaphore(maxConcurrentInserts);
+        this.maxTables = builder.maxTables;
+        ThreadFactory virtual = builder.virtualThreads ? virtualThreadFactory("hoarder-") : null;
+        this.virtualThreads = null != virtual;
+        this.threadFactory = virtualThreads ? virtual : platformThreadFactory("hoarder-");
+        this.executor = newThreadPerTaskExecutor(threadFactory);
+    }
+
+    public static Builder builder(ClickhouseConnectionPool pool, String database) {
+        return new Builder(pool, database);
+    }
+
+    /**
+     * Route taken from the top level value of a tag, used as the table name.
+     */
+    public static Function<Map<String, Object>, String> byTag(String tag) {
+        return map -> {
+            Object value = map.get(tag);
+            return null == value ? null : value.toString();
+        };
+    }
+
+    /**
+     * Loads the columns of every table of the database with one query; helpers created later
+     * start with them instead of querying their own.
+     *
+     * @return number of tables found
+     */
+    public int preloadSchemas() throws SQLException {
+        String query = "SELECT table, name, type FROM system.columns WHERE database = '" + database + "'";
+        Map<String, Map<String, String>> loaded = new HashMap<>();
+        try (ClickhouseConnectionPool.PooledConnection pooled = pool.acquire();
+             Statement statement = pooled.connection().createStatement()) {
+            LOG.debug("Query: {}", query);
+            try (ResultSet rs = statement.executeQuery(query)) {
+                while (null != rs && rs.next()) {
+                    loaded.computeIfAbsent(rs.getString("table"), x -> new HashMap<>())
+                            .put(rs.getString("name"), rs.getString("type"));
+                }
+            }
+        }
+        schemas = loaded;
+        helpers.forEach((table, helper) -> helper.preloadColumns(loaded.getOrDefault(table, Collections.emptyMap())));
+        LOG.info("Preloaded the schemas of {} tables of {}", loaded.size(), database);
+        return loaded.size();
+    }
+
+    /**
+     * @return the helper of the table, created on first use; null if the table is new and
+     * {@code maxTables} tables exist
+     * @throws IllegalArgumentException if the name is not a plain identifier
+     */
+    public ClickhouseTableHelper helper(String table) {
+        if (!isValidName(table)) {
+            throw new IllegalArgumentException("Invalid table name: " + table);
+        }
+        return helpers.computeIfAbsent(table, x -> {
+            if (tableCount.incrementAndGet() > maxTables) {
+                tableCount.decrementAndGet();
+                return null;
+            }
+            ClickhouseTableHelper helper = new ClickhouseTableHelper(pool, database + "." + x, columnPrefix);
+            helper.preloadColumns(schemas.getOrDefault(x, Collections.emptyMap()));
+            helperSetup.accept(helper);
+            return helper;
+        });
+    }
+
+    /**
+     * @return the table of the row, null if it cannot be routed or the name is not a plain
+     * identifier
+     */
+    public String tableOf(Map<String, Object> row) {
+        String table = route.apply(row);
+        if (null != table && !isValidName(table)) {
+            LOG.warn("Invalid table name {}", table);
+            return null;
+        }
+        return table;
+    }
+
+    static boolean isValidName(String name) {
+        return NAME.matcher(name).matches();
+    }
+
+    public int insert(Map<String, Object> map) {
+        return insertBulk(Collections.singletonList(map));
+    }
+
+    /**
+     * Inserts the rows of every table in parallel and waits for all of them.
+     *
+     * @return number of inserted rows
+     */
+    public int insertBulk(List<Map<String, Object>> mapList) {
+        Map<String, List<Map<String, Object>>> byTable = new LinkedHashMap<>();
+        for (Map<String, Object> row : mapList) {
+            String table = tableOf(row);
+            if (null == table) {
+                unroutedRows.increment();
+                LOG.error("could not insert, no table for a row");
+                continue;
+            }
+            byTable.computeIfAbsent(table, x -> new ArrayList<>()).add(row);
+        }
+        List<Future<Integer>> results = new ArrayList<>();
+        for (Map.Entry<String, List<Map<String, Object>>> entry : byTable.entrySet()) {
+            ClickhouseTableHelper helper = helper(entry.getKey());
+            if (null == helper) {
+                unroutedRows.add(entry.getValue().size());
+                LOG.error("could not insert into {}, {} tables exist already", entry.getKey(), maxTables);
+                continue;
+            }
+            results.add(executor.submit(() -> insertWithPermit(helper, entry.getValue())));
+        }
+        int cnt = 0;
+        for (Future<Integer> result : results) {
+            try {
+                cnt += result.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return cnt;
+            } catch (ExecutionException ex) {
+                LOG.error("could not insert", ex.getCause());
+            }
+        }
+        return cnt;
+    }
+
+    /**
+     * Buffers the row in the batching writer of its table, created on first use.
+     *
+     * @return false if the row could not be routed or the writer did not accept it
+     */
+    public boolean add(Map<String, Object> row) throws InterruptedException {
+        String table = tableOf(row);
+        if (null == table) {
+            unroutedRows.increment();
+            LOG.error("could not insert, no table for a row");
+            return false;
+        }
+        BatchingWriter writer = writer(table);
+        if (null == writer) {
+            unroutedRows.increment();
+            LOG.error("could not insert into {}, {} tables exist already", table, maxTables);
+            return false;
+        }
+        return writer.add(row);
+    }
+
+    /**
+     * @return the batching writer of the table, created on first use; null if the table is new
+     * and {@code maxTables} tables exist
+     * @throws IllegalArgumentException if the name is not a plain identifier
+     */
+    public BatchingWriter writer(String table) {
+        BatchingWriter writer = writers.get(table);
+        if (null != writer) {
+            return writer;
+        }
+        return writers.computeIfAbsent(table, x -> {
+            ClickhouseTableHelper helper = helper(x);
+            if (null == helper) {
+                return null;
+            }
+            BatchingWriter.Builder builder = writerSetup.apply(BatchingWriter.builder(helper));
+            return builder.sink(rows -> insertWithPermit(helper, rows))
+                    .threadFactory(threadFactory)
+                    .build();
+        });
+    }
+
+    /**
+     * Blocks until every row added before this call has been written.
+     */
+    public void flush() throws InterruptedException {
+        for (BatchingWriter writer : writers.values()) {
+            writer.flush();
+        }
+    }
+
+    /**
+     * Flushes and stops all writers. An interrupt while waiting for a writer is kept in the
+     * interrupt flag and the other writers are still closed.
+     */
+    @Override
+    public void close() {
+        for (BatchingWriter writer : writers.values()) {
+            writer.close();
+        }
+        executor.shutdown();
+    }
+
+    private int insertWithPermit(ClickhouseTableHelper helper, List<Map<String, Object>> rows) {
+        try {
+            permits.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            LOG.error("could not insert {} rows into {}, interrupted", rows.size(), helper.getFullTableName());
+            return 0;
+        }
+        try {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            return helper.insertBulk(rows);
+        } finally {
+            inFlight.decrementAndGet();
+            permits.release();
+        }
+    }
+
+    /**
+     * @return factory of virtual threads, null if the JVM has none
+     */
+    static ThreadFactory virtualThreadFactory(String namePrefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory platformThreadFactory(String namePrefix) {
+        AtomicInteger number = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, namePrefix + number.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static ExecutorService newThreadPerTaskExecutor(ThreadFactory threadFactory) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, threadFactory);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            return Executors.newCachedThreadPool(threadFactory);
+        }
+    }
+
+    public Set<String> getTables() {
+        return Collections.unmodifiableSet(helpers.keySet());
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public int getMaxConcurrentInserts() {
+        return maxConcurrentInserts;
+    }
+
+    public int getInFlightInserts() {
+        return inFlight.get();
+    }
+
+    public int getMaxInFlightInserts() {
+        return maxInFlight.get();
+    }
+
+    public long getUnroutedRows() {
+        return unroutedRows.sum();
+    }
+
+    public static class Builder {
+        private final ClickhouseConnectionPool pool;
+        private final String database;
+        private String columnPrefix = "col_";
+        private Function<Map<String, Object>, String> route;
+        private Consumer<ClickhouseTableHelper> helperSetup = x -> { };
+        private UnaryOperator<BatchingWriter.Builder> writerSetup = x -> x;
+        private int maxConcurrentInserts = 16;
+        private int maxTables = 1000;
+        private boolean virtualThreads = true;
+
+        private Builder(ClickhouseConnectionPool pool, String database) {
+            this.pool = pool;
+            this.database = database;
+        }
+
+        public Builder columnPrefix(String columnPrefix) {
+            this.columnPrefix = columnPrefix;
+            return this;
+        }
+
+        /**
+         * Function from a row to the name of its table in the database; null for rows that
+         * cannot be routed.
+         */
+        public Builder route(Function<Map<String, Object>, String> route) {
+            this.route = route;
+            return this;
+        }
+
+        /**
+         * Called for every helper after it is created, to set its policies.
+         */
+        public Builder helperSetup(Consumer<ClickhouseTableHelper> helperSetup) {
+            this.helperSetup = helperSetup;
+            return this;
+        }
+
+        /**
+         * Applied to the builder of every batching writer; the sink and thread factory are set
+         * by the registry.
+         */
+        public Builder writerSetup(UnaryOperator<BatchingWriter.Builder> writerSetup) {
+            this.writerSetup = writerSetup;
+            return this;
+        }
+
+        /**
+         * Maximum number of inserts running at once over all tables; it should not exceed the
+         * pool size.
+         */
+        public Builder maxConcurrentInserts(int maxConcurrentInserts) {
+            this.maxConcurrentInserts = maxConcurrentInserts;
+            return this;
+        }
+
+        /**
+         * Maximum number of tables, 1000 by default; rows of further tables are counted as
+         * unrouted.
+         */
+        public Builder maxTables(int maxTables) {
+            this.maxTables = maxTables;
+            return this;
+        }
+
+        /**
+         * Use virtual threads if the JVM has them, true by default.
+         */
+        public Builder virtualThreads(boolean virtualThreads) {
+            this.virtualThreads = virtualThreads;
+            return this;
+        }
+
+        public TableRegistry build() {
+            if (null == route) {
+                throw new IllegalStateException("No route");
+            }
+            if (!isValidName(database)) {
+                throw new IllegalStateException("Invalid database name: " + database);
+            }
+            return new TableRegistry(this);
+        }
+    }
+}
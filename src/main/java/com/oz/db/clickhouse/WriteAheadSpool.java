@@ -0,0 +1,403 @@
+package com.oz.db.clickhouse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Durable local queue of batches that could not be inserted.
+ * <p>
+ * Batches are appended with {@link FileChannel} to segment files as records of
+ * {@code [payload length][CRC32][payload]}, the payload being {@link FlatBatchCodec} output.
+ * A segment is closed when it reaches {@code maxSegmentBytes}; at most {@code maxSegments}
+ * segments are kept and appends beyond that are rejected. A replayer thread reads the segments
+ * in order, passes every batch to a {@link Sink} and records its progress in a checkpoint file
+ * after each batch, so after a crash the replay resumes at the first batch that was not
+ * confirmed. A batch may be replayed twice if the process stops between the insert and the
+ * checkpoint. A record whose checksum does not match is skipped and counted, the records after
+ * it are still replayed; torn records at the end of a segment left by a crash are skipped. A
+ * batch that the sink rejects with an error that is not transient is moved to the dead letter
+ * file {@code dead-letters.spool}, in the record format of the segments, so it does not hold up
+ * the batches after it.
+ */
+public class WriteAheadSpool implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WriteAheadSpool.class);
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private static final String CHECKPOINT = "checkpoint";
+    private static final String DEAD_LETTERS = "dead-letters" + SEGMENT_SUFFIX;
+    private static final int HEADER = 8;
+    private static final long MAX_RETRY_MILLIS = 60_000;
+
+    @FunctionalInterface
+    public interface Sink {
+        void write(FlatBatch batch) throws SQLException;
+    }
+
+    private final Path directory;
+    private final long maxSegmentBytes;
+    private final int maxSegments;
+    private final boolean sync;
+    private final FlatBatchCodec codec = new FlatBatchCodec();
+
+    private FileChannel active;
+    private long activeSequence;
+    private volatile long activeSize;
+
+    private volatile long readSequence;
+    private volatile long readOffset;
+
+    private final LongAdder spooledRows = new LongAdder();
+    private final LongAdder replayedRows = new LongAdder();
+    private final LongAdder rejectedRows = new LongAdder();
+    private final LongAdder corruptRecords = new LongAdder();
+    private final LongAdder deadLetterRows = new LongAdder();
+
+    private volatile Thread replayer;
+    private volatile boolean closed;
+
+    /**
+     * @param sync force every append to disk before returning
+     */
+    public WriteAheadSpool(Path directory, long maxSegmentBytes, int maxSegments, boolean sync) throws IOException {
+        this.directory = directory;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.maxSegments = maxSegments;
+        this.sync = sync;
+        Files.createDirectories(directory);
+        List<Long> segments = listSegments();
+        readCheckpoint(segments);
+        activeSequence = segments.isEmpty() ? readSequence : segments.get(segments.size() - 1) + 1;
+    }
+
+    /**
+     * @return false if the spool is full or the batch could not be written
+     */
+    public synchronized boolean append(FlatBatch batch) {
+        if (closed) {
+            return false;
+        }
+        byte[] payload = codec.encode(batch);
+        int recordSize = HEADER + payload.length;
+        try {
+            if (null == active || (activeSize > 0 && activeSize + recordSize > maxSegmentBytes)) {
+                long next = null == active ? activeSequence : activeSequence + 1;
+                if (next - readSequence + 1 > maxSegments) {
+                    rejectedRows.add(batch.getRowCount());
+                    LOG.error("Spool {} is full, {} rows are lost", directory, batch.getRowCount());
+                    return false;
+                }
+                openSegment(next);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            ByteBuffer record = ByteBuffer.allocate(recordSize);
+            record.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+            while (record.hasRemaining()) {
+                active.write(record);
+            }
+            if (sync) {
+                active.force(false);
+            }
+            activeSize += recordSize;
+            spooledRows.add(batch.getRowCount());
+            return true;
+        } catch (IOException ex) {
+            rejectedRows.add(batch.getRowCount());
+            LOG.error("could not spool {} rows", batch.getRowCount(), ex);
+            return false;
+        }
+    }
+
+    private void openSegment(long sequence) throws IOException {
+        if (null != active) {
+            active.force(false);
+            active.close();
+        }
+        active = FileChannel.open(segment(sequence),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        activeSequence = sequence;
+        activeSize = active.size();
+    }
+
+    /**
+     * Replays every complete batch that is spooled now.
+     *
+     * @return number of replayed batches
+     * @throws SQLException a transient error from the sink; the failed batch will be replayed again
+     */
+    public int replay(ColumnDictionary dictionary, Sink sink) throws SQLException, IOException {
+        int batches = 0;
+        while (!closed) {
+            long sequence = readSequence;
+            long offset = readOffset;
+            long end;
+            long current;
+            boolean isActive;
+            synchronized (this) {
+                current = activeSequence;
+                isActive = null != active && sequence == current;
+                end = isActive ? activeSize : -1;
+            }
+            Path file = segment(sequence);
+            if (!Files.exists(file)) {
+                if (sequence < current) {
+                    writeCheckpoint(sequence + 1, 0);
+                    continue;
+                }
+                return batches;
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                if (end < 0) {
+                    end = channel.size();
+                }
+                while (offset + HEADER <= end) {
+                    ByteBuffer header = readHeader(channel, offset, end);
+                    if (null == header) {
+                        break;
+                    }
+                    FlatBatch batch = readRecord(channel, offset, header, dictionary);
+                    if (null == batch) {
+                        corruptRecords.increment();
+                        LOG.error("Skip record of {} bytes at {} in {}, its checksum does not match",
+                                header.getInt(0), offset, file);
+                    } else if (write(sink, batch)) {
+                        replayedRows.add(batch.getRowCount());
+                        batches++;
+                    } else {
+                        moveToDeadLetters(channel, offset, header);
+                        deadLetterRows.add(batch.getRowCount());
+                    }
+                    offset += HEADER + header.getInt(0);
+                    writeCheckpoint(sequence, offset);
+                }
+            }
+            if (isActive) {
+                return batches;
+            }
+            if (offset < end) {
+                LOG.warn("Skip {} bytes of incomplete records at the end of {}", end - offset, file);
+            }
+            Files.deleteIfExists(file);
+            writeCheckpoint(sequence + 1, 0);
+        }
+        return batches;
+    }
+
+    /**
+     * @return false if the sink rejected the batch with an error that is not transient
+     */
+    private boolean write(Sink sink, FlatBatch batch) throws SQLException {
+        try {
+            sink.write(batch);
+            return true;
+        } catch (SQLException ex) {
+            if (RetryPolicy.isTransient(ex)) {
+                throw ex;
+            }
+            LOG.error("Move batch of {} rows to the dead letters of {}, it cannot be inserted",
+                    batch.getRowCount(), directory, ex);
+            return false;
+        }
+    }
+
+    private void moveToDeadLetters(FileChannel channel, long offset, ByteBuffer header) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(HEADER + header.getInt(0));
+        readFully(channel, record, offset);
+        try (FileChannel deadLetters = FileChannel.open(directory.resolve(DEAD_LETTERS),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (record.hasRemaining()) {
+                deadLetters.write(record);
+            }
+            deadLetters.force(false);
+        }
+    }
+
+    /**
+     * @return null if the record does not end before {@code end}
+     */
+    private static ByteBuffer readHeader(FileChannel channel, long offset, long end) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        readFully(channel, header, offset);
+        int length = header.getInt(0);
+        if (length < 0 || offset + HEADER + length > end) {
+            return null;
+        }
+        return header;
+    }
+
+    /**
+     * @return null if the checksum does not match
+     */
+    private static FlatBatch readRecord(FileChannel channel, long offset, ByteBuffer header,
+                                        ColumnDictionary dictionary) throws IOException {
+        ByteBuffer payload = ByteBuffer.allocate(header.getInt(0));
+        readFully(channel, payload, offset + HEADER);
+        CRC32 crc = new CRC32();
+        crc.update(payload.array());
+        if ((int) crc.getValue() != header.getInt(4)) {
+            return null;
+        }
+        return FlatBatchCodec.decode(payload, dictionary);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Starts a daemon thread that replays spooled batches every {@code intervalMillis}. After a
+     * transient failure the interval doubles up to a minute until a replay succeeds.
+     *
+     * @param dictionary asked on every replay for the dictionary to decode batches into, like the
+     *                   current one of a {@link QueryFactory}, which is replaced when its path
+     *                   cache drops the trie
+     */
+    public synchronized void startReplayer(Supplier<ColumnDictionary> dictionary, Sink sink, long intervalMillis) {
+        if (null != replayer) {
+            throw new IllegalStateException("Replayer is already running");
+        }
+        replayer = new Thread(() -> {
+            long delay = intervalMillis;
+            while (!closed) {
+                try {
+                    if (replay(dictionary.get(), sink) > 0) {
+                        LOG.info("Replayed spooled batches from {}", directory);
+                    }
+                    delay = intervalMillis;
+                } catch (SQLException | IOException ex) {
+                    delay = Math.min(delay * 2, Math.max(intervalMillis, MAX_RETRY_MILLIS));
+                    LOG.warn("could not replay spool {}, retry in {} ms: {}", directory, delay, ex.getMessage());
+                }
+                try {
+                    TimeUnit.MILLISECONDS.sleep(delay);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+        }, "spool-replayer-" + directory.getFileName());
+        replayer.setDaemon(true);
+        replayer.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        Thread thread = replayer;
+        if (null != thread) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            if (null != active) {
+                active.force(false);
+                active.close();
+                active = null;
+            }
+        }
+    }
+
+    private Path segment(long sequence) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+    }
+
+    private List<Long> listSegments() throws IOException {
+        List<Long> sequences = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(x -> x.getFileName().toString())
+                    .filter(x -> x.startsWith(SEGMENT_PREFIX) && x.endsWith(SEGMENT_SUFFIX))
+                    .forEach(x -> sequences.add(Long.parseLong(
+                            x.substring(SEGMENT_PREFIX.length(), x.length() - SEGMENT_SUFFIX.length()))));
+        }
+        Collections.sort(sequences);
+        return sequences;
+    }
+
+    private void readCheckpoint(List<Long> segments) throws IOException {
+        Path checkpoint = directory.resolve(CHECKPOINT);
+        long sequence = 0;
+        long offset = 0;
+        if (Files.exists(checkpoint)) {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(checkpoint));
+            sequence = buffer.getLong();
+            offset = buffer.getLong();
+        }
+        if (segments.isEmpty()) {
+            readSequence = sequence + (offset > 0 ? 1 : 0);
+            readOffset = 0;
+        } else if (sequence < segments.get(0)) {
+            readSequence = segments.get(0);
+            readOffset = 0;
+        } else {
+            readSequence = sequence;
+            readOffset = offset;
+        }
+    }
+
+    private void writeCheckpoint(long sequence, long offset) throws IOException {
+        Path temp = directory.resolve(CHECKPOINT + ".tmp");
+        Files.write(temp, ByteBuffer.allocate(16).putLong(sequence).putLong(offset).array());
+        Files.move(temp, directory.resolve(CHECKPOINT),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        readSequence = sequence;
+        readOffset = offset;
+    }
+
+    public long getSpooledRows() {
+        return spooledRows.sum();
+    }
+
+    public long getReplayedRows() {
+        return replayedRows.sum();
+    }
+
+    public long getRejectedRows() {
+        return rejectedRows.sum();
+    }
+
+    /**
+     * @return number of records skipped by replay because their checksum did not match
+     */
+    public long getCorruptRecords() {
+        return corruptRecords.sum();
+    }
+
+    /**
+     * @return number of rows moved to the dead letter file because they could not be inserted
+     */
+    public long getDeadLetterRows() {
+        return deadLetterRows.sum();
+    }
+
+    public Path getDeadLetterFile() {
+        return directory.resolve(DEAD_LETTERS);
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+}
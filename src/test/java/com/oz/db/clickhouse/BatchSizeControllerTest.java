@@ -0,0 +1,71 @@
+package com.oz.db.clickhouse;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BatchSizeControllerTest {
+
+    private static final long MS = 1_000_000;
+
+    @Test
+    public void additiveIncreaseMultiplicativeDecrease() {
+        BatchSizeController controller = BatchSizeController.builder()
+                .rows(100, 1000, 1500)
+                .rowsIncrement(200)
+                .bytes(1000, 10_000, 20_000)
+                .bytesIncrement(1000)
+                .targetLatencyMillis(100)
+                .build();
+        long now = System.nanoTime();
+
+        controller.onInsert(1000, 5000, 50 * MS, true, now += MS);
+        assertEquals(1200, controller.getTargetRows());
+        assertEquals(11_000, controller.getTargetBytes());
+        controller.onInsert(1200, 5000, 50 * MS, true, now += MS);
+        controller.onInsert(1400, 5000, 50 * MS, true, now += MS);
+        assertEquals(1500, controller.getTargetRows());
+
+        controller.onInsert(1500, 5000, 150 * MS, true, now += 200 * MS);
+        assertEquals(750, controller.getTargetRows());
+        assertEquals(6500, controller.getTargetBytes());
+        controller.onInsert(1500, 5000, 0, false, now += 200 * MS);
+        assertEquals(375, controller.getTargetRows());
+        assertEquals(2, controller.getDecreases());
+        assertEquals(3, controller.getIncreases());
+    }
+
+    @Test
+    public void boundsAndSmallBatches() {
+        BatchSizeController controller = BatchSizeController.builder()
+                .rows(100, 200, 1000)
+                .bytes(1000, 2000, 10_000)
+                .targetLatencyMillis(100)
+                .build();
+        long now = System.nanoTime();
+
+        controller.onInsert(10, 10, MS, true, now += MS);
+        assertEquals(200, controller.getTargetRows());
+        for (int i = 0; i < 5; i++) {
+            controller.onInsert(10, 10, 0, false, now += 200 * MS);
+        }
+        assertEquals(100, controller.getTargetRows());
+        assertEquals(1000, controller.getTargetBytes());
+    }
+
+    @Test
+    public void insertsStartedBeforeDecreaseAreIgnored() {
+        BatchSizeController controller = BatchSizeController.builder()
+                .rows(100, 1000, 1000)
+                .targetLatencyMillis(100)
+                .build();
+        long now = System.nanoTime() + 1000 * MS;
+
+        controller.onInsert(1000, 0, 500 * MS, true, now);
+        controller.onInsert(1000, 0, 400 * MS, true, now + 10 * MS);
+        assertEquals(500, controller.getTargetRows());
+        controller.onInsert(500, 0, 200 * MS, true, now + 300 * MS);
+        assertEquals(250, controller.getTargetRows());
+        assertThrows(IllegalArgumentException.class, () -> BatchSizeController.builder().decreaseFactor(1).build());
+    }
+}
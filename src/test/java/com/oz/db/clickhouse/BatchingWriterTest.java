@@ -0,0 +1,98 @@
+package com.oz.db.clickhouse;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BatchingWriterTest {
+
+    @Test
+    public void flushByRowCount() throws InterruptedException {
+        List<List<Map<String, Object>>> batches = new CopyOnWriteArrayList<>();
+        BatchingWriter writer = BatchingWriter.builder(rows -> {
+            batches.add(rows);
+            return rows.size();
+        }).maxBatchRows(3).maxDelayMillis(60_000).build();
+
+        for (int i = 0; i < 7; i++) {
+            writer.add(Map.of("1", "v" + i));
+        }
+        writer.flush();
+
+        assertEquals(3, batches.size());
+        assertEquals(3, batches.get(0).size());
+        assertEquals(3, batches.get(1).size());
+        assertEquals(1, batches.get(2).size());
+        assertEquals(7, writer.getInsertedRows());
+        writer.close();
+    }
+
+    @Test
+    public void flushByDelay() throws InterruptedException {
+        CountDownLatch written = new CountDownLatch(1);
+        BatchingWriter writer = BatchingWriter.builder(rows -> {
+            written.countDown();
+            return rows.size();
+        }).maxBatchRows(1000).maxDelayMillis(20).build();
+
+        writer.add(Map.of("1", "v1"));
+
+        assertTrue(written.await(5, java.util.concurrent.TimeUnit.SECONDS));
+        writer.close();
+    }
+
+    @Test
+    public void closeWritesBufferedRows() throws InterruptedException {
+        List<Map<String, Object>> rows = new CopyOnWriteArrayList<>();
+        BatchingWriter writer = BatchingWriter.builder(batch -> {
+            rows.addAll(batch);
+            return batch.size();
+        }).maxBatchRows(100).maxDelayMillis(60_000).build();
+
+        writer.add(Map.of("1", "v1"));
+        writer.add(Map.of("1", "v2", "2", List.of(Map.of("21", "v21"))));
+        writer.close();
+
+        assertEquals(2, rows.size());
+        assertThrows(IllegalStateException.class, () -> writer.add(Map.of("1", "v3")));
+    }
+
+    @Test
+    public void overflowPolicies() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(2);
+        BatchingWriter.BatchSink blockedSink = rows -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return rows.size();
+        };
+        BatchingWriter failing = BatchingWriter.builder(blockedSink).maxBatchRows(1).capacity(1)
+                .overflowPolicy(BatchingWriter.OverflowPolicy.FAIL).build();
+        BatchingWriter dropping = BatchingWriter.builder(blockedSink).maxBatchRows(1).capacity(1)
+                .overflowPolicy(BatchingWriter.OverflowPolicy.DROP).build();
+        failing.add(Map.of("1", "v1"));
+        dropping.add(Map.of("1", "v1"));
+        started.await();
+
+        failing.add(Map.of("1", "v2"));
+        assertThrows(RejectedExecutionException.class, () -> failing.add(Map.of("1", "v3")));
+        assertTrue(dropping.add(Map.of("1", "v2")));
+        assertFalse(dropping.add(Map.of("1", "v3")));
+        assertEquals(1, dropping.getDroppedRows());
+
+        release.countDown();
+        failing.close();
+        dropping.close();
+        assertEquals(2, failing.getInsertedRows());
+        assertEquals(2, dropping.getInsertedRows());
+    }
+}
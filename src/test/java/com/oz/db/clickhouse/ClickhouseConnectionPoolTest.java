@@ -0,0 +1,103 @@
+package com.oz.db.clickhouse;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.SQLTimeoutException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClickhouseConnectionPoolTest {
+
+    @Test
+    public void acquireAndTimeout() throws Exception {
+        StubConnection stub = new StubConnection();
+        AtomicInteger created = new AtomicInteger();
+        ClickhouseConnectionPool pool = new ClickhouseConnectionPool(() -> {
+            created.incrementAndGet();
+            return stub.connection();
+        }, 2, 10);
+
+        ClickhouseConnectionPool.PooledConnection first = pool.acquire();
+        ClickhouseConnectionPool.PooledConnection second = pool.acquire();
+        assertEquals(2, pool.getInFlight());
+        assertThrows(SQLTimeoutException.class, pool::acquire);
+        first.close();
+        first.close();
+        pool.acquire().close();
+        second.close();
+
+        assertEquals(2, created.get());
+        assertEquals(0, pool.getInFlight());
+        assertEquals(2, pool.getMaxInFlight());
+        assertEquals(3, pool.getAcquireCount());
+        assertEquals(1, pool.getTimeouts());
+        pool.close();
+    }
+
+    @Test
+    public void closedIdleConnectionIsReplaced() throws Exception {
+        StubConnection stub = new StubConnection();
+        boolean[] closed = {false};
+        Connection first = StubConnection.proxy(Connection.class, (proxy, method, args) ->
+                "isClosed".equals(method.getName()) ? closed[0] : StubConnection.defaultValue(method));
+        Queue<Connection> connections = new ArrayDeque<>(List.of(first, stub.connection()));
+        ClickhouseConnectionPool pool = new ClickhouseConnectionPool(connections::poll, 1, 10);
+        List<String> closedAttributes = new ArrayList<>();
+
+        try (ClickhouseConnectionPool.PooledConnection pooled = pool.acquire()) {
+            pooled.attribute("statements", x -> (AutoCloseable) () -> closedAttributes.add("statements"));
+        }
+        closed[0] = true;
+        try (ClickhouseConnectionPool.PooledConnection pooled = pool.acquire()) {
+            assertSame(stub.connection(), pooled.connection());
+            assertEquals(List.of("statements"), closedAttributes);
+            assertEquals(1, pool.getOpenConnections());
+        }
+        pool.close();
+    }
+
+    @Test
+    public void callerConnectionTimesOut() throws Exception {
+        StubConnection stub = new StubConnection();
+        stub.createTable("db.msgs", "date", "col_1");
+        ClickhouseTableHelper helper = new ClickhouseTableHelper(
+                ClickhouseConnectionPool.of(stub.connection(), 10), "db.msgs", "col_");
+
+        try (RowCursor cursor = helper.select(null)) {
+            assertFalse(cursor.next());
+            assertEquals(0, helper.insert(Map.of("1", "v1")));
+        }
+        assertEquals(1, helper.insert(Map.of("1", "v2")));
+        assertEquals(1, helper.getMetrics().getFailedInserts());
+    }
+
+    @Test
+    public void concurrentInserts() throws Exception {
+        StubConnection stub = new StubConnection();
+        ClickhouseConnectionPool pool = new ClickhouseConnectionPool(stub::connection, 3, 10_000);
+        ClickhouseTableHelper helper = new ClickhouseTableHelper(pool, "db.msgs", "col_");
+        ExecutorService executor = Executors.newFixedThreadPool(6);
+        List<Future<Integer>> results = new ArrayList<>();
+
+        for (int i = 0; i < 30; i++) {
+            int n = i;
+            results.add(executor.submit(() -> helper.insertBulk(List.of(
+                    Map.of("1", "v" + n, String.valueOf(n % 4 + 2), "x"),
+                    Map.of("1", "w" + n)))));
+        }
+        int cnt = 0;
+        for (Future<Integer> result : results) {
+            cnt += result.get();
+        }
+        executor.shutdown();
+
+        assertEquals(60, cnt);
+        assertEquals(Set.of("date", "col_1", "col_2", "col_3", "col_4", "col_5"), stub.tables.get("db.msgs").keySet());
+        assertTrue(pool.getMaxInFlight() <= 3);
+        assertEquals(0, pool.getInFlight());
+    }
+}
@@ -0,0 +1,486 @@
+package com.oz.db.clickhouse;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClickhouseTableHelperTest {
+
+    @Test
+    public void createTableAndColumnsBeforeInsert() {
+        StubConnection stub = new StubConnection();
+        ClickhouseTableHelper helper = new ClickhouseTableHelper(stub.connection(), "db.msgs", "col_");
+
+        int cnt = helper.insertBulk(List.of(
+                Map.of("1", "v11", "2", List.of(Map.of("21", "v21"))),
+                Map.of("1", "v12", "3", "it's")));
+
+        assertEquals(2, cnt);
+        assertEquals(1, stub.count("CREATE TABLE"));
+        assertEquals(1, stub.count("ALTER TABLE"));
+        assertEquals(1, stub.inserts.size());
+        assertEquals(Set.of("date", "col_1", "col_2", "col_21_1", "col_3"), stub.tables.get("db.msgs").keySet());
+        assertTrue(stub.inserts.get(0).contains("'it\\'s'"));
+    }
+
+    @Test
+    public void noDdlForKnownColumns() {
+        StubConnection stub = new StubConnection();
+        stub.createTable("default.msgs", "date", "col_1", "col_2");
+        ClickhouseTableHelper helper = new ClickhouseTableHelper(stub.connection(), "msgs", "col_");
+
+        helper.insert(Map.of("1", "v1"));
+        helper.insertBulk(List.of(Map.of("1", "v1", "2", "v2"), Map.of("2", "v2")));
+
+        assertEquals(0, stub.count("ALTER TABLE"));
+        assertEquals(1, stub.count("SELECT"));
+        assertEquals(2, stub.inserts.size());
+    }
+
+    @Test
+    public void reloadColumnsAfterExternalChange() {
+        StubConnection stub = new StubConnection();
+        stub.createTable("default.msgs", "date", "col_1", "col_2");
+        ClickhouseTableHelper helper = new ClickhouseTableHelper(stub.connection(), "msgs", "col_");
+        helper.getColumns();
+        stub.tables.get("default.msgs").remove("col_2");
+
+        int cnt = helper.insert(Map.of("1", "v1", "2", "v2"));
+
+        assertEquals(1, cnt);
+        assertEquals(1, stub.count("ALTER TABLE"));
+        assertEquals(2, stub.count("SELECT"));
+    }
+
+    @Test
+    public void typedColumns() {
+        StubConnection stub = new StubConnection();
+        ClickhouseTableHelper helper = new ClickhouseTableHelper(stub.connection(), "db.msgs", "col_");
+        helper.setTypeInference(new ColumnTypeInference());
+
+        helper.insertBulk(List.of(new TreeMap<>(Map.of("1", "10", "2", "1.5")),
+                new TreeMap<>(Map.of("1", "11", "3", "x"))));
+        helper.insert(new TreeMap<>(Map.of("1", "bad", "2", "2.5")));
+
+        Map<String, String> schema = stub.tables.get("db.msgs");
+        assertEquals("Nullable(String)", schema.get("col_1"));
+        assertEquals("Nullable(Float64)", schema.get("col_2"));
+        assertEquals("String", schema.get("col_3"));
+        assertTrue(stub.inserts.get(0).endsWith("values (10,1.5,'')(11,NULL,'x')"), stub.inserts.get(0));
+        assertTrue(stub.statements.contains("ALTER TABLE db.msgs MODIFY COLUMN col_1 Nullable(String)"));
+        assertTrue(stub.inserts.get(1).endsWith("values ('bad',2.5)"), stub.inserts.get(1));
+        assertEquals(1, helper.getWidenedColumns());
+        assertEquals(0, helper.getTypeConflicts());
+    }
+
+    @Test
+    public void widenAlongNumericTypes() {
+        StubConnection stub = new StubConnection();
+        ClickhouseTableHelper helper = new ClickhouseTableHelper(stub.connection(), "db.msgs", "col_");
+        helper.setTypeInference(new ColumnTypeInference());
+
+        helper.insert(Map.of("1", "10", "2", "10"));
+        helper.insertBulk(List.of(Map.of("1", "-1"), Map.of("1", "18446744073709551615", "2", "-2")));
+
+        Map<String, String> schema = stub.tables.get("db.msgs");
+        assertEquals("Nullable(Float64)", schema.get("col_1"));
+        assertEquals("Nullable(Int64)", schema.get("col_2"));
+        assertEquals(1, stub.count("ALTER TABLE db.msgs MODIFY"));
+        assertEquals(3, stub.rows.get("db.msgs").size());
+    }
+
+    @Test
+    public void valueThatDoesNotFitIsDeadLettered() {
+        StubConnection stub = new StubConnection();
+        stub.rejectedValue = "'x'";
+        ClickhouseTableHelper helper = new ClickhouseTableHelper(stub.connection(), "db.msgs", "col_");
+        helper.setTableLayout(TableLayout.builder().column("col_1", "UInt64").build());
+        List<String> rejected = new ArrayList<>();
+        helper.setDeadLetterSink((table, rows, cause) -> rejected.add(rows.getCellValue(0)));
+
+        assertEquals(2, helper.insertBulk(List.of(Map.of("1", "1"), Map.of("1", "x"), Map.of("1", "3"))));
+
+        assertEquals(List.of("x"), rejected);
+        assertEquals("UInt64", stub.tables.get("db.msgs").get("col_1"));
+        assertEquals(0, stub.count("ALTER TABLE"));
+        assertEquals(3, helper.getTypeConflicts());
+    }
+
+    @Test
+    public void schemaRetriesAreBounded() {
+        StubConnection stub = new StubConnection();
+        ClickhouseTableHelper helper = new ClickhouseTableHelper(stub.connection(), "db.msgs", "col_");
+        helper.getColumns();
+        for (int i = 0; i < 3; i++) {
+            stub.insertFailures.add(new SQLException("Code: 16. DB::Exception: No such column col_1 in table db.msgs"));
+        }
+        assertEquals(1, helper.insert(Map.of("1", "v1")));
+        assertEquals(3, helper.getMetrics().getSchemaRetries());
+
+        for (int i = 0; i < 4; i++) {
+            stub.insertFailures.add(new SQLException("Code: 16. DB::Exception: No such column col_1 in table db.msgs"));
+        }
+        assertEquals(0, helper.insert(Map.of("1", "v2")));
+        assertEquals(6, helper.getMetrics().getSchemaRetries());
+        assertEquals(1, helper.getMetrics().getFailedInserts());
+    }
+
+    @Test
+    public void metrics() throws Exception {
+        StubConnection stub = new StubConnection();
+        stub.createTable("default.msgs", "date", "col_1", "col_2");
+        ClickhouseTableHelper helper = new ClickhouseTableHelper(stub.connection(), "msgs", "col_");
+        SimpleMetricsRegistry registry = new SimpleMetricsRegistry();
+        helper.setMetricsRegistry(registry);
+        helper.getColumns();
+        stub.tables.get("default.msgs").remove("col_2");
+
+        helper.insertBulk(List.of(Map.of("1", "v1", "2", "v2"), Map.of("1", "v3")));
+        stub.failure = new java.sql.SQLException("Connection refused");
+        helper.insert(Map.of("1", "v4"));
+
+        IngestMetrics metrics = helper.getMetrics();
+        assertEquals(1, metrics.getInserts());
+        assertEquals(2, metrics.getRows());
+        assertEquals(1, metrics.getFailedInserts());
+        assertEquals(1, metrics.getSchemaRetries());
+        assertEquals(stub.inserts.get(0).length(), metrics.getBytes());
+        assertEquals(3, metrics.getDdlCount());
+        assertTrue(metrics.getLatencyMaxNanos() > 0);
+        assertSame(metrics.rows, registry.counter("clickhouse.insert.rows", "default.msgs"));
+
+        javax.management.ObjectName name = metrics.registerMBean();
+        assertEquals(2L, java.lang.management.ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Rows"));
+        metrics.unregisterMBean();
+    }
+
+    @Test
+    public void preparedInserts() {
+        StubConnection stub = new StubConnection();
+        ClickhouseTableHelper helper = new ClickhouseTableHelper(stub.connection(), "db.msgs", "col_");
+        helper.setTypeInference(new ColumnTypeInference());
+        helper.setInsertMode(ClickhouseTableHelper.InsertMode.PREPARED);
+
+        assertEquals(2, helper.insertBulk(List.of(new TreeMap<>(Map.of("1", "10", "2", "a")),
+                new TreeMap<>(Map.of("1", "11")))));
+        assertEquals(1, stub.prepared.size());
+        assertEquals("insert into db.msgs ( col_1,col_2 ) values (?,?)", stub.prepared.get(0));
+        assertEquals(1, helper.insert(new TreeMap<>(Map.of("1", "bad", "2", "b"))));
+        assertEquals("Nullable(String)", stub.tables.get("db.msgs").get("col_1"));
+
+        assertEquals(1, helper.insert(new TreeMap<>(Map.of("1", "13", "3", "c"))));
+        assertEquals(1, helper.insert(new TreeMap<>(Map.of("1", "14", "2", "d"))));
+        assertEquals(4, stub.prepared.size());
+        assertEquals(List.of(stub.prepared.get(0), stub.prepared.get(1)), stub.closedPrepared);
+
+        assertEquals(Arrays.asList(10L, "a"), stub.preparedRows.get(0));
+        assertEquals(Arrays.asList(11L, ""), stub.preparedRows.get(1));
+        assertEquals(Arrays.asList("bad", "b"), stub.preparedRows.get(2));
+        assertEquals(Arrays.asList("14", "d"), stub.preparedRows.get(4));
+        assertEquals(0, helper.getTypeConflicts());
+    }
+
+    @Test
+    public void preparedWithArrayGroupsUsesValues() {
+        StubConnection stub = new StubConnection();
+        ClickhouseTableHelper helper = new ClickhouseTableHelper(stub.connection(), "db.msgs", "col_");
+        helper.getQueryFactory().setArrayGroups(true);
+        helper.setInsertMode(ClickhouseTableHelper.InsertMode.PREPARED);
+
+        assertEquals(1, helper.insert(Map.of("1", "v1", "2", List.of(Map.of("21", "a"), Map.of("21", "b")))));
+        assertEquals(1, helper.insert(Map.of("1", "v2")));
+
+        assertTrue(stub.inserts.get(0).contains("['a','b']"), stub.inserts.get(0));
+        assertEquals(List.of("insert into db.msgs ( col_1 ) values (?)"), stub.prepared);
+        assertEquals(List.of(List.of("v2")), stub.preparedRows);
+        assertEquals(0, helper.getMetrics().getFailedInserts());
+    }
+
+    @Test
+    public void sparseInserts() {
+        StubConnection stub = new StubConnection();
+        ClickhouseTableHelper helper = new ClickhouseTableHelper(stub.connection(), "db.msgs", "col_");
+        helper.setSparseMinShapeRows(2);
+
+        int cnt = helper.insertBulk(List.of(
+                new TreeMap<>(Map.of("1", "v1_1", "2", "v2")),
+                new TreeMap<>(Map.of("1", "v1_2", "2", "v2")),
+                new TreeMap<>(Map.of("1", "v1_3", "3", "v3")),
+                new TreeMap<>(Map.of("1", "v1_4", "4", "v4"))));
+
+        assertEquals(4, cnt);
+        assertEquals(List.of(
+                "insert into db.msgs ( col_1,col_2 ) values ('v1_1','v2')('v1_2','v2')",
+                "insert into db.msgs ( col_1,col_3,col_4 ) values ('v1_3','v3','')('v1_4','','v4')"),
+                stub.inserts);
+    }
+
+    @Test
+    public void arrayGroups() {
+        StubConnection stub = new StubConnection();
+        ClickhouseTableHelper helper = new ClickhouseTableHelper(stub.connection(), "db.msgs", "col_");
+        helper.getQueryFactory().setArrayGroups(true);
+
+        for (int repeats = 1; repeats <= 5; repeats++) {
+            List<Map<String, Object>> groups = new ArrayList<>();
+            for (int i = 0; i < repeats; i++) {
+                groups.add(Map.of("21", "v" + i, "22", List.of(Map.of("221", "w" + i))));
+            }
+            assertEquals(1, helper.insert(Map.of("1", "v1", "2", groups)));
+        }
+        helper.insert(Map.of("1", "v2"));
+
+        Map<String, String> schema = stub.tables.get("db.msgs");
+        assertEquals(Set.of("date", "col_1", "col_2.col_21", "col_2.col_22.col_221"), schema.keySet());
+        assertEquals("Array(String)", schema.get("col_2.col_21"));
+        assertEquals("Array(Array(String))", schema.get("col_2.col_22.col_221"));
+        assertEquals(1, stub.count("ALTER TABLE"));
+        assertTrue(stub.inserts.get(1).contains("['v0','v1']"), stub.inserts.get(1));
+        assertTrue(stub.inserts.get(1).contains("[['w0'],['w1']]"), stub.inserts.get(1));
+    }
+
+    @Test
+    public void arrayGroupsPadTagsOfOtherRows() {
+        StubConnection stub = new StubConnection();
+        ClickhouseTableHelper helper = new ClickhouseTableHelper(stub.connection(), "db.msgs", "col_");
+        helper.getQueryFactory().setArrayGroups(true);
+
+        assertEquals(3, helper.insertBulk(List.of(
+                Map.of("2", List.of(Map.of("21", "a"))),
+                Map.of("2", List.of(Map.of("22", "x"), Map.of("22", "y"))),
+                Map.of("1", "v1"))));
+
+        assertEquals("insert into db.msgs ( col_2.col_21,col_2.col_22,col_1 ) values "
+                + "(['a'],[''],'')(['',''],['x','y'],'')([],[],'v1')", stub.inserts.get(0));
+    }
+
+    @Test
+    public void selectRoundTrip() throws SQLException {
+        StubConnection stub = new StubConnection();
+        ClickhouseTableHelper helper = new ClickhouseTableHelper(stub.connection(), "db.msgs", "col_");
+        Map<String, Object> msgMap22_1 = new TreeMap<>(Map.of("221", "v221_1", "222", "it's"));
+        Map<String, Object> msgMap22_2 = new TreeMap<>(Map.of("221", "v221_2"));
+        Map<String, Object> msgMap2 = new TreeMap<>(Map.of("21", "v21", "22", List.of(msgMap22_1, msgMap22_2)));
+        Map<String, Object> first = new TreeMap<>(Map.of("1", "v1", "2", List.of(msgMap2), "4_1", "top"));
+        Map<String, Object> second = new TreeMap<>(Map.of("1", "v1_2", "3", "v3"));
+        helper.insert(first);
+        helper.insert(second);
+        helper.setFetchSize(2);
+
+        List<Map<String, Object>> rows = new ArrayList<>();
+        try (RowCursor cursor = helper.select(null)) {
+            while (cursor.next()) {
+                rows.add(cursor.get());
+            }
+        }
+
+        assertEquals(2, rows.size());
+        assertEquals(first, new TreeMap<>(rows.get(0)));
+        assertEquals(second, new TreeMap<>(rows.get(1)));
+        assertEquals(2, stub.fetchSize);
+    }
+
+    @Test
+    public void selectProjection() throws SQLException {
+        StubConnection stub = new StubConnection();
+        ClickhouseTableHelper helper = new ClickhouseTableHelper(stub.connection(), "db.msgs", "col_");
+        helper.insert(new TreeMap<>(Map.of("1", "v1", "2", List.of(Map.of("21", "v21")), "3", "v3")));
+
+        ClickhouseTableHelper reader = new ClickhouseTableHelper(stub.connection(), "db.msgs", "col_");
+        reader.setRowLayout(RowLayout.builder().tag("1").group("2", RowLayout.builder().tag("21").build()).build());
+        try (RowCursor cursor = reader.select(List.of("2"), "col_1 = 'v1'")) {
+            assertTrue(cursor.next());
+            assertEquals(Map.of("2", List.of(Map.of("21", "v21"))), cursor.get());
+            assertFalse(cursor.next());
+        }
+
+        assertEquals("SELECT col_2, col_21_1 FROM db.msgs WHERE col_1 = 'v1'",
+                stub.statements.get(stub.statements.size() - 1));
+        assertEquals(reader.getRowLayout(), RowLayout.of(new TreeMap<>(Map.of("1", "v", "2", List.of(Map.of("21", "v"))))));
+    }
+
+    @Test
+    public void selectArrayGroups() throws SQLException {
+        StubConnection stub = new StubConnection();
+        ClickhouseTableHelper helper = new ClickhouseTableHelper(stub.connection(), "db.msgs", "col_");
+        helper.getQueryFactory().setArrayGroups(true);
+        Map<String, Object> row = new TreeMap<>(Map.of("1", "v1", "2", List.of(
+                new TreeMap<>(Map.of("21", "v0", "22", List.of(Map.of("221", "w0"), Map.of("221", "w1")))),
+                new TreeMap<>(Map.of("21", "v1")))));
+        helper.insert(row);
+
+        try (RowCursor cursor = helper.select(List.of("2"), null)) {
+            assertTrue(cursor.next());
+            assertEquals(Map.of("2", row.get("2")), cursor.get());
+        }
+        assertEquals("SELECT col_2.col_21, col_2.col_22.col_221 FROM db.msgs",
+                stub.statements.get(stub.statements.size() - 1));
+    }
+
+    @Test
+    public void batchSizeController() throws InterruptedException {
+        StubConnection stub = new StubConnection();
+        ClickhouseTableHelper helper = new ClickhouseTableHelper(stub.connection(), "db.msgs", "col_");
+        SimpleMetricsRegistry registry = new SimpleMetricsRegistry();
+        helper.setMetricsRegistry(registry);
+        BatchSizeController controller = BatchSizeController.builder()
+                .rows(1, 2, 100)
+                .rowsIncrement(1)
+                .bytes(10, 10_000, 100_000)
+                .build();
+        BatchingWriter.builder(helper).batchSizeController(controller).build().close();
+
+        assertEquals(controller, helper.getBatchSizeController());
+        helper.insertBulk(List.of(Map.of("1", "v1"), Map.of("1", "v2")));
+        assertEquals(3, controller.getTargetRows());
+        stub.insertFailures.add(new java.sql.SQLTransientConnectionException("Connection reset"));
+        assertEquals(0, helper.insertBulk(List.of(Map.of("1", "v3"))));
+        assertEquals(1, controller.getTargetRows());
+        assertEquals(1, registry.getGauge("clickhouse.batch.target.rows", "db.msgs"));
+        assertEquals(controller.getTargetBytes(), helper.getMetrics().getBatchTargetBytes());
+    }
+
+    @Test
+    public void tableLayout() {
+        StubConnection stub = new StubConnection();
+        ClickhouseTableHelper helper = new ClickhouseTableHelper(stub.connection(), "db.msgs", "col_");
+        helper.setTableLayout(TableLayout.builder()
+                .column("col_55", "LowCardinality(String)")
+                .orderBy("col_55", "date")
+                .codec("col_52", "Delta, ZSTD")
+                .defaultCodec("ZSTD(1)")
+                .lowCardinality("col_35")
+                .ttl("date + INTERVAL 90 DAY")
+                .index("col_11_idx", "col_11", "bloom_filter", 4)
+                .column("col_11", "String")
+                .build());
+
+        helper.insert(new TreeMap<>(Map.of("55", "IBM", "52", "20240101", "35", "D", "11", "id1")));
+
+        assertEquals("CREATE TABLE IF NOT EXISTS db.msgs ( date Date DEFAULT today() CODEC(ZSTD(1)), "
+                + "col_55 LowCardinality(String) CODEC(ZSTD(1)), col_11 String CODEC(ZSTD(1)), "
+                + "INDEX col_11_idx col_11 TYPE bloom_filter GRANULARITY 4 ) ENGINE = MergeTree "
+                + "PARTITION BY toYYYYMM(date) ORDER BY (col_55, date) TTL date + INTERVAL 90 DAY "
+                + "SETTINGS index_granularity = 8192", stub.statements.get(1));
+        assertEquals("ALTER TABLE db.msgs ADD COLUMN IF NOT EXISTS col_35 LowCardinality(String) CODEC(ZSTD(1)), "
+                + "ADD COLUMN IF NOT EXISTS col_52 String CODEC(ZSTD)", stub.statements.get(3));
+        assertEquals("LowCardinality(String)", stub.tables.get("db.msgs").get("col_35"));
+        assertEquals(1, stub.inserts.size());
+    }
+
+    @Test
+    public void tableLayoutFollowsColumnType() {
+        StubConnection stub = new StubConnection();
+        ClickhouseTableHelper helper = new ClickhouseTableHelper(stub.connection(), "db.msgs", "col_");
+        helper.setTypeInference(new ColumnTypeInference());
+        helper.setTableLayout(TableLayout.builder()
+                .codec("col_34", "Delta, ZSTD")
+                .codec("col_52", "Delta")
+                .codec("col_58", "T64, LZ4")
+                .lowCardinality("col_34")
+                .lowCardinality("col_58")
+                .build());
+
+        helper.insert(new TreeMap<>(Map.of("34", "12", "52", "2024-01-01 10:00:00", "58", "text")));
+
+        assertEquals("ALTER TABLE db.msgs ADD COLUMN IF NOT EXISTS col_34 Nullable(UInt64) CODEC(Delta, ZSTD), "
+                + "ADD COLUMN IF NOT EXISTS col_52 Nullable(DateTime64(3)) CODEC(Delta), "
+                + "ADD COLUMN IF NOT EXISTS col_58 LowCardinality(String) CODEC(LZ4)",
+                stub.statements.stream().filter(x -> x.startsWith("ALTER")).findFirst().orElseThrow());
+    }
+
+    @Test
+    public void retryWithDeduplicationToken() {
+        StubConnection stub = new StubConnection();
+        ClickhouseTableHelper helper = new ClickhouseTableHelper(stub.connection(), "db.msgs", "col_");
+        helper.setRetryPolicy(RetryPolicy.builder().maxAttempts(3).initialBackoffMillis(1).build());
+        helper.setDeduplicate(true);
+        List<Map<String, Object>> rows = List.of(Map.of("1", "v1"), Map.of("1", "v2"));
+
+        stub.insertFailures.add(new java.sql.SQLTransientConnectionException("Connection reset"));
+        assertEquals(2, helper.insertBulk(rows));
+        assertEquals(2, helper.insertBulk(rows));
+
+        assertEquals(1, stub.inserts.size());
+        assertEquals(1, stub.deduplicated.size());
+        assertTrue(stub.inserts.get(0).contains(" SETTINGS insert_deduplication_token = '"), stub.inserts.get(0));
+        assertEquals(1, helper.getMetrics().getRetries());
+
+        stub.insertFailures.add(new java.sql.SQLException("Code: 27. DB::Exception: Cannot parse input"));
+        assertEquals(0, helper.insertBulk(List.of(Map.of("1", "v3"))));
+        assertEquals(1, helper.getMetrics().getRetries());
+    }
+
+    @Test
+    public void deduplicationTokenIsContentHash() {
+        QueryFactory factory = new QueryFactory("col_");
+        String token = DeduplicationToken.of(factory.flatten(List.of(Map.of("1", "a"), Map.of("2", "b"))));
+
+        assertEquals(32, token.length());
+        assertEquals(token, DeduplicationToken.of(factory.flatten(List.of(Map.of("1", "a"), Map.of("2", "b")))));
+        assertNotEquals(token, DeduplicationToken.of(factory.flatten(List.of(Map.of("1", "a"), Map.of("2", "c")))));
+        assertNotEquals(token, DeduplicationToken.of(factory.flatten(List.of(Map.of("1", "a", "2", "b")))));
+    }
+
+    @Test
+    public void bisectRejectedRows() {
+        StubConnection stub = new StubConnection();
+        ClickhouseTableHelper helper = new ClickhouseTableHelper(stub.connection(), "db.msgs", "col_");
+        List<Map<String, String>> rejected = new ArrayList<>();
+        helper.setDeadLetterSink((table, rows, cause) -> rejected.add(rows.getRow(0)));
+        stub.rejectedValue = "bad";
+
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            rows.add(Map.of("1", i == 4 || i == 5 ? "bad" + i : "v" + i));
+        }
+
+        assertEquals(5, helper.insertBulk(rows));
+        assertEquals(List.of(Map.of("col_1", "bad4"), Map.of("col_1", "bad5")), rejected);
+        assertEquals(5, stub.inserts.stream().mapToInt(x -> StubConnection.countTuples(
+                x.substring(x.indexOf(" values ")))).sum());
+        assertEquals(2, helper.getMetrics().getDeadLetterRows());
+    }
+
+    @Test
+    public void bisectRejectedRowsInBothHalves() {
+        StubConnection stub = new StubConnection();
+        ClickhouseTableHelper helper = new ClickhouseTableHelper(stub.connection(), "db.msgs", "col_");
+        List<Map<String, String>> rejected = new ArrayList<>();
+        helper.setDeadLetterSink((table, rows, cause) -> rejected.add(rows.getRow(0)));
+        stub.rejectedValue = "bad";
+
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            rows.add(Map.of("1", i == 1 || i == 6 ? "bad" + i : "v" + i));
+        }
+
+        assertEquals(6, helper.insertBulk(rows));
+        assertEquals(List.of(Map.of("col_1", "bad1"), Map.of("col_1", "bad6")), rejected);
+        assertEquals(6, stub.inserts.stream().mapToInt(x -> StubConnection.countTuples(
+                x.substring(x.indexOf(" values ")))).sum());
+        assertEquals(2, helper.getMetrics().getDeadLetterRows());
+        assertEquals(0, helper.getMetrics().getFailedInserts());
+    }
+
+    @Test
+    public void bisectOnlyOnDataErrors() {
+        StubConnection stub = new StubConnection();
+        ClickhouseTableHelper helper = new ClickhouseTableHelper(stub.connection(), "db.msgs", "col_");
+        List<Map<String, String>> rejected = new ArrayList<>();
+        helper.setDeadLetterSink((table, rows, cause) -> rejected.add(rows.getRow(0)));
+        helper.getColumns();
+        int statements = stub.statements.size();
+
+        stub.insertFailures.add(new SQLException("Code: 241. DB::Exception: Memory limit exceeded"));
+        assertEquals(0, helper.insertBulk(List.of(Map.of("1", "a"), Map.of("1", "b"))));
+
+        assertEquals(List.of(), rejected);
+        assertEquals(statements + 2, stub.statements.size());
+        assertEquals(1, helper.getMetrics().getFailedInserts());
+        assertEquals(0, helper.getMetrics().getDeadLetterRows());
+    }
+}
@@ -0,0 +1,75 @@
+package com.oz.db.clickhouse;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ColumnPathCacheTest {
+
+    @Test
+    public void groupColumnNames() {
+        ColumnPathCache cache = new ColumnPathCache("col_");
+        ColumnDictionary dictionary = cache.getDictionary();
+
+        ColumnPathCache.Column group = cache.root().column("22");
+        ColumnPathCache.Column nested = group.group(1).column("221").group(2).column("2211");
+
+        assertEquals("col_22", group.getName());
+        assertEquals("col_2211_1_2", nested.getName());
+        assertEquals(dictionary.find("col_2211_1_2"), nested.getIndex());
+        assertSame(nested, cache.root().column("22").group(1).column("221").group(2).column("2211"));
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void evictionDropsDictionary() {
+        ColumnPathCache cache = new ColumnPathCache("col_", 2);
+        ColumnDictionary dictionary = cache.getDictionary();
+
+        ColumnPathCache.Column first = cache.root().column("1");
+        cache.root().column("2");
+        cache.root().column("3");
+        ColumnPathCache.Column again = cache.root().column("1");
+
+        assertNotEquals(first, again);
+        assertTrue(cache.size() <= 2);
+        assertNotSame(dictionary, cache.getDictionary());
+        assertTrue(cache.getDictionary().size() <= 2);
+        assertEquals("col_1", dictionary.name(first.getIndex()));
+        assertEquals("col_1", cache.getDictionary().name(again.getIndex()));
+    }
+
+    @Test
+    public void rootOfOldDictionary() {
+        ColumnPathCache cache = new ColumnPathCache("col_", 1);
+        ColumnDictionary dictionary = cache.getDictionary();
+        assertSame(cache.root(), cache.root(dictionary));
+
+        cache.root().column("1");
+        cache.root().column("2");
+        ColumnPathCache.Scope old = cache.root(dictionary);
+
+        assertNotSame(cache.root(), old);
+        assertSame(dictionary, old.getDictionary());
+        assertEquals(dictionary.find("col_2"), old.column("2").getIndex());
+    }
+
+    @Test
+    public void evictionListenerSeesDroppedTrie() {
+        ColumnPathCache cache = new ColumnPathCache("col_", 3);
+        List<RowLayout> evicted = new ArrayList<>();
+        cache.setEvictionListener(root -> evicted.add(RowLayout.of(root)));
+
+        cache.root().column("1");
+        cache.root().column("2").group(1).column("21");
+        cache.root().column("3");
+
+        assertEquals(1, evicted.size());
+        assertEquals(RowLayout.builder().tag("1").tag("3")
+                        .group("2", RowLayout.builder().tag("21").build()).build(),
+                evicted.get(0).merge(RowLayout.of(cache.root())));
+    }
+}
@@ -0,0 +1,72 @@
+package com.oz.db.clickhouse;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ColumnTypeInferenceTest {
+
+    @Test
+    public void inferTypes() {
+        QueryFactory queryFactory = new QueryFactory("col_");
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            rows.add(Map.of("qty", String.valueOf(i), "delta", String.valueOf(i - 30),
+                    "px", i + ".25", "time", "2024-01-02T10:11:12.345",
+                    "side", i % 2 == 0 ? "BUY" : "SELL", "id", "id" + i, "code", "00" + i));
+        }
+        FlatBatch batch = queryFactory.flatten(rows);
+        int[] positions = new int[batch.getColumnCount()];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = i;
+        }
+
+        ColumnType[] types = new ColumnTypeInference().infer(batch, positions);
+
+        Map<String, ColumnType> byName = new TreeMap<>();
+        for (int i = 0; i < positions.length; i++) {
+            byName.put(batch.getColumnName(i), types[i]);
+        }
+        assertEquals("{col_code=STRING, col_delta=NULLABLE_INT64, col_id=STRING, col_px=NULLABLE_FLOAT64, " +
+                "col_qty=NULLABLE_UINT64, col_side=LOW_CARDINALITY, col_time=NULLABLE_DATETIME64}", byName.toString());
+    }
+
+    @Test
+    public void literals() {
+        assertTrue(ColumnType.isInteger("9223372036854775807", true));
+        assertFalse(ColumnType.isInteger("9223372036854775808", true));
+        assertTrue(ColumnType.isInteger("-9223372036854775808", true));
+        assertTrue(ColumnType.isInteger("18446744073709551615", false));
+        assertFalse(ColumnType.isInteger("-1", false));
+        assertFalse(ColumnType.isInteger("01", true));
+        assertTrue(ColumnType.isNumber("-0.5e-3"));
+        assertFalse(ColumnType.isNumber("1."));
+        assertFalse(ColumnType.isDateTime("2024-01-02"));
+        assertEquals(ColumnType.NULLABLE_INT64, ColumnType.fromSql("Nullable(Int32)"));
+        assertEquals(ColumnType.STRING, ColumnType.fromSql("LowCardinality(String)"));
+    }
+
+    @Test
+    public void writeTypedValues() {
+        StringBuilder out = new StringBuilder();
+        int conflicts = InsertEncoder.writeRow(out,
+                new String[]{"12", "abc", null, "2024-01-02T10:11:12", null, "x"},
+                new ColumnType[]{ColumnType.NULLABLE_UINT64, ColumnType.NULLABLE_INT64, ColumnType.NULLABLE_FLOAT64,
+                        ColumnType.NULLABLE_DATETIME64, ColumnType.STRING, ColumnType.UINT64});
+
+        assertEquals("(12,'abc',NULL,'2024-01-02 10:11:12','','x')", out.toString());
+        assertEquals(2, conflicts);
+    }
+
+    @Test
+    public void widen() {
+        assertEquals(ColumnType.NULLABLE_INT64, ColumnType.NULLABLE_UINT64.widen());
+        assertEquals(ColumnType.NULLABLE_FLOAT64, ColumnType.NULLABLE_INT64.widen());
+        assertEquals(ColumnType.NULLABLE_STRING, ColumnType.NULLABLE_FLOAT64.widen());
+        assertEquals(ColumnType.NULLABLE_STRING, ColumnType.NULLABLE_DATETIME64.widen());
+        assertEquals(ColumnType.FLOAT64, ColumnType.INT64.widen());
+        assertNull(ColumnType.STRING.widen());
+    }
+}
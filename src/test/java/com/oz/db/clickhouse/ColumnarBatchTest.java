@@ -0,0 +1,120 @@
+package com.oz.db.clickhouse;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ColumnarBatchTest {
+
+    @Test
+    public void dictionaryAndNulls() {
+        QueryFactory queryFactory = new QueryFactory("col_");
+        String[] symbols = {"IBM", "AAPL", "MSFT"};
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            Map<String, Object> row = new TreeMap<>(Map.of("sym", symbols[i % 3], "px", String.valueOf(i)));
+            if (i % 2 == 0) {
+                row.put("qty", String.valueOf(i));
+            }
+            rows.add(row);
+        }
+
+        ColumnarBatch batch = ColumnarBatch.of(queryFactory.flatten(rows),
+                Map.of("col_sym", "LowCardinality(String)", "col_px", "Float64", "col_qty", "UInt32"));
+
+        assertEquals(1000, batch.getRowCount());
+        assertEquals(List.of("col_px", "col_qty", "col_sym"),
+                List.of(batch.getColumnName(0), batch.getColumnName(1), batch.getColumnName(2)));
+        assertEquals(3, batch.getDistinctCount(2));
+        assertEquals(-1, batch.getDistinctCount(0));
+        assertEquals("AAPL", batch.getValue(2, 301));
+        assertEquals("301.0", batch.getValue(0, 301));
+        assertTrue(batch.isNull(1, 301));
+        assertEquals("300", batch.getValue(1, 300));
+        assertEquals("INSERT INTO db.t (col_px, col_qty, col_sym) FORMAT Native",
+                batch.insertSql("db.t", ColumnarBatch.Format.NATIVE));
+    }
+
+    @Test
+    public void rowBinary() throws IOException {
+        ColumnDictionary dictionary = new ColumnDictionary();
+        FlatBatch flat = new FlatBatch(dictionary);
+        flat.add(dictionary.indexOf("a"), "ab");
+        flat.add(dictionary.indexOf("n"), null);
+        flat.add(dictionary.indexOf("u"), "300");
+        flat.add(dictionary.indexOf("f"), "1.5");
+        flat.add(dictionary.indexOf("d"), "2024-01-02");
+        flat.add(dictionary.indexOf("t"), "1970-01-01 00:00:01.5");
+        flat.endRow();
+
+        ColumnarBatch batch = ColumnarBatch.of(flat, Map.of("n", "Nullable(Int64)", "u", "UInt16",
+                "f", "Float32", "d", "Date", "t", "DateTime64(3)"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        batch.writeRowBinary(out);
+
+        assertEquals("02 61 62 01 2c 01 00 00 c0 3f 0c 4d dc 05 00 00 00 00 00 00", hex(out.toByteArray()));
+        assertTrue(batch.isNull(1, 0));
+    }
+
+    @Test
+    public void valueThatDoesNotFitIsRejected() {
+        ColumnDictionary dictionary = new ColumnDictionary();
+        FlatBatch flat = new FlatBatch(dictionary);
+        flat.add(dictionary.indexOf("n"), "abc");
+        flat.endRow();
+
+        IllegalArgumentException ex = assertThrows(IllegalArgumentException.class,
+                () -> ColumnarBatch.of(flat, Map.of("n", "Nullable(Int64)")));
+        assertEquals("Value of n does not fit Nullable(Int64): abc", ex.getMessage());
+    }
+
+    @Test
+    public void nativeLowCardinality() throws IOException {
+        ColumnDictionary dictionary = new ColumnDictionary();
+        FlatBatch flat = new FlatBatch(dictionary);
+        int column = dictionary.indexOf("s");
+        flat.add(column, "x");
+        flat.endRow();
+        flat.endRow();
+        flat.add(column, "x");
+        flat.endRow();
+
+        ColumnarBatch batch = ColumnarBatch.of(flat, Map.of("s", "LowCardinality(Nullable(String))"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        batch.writeNative(out);
+
+        assertEquals("01 03 01 73 20 " + hex("LowCardinality(Nullable(String))".getBytes())
+                + " 01 00 00 00 00 00 00 00 00 02 00 00 00 00 00 00 02 00 00 00 00 00 00 00 00 01 78"
+                + " 03 00 00 00 00 00 00 00 01 00 01", hex(out.toByteArray()));
+
+        ColumnarBatch plain = ColumnarBatch.of(flat, Map.of("s", "Nullable(String)"));
+        out.reset();
+        plain.writeNative(out);
+        assertTrue(hex(out.toByteArray()).endsWith("00 01 00 01 78 00 01 78"), hex(out.toByteArray()));
+    }
+
+    @Test
+    public void supports() {
+        assertTrue(ColumnarBatch.supports("LowCardinality(String)"));
+        assertTrue(ColumnarBatch.supports("Nullable(DateTime64(3, 'Europe/London'))"));
+        assertFalse(ColumnarBatch.supports("Array(String)"));
+        assertFalse(ColumnarBatch.supports("Decimal(18, 4)"));
+        ColumnDictionary dictionary = new ColumnDictionary();
+        FlatBatch flat = new FlatBatch(dictionary);
+        flat.add(dictionary.indexOf("a"), "['x']");
+        flat.endRow();
+        assertThrows(IllegalArgumentException.class, () -> ColumnarBatch.of(flat, Map.of("a", "Array(String)")));
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(hex.length() > 0 ? " " : "").append(String.format("%02x", b & 0xFF));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,196 @@
+package com.oz.db.clickhouse;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HttpInsertTransportTest {
+
+    private static StubConnection typedTable() {
+        StubConnection stub = new StubConnection();
+        Map<String, String> schema = new ConcurrentHashMap<>();
+        schema.put("col_1", "String");
+        schema.put("col_2", "Nullable(Int64)");
+        schema.put("col_3", "LowCardinality(String)");
+        schema.put("col_4", "DateTime");
+        stub.tables.put("db.msgs", schema);
+        return stub;
+    }
+
+    private static List<Map<String, Object>> rows(int count) {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> row = new HashMap<>();
+            row.put("1", "it's " + i);
+            if (i % 2 == 0) {
+                row.put("2", String.valueOf(i * 10));
+            }
+            row.put("3", i < 3 ? "a" : "b");
+            row.put("4", "2024-05-0" + (i + 1) + " 10:00:00");
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    private static void assertStored(StubConnection stub, int count) {
+        List<Map<String, Object>> stored = new ArrayList<>(stub.rows.get("db.msgs"));
+        stored.sort(Comparator.comparing(x -> x.get("col_1").toString()));
+        assertEquals(count, stored.size());
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> row = stored.get(i);
+            assertEquals("it's " + i, row.get("col_1"));
+            assertEquals(i % 2 == 0 ? String.valueOf(i * 10) : "NULL", row.get("col_2"));
+            assertEquals(i < 3 ? "a" : "b", row.get("col_3"));
+            assertEquals("2024-05-0" + (i + 1) + " 10:00:00", row.get("col_4"));
+        }
+    }
+
+    @Test
+    public void rowBinaryGzipChunked() throws Exception {
+        StubConnection stub = typedTable();
+        try (HttpStub http = new HttpStub(stub)) {
+            HttpInsertTransport transport = HttpInsertTransport.builder(http.uri())
+                    .user("hoarder")
+                    .chunkRows(2)
+                    .build();
+            ClickhouseTableHelper helper = new ClickhouseTableHelper(stub.connection(), "db.msgs", "col_");
+            helper.setHttpTransport(transport);
+
+            assertEquals(5, helper.insertBulk(rows(5)));
+
+            assertStored(stub, 5);
+            assertEquals(1, http.requests.size());
+            HttpStub.Request request = http.requests.get(0);
+            assertEquals("INSERT INTO db.msgs (col_1, col_2, col_3, col_4) FORMAT RowBinary", request.query);
+            assertEquals("gzip", request.contentEncoding);
+            assertEquals("chunked", request.transferEncoding);
+            assertEquals("hoarder", request.user);
+            assertEquals(0, stub.count("ALTER TABLE"));
+            assertEquals(request.body.length, transport.getUncompressedBytes());
+            assertTrue(transport.getBytesSent() > 0);
+            assertEquals(transport.getBytesSent(), helper.getMetrics().getBytes());
+        }
+    }
+
+    @Test
+    public void nativeDeflateBlockPerChunk() throws Exception {
+        StubConnection stub = typedTable();
+        try (HttpStub http = new HttpStub(stub)) {
+            ClickhouseTableHelper helper = new ClickhouseTableHelper(stub.connection(), "db.msgs", "col_");
+            helper.setHttpTransport(HttpInsertTransport.builder(http.uri())
+                    .format(HttpInsertTransport.Format.NATIVE)
+                    .compression(HttpInsertTransport.Compression.DEFLATE)
+                    .chunkRows(2)
+                    .build());
+
+            assertEquals(5, helper.insertBulk(rows(5)));
+
+            assertStored(stub, 5);
+            assertEquals("deflate", http.requests.get(0).contentEncoding);
+            assertEquals(3, http.requests.get(0).blocks);
+        }
+    }
+
+    @Test
+    public void valuesWithNewColumnCreatedOverJdbc() throws Exception {
+        StubConnection stub = typedTable();
+        try (HttpStub http = new HttpStub(stub)) {
+            HttpInsertTransport transport = HttpInsertTransport.builder(http.uri())
+                    .format(HttpInsertTransport.Format.VALUES)
+                    .compression(HttpInsertTransport.Compression.NONE)
+                    .build();
+            ClickhouseTableHelper helper = new ClickhouseTableHelper(stub.connection(), "db.msgs", "col_");
+            helper.setHttpTransport(transport);
+
+            assertEquals(1, helper.insert(new TreeMap<>(Map.of("1", "v1", "5", "new"))));
+
+            assertEquals(1, stub.count("ALTER TABLE"));
+            assertEquals("INSERT INTO db.msgs (col_1, col_5) FORMAT Values", http.requests.get(0).query);
+            assertNull(http.requests.get(0).contentEncoding);
+            assertEquals("new", stub.rows.get("db.msgs").get(0).get("col_5"));
+            assertEquals(0, stub.inserts.stream().filter(x -> x.contains("FORMAT")).count());
+        }
+    }
+
+    @Test
+    public void unsupportedTypeFallsBackToValues() throws Exception {
+        StubConnection stub = typedTable();
+        stub.tables.get("db.msgs").put("col_6", "Array(String)");
+        try (HttpStub http = new HttpStub(stub)) {
+            HttpInsertTransport transport = HttpInsertTransport.builder(http.uri()).build();
+            ClickhouseTableHelper helper = new ClickhouseTableHelper(stub.connection(), "db.msgs", "col_");
+            helper.setHttpTransport(transport);
+
+            assertEquals(1, helper.insert(Map.of("1", "v1", "6", "['x','y']")));
+
+            assertTrue(http.requests.get(0).query.endsWith("FORMAT Values"), http.requests.get(0).query);
+            assertEquals(List.of("x", "y"), stub.rows.get("db.msgs").get(0).get("col_6"));
+            assertEquals(1, transport.getValuesFallbacks());
+        }
+    }
+
+    @Test
+    public void schemaErrorReloadsColumns() throws Exception {
+        StubConnection stub = typedTable();
+        try (HttpStub http = new HttpStub(stub)) {
+            ClickhouseTableHelper helper = new ClickhouseTableHelper(stub.connection(), "db.msgs", "col_");
+            helper.setHttpTransport(HttpInsertTransport.builder(http.uri()).build());
+            assertEquals(1, helper.insert(Map.of("1", "v1", "2", "1")));
+
+            stub.tables.get("db.msgs").remove("col_2");
+            assertEquals(1, helper.insert(Map.of("1", "v2", "2", "2")));
+
+            assertEquals(3, http.requests.size());
+            assertEquals(1, stub.count("ALTER TABLE"));
+            assertEquals(1, helper.getMetrics().getSchemaRetries());
+            assertEquals(2, stub.rows.get("db.msgs").size());
+        }
+    }
+
+    @Test
+    public void unavailableIsRetriedWithSameToken() throws Exception {
+        StubConnection stub = typedTable();
+        try (HttpStub http = new HttpStub(stub)) {
+            ClickhouseTableHelper helper = new ClickhouseTableHelper(stub.connection(), "db.msgs", "col_");
+            helper.setHttpTransport(HttpInsertTransport.builder(http.uri()).build());
+            helper.setRetryPolicy(RetryPolicy.builder().maxAttempts(3).initialBackoffMillis(1).build());
+            helper.setDeduplicate(true);
+            List<Map<String, Object>> rows = rows(3);
+
+            http.failures.add(503);
+            assertEquals(3, helper.insertBulk(rows));
+            assertEquals(3, helper.insertBulk(rows));
+
+            assertEquals(3, http.requests.size());
+            assertNotNull(http.requests.get(0).token);
+            assertEquals(http.requests.get(0).token, http.requests.get(1).token);
+            assertEquals(1, helper.getMetrics().getRetries());
+            assertEquals(1, stub.deduplicated.size());
+            assertStored(stub, 3);
+        }
+    }
+
+    @Test
+    public void serverErrorIsNotTransient() throws Exception {
+        StubConnection stub = typedTable();
+        stub.rejectedValue = "bad";
+        try (HttpStub http = new HttpStub(stub)) {
+            HttpInsertTransport transport = HttpInsertTransport.builder(http.uri())
+                    .format(HttpInsertTransport.Format.VALUES)
+                    .build();
+            FlatBatch batch = new QueryFactory("col_").flatten(List.of(Map.of("1", "bad")));
+
+            SQLException ex = assertThrows(SQLException.class,
+                    () -> transport.insert("db.msgs", batch, stub.tables.get("db.msgs"), null));
+
+            assertTrue(ex.getMessage().startsWith("Code: 27. DB::Exception: Cannot parse input"), ex.getMessage());
+            assertEquals(27, ex.getErrorCode());
+            assertFalse(RetryPolicy.isTransient(ex));
+            assertEquals(1, transport.getFailures());
+        }
+    }
+}
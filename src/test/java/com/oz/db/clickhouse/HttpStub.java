@@ -0,0 +1,334 @@
+package com.oz.db.clickhouse;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * In-process stand-in for the HTTP interface of ClickHouse. It decodes gzip and deflate request
+ * bodies in the {@code Values}, {@code RowBinary} and {@code Native} formats and applies every
+ * insert to a {@link StubConnection} as a values statement, so schemas, stored rows and
+ * deduplication are shared with the JDBC path. Errors are answered like the server: status
+ * 500, the exception text as body and its code in {@code X-ClickHouse-Exception-Code}.
+ */
+class HttpStub implements AutoCloseable {
+
+    private static final Pattern INSERT = Pattern.compile("(?is)INSERT INTO (\\S+) \\((.*?)\\) FORMAT (\\w+)");
+    private static final Pattern CODE = Pattern.compile("Code: (\\d+)\\.");
+
+    static final class Request {
+        String query;
+        String token;
+        String user;
+        String contentEncoding;
+        String transferEncoding;
+        byte[] body;
+        int blocks;
+    }
+
+    final StubConnection stub;
+    final List<Request> requests = new CopyOnWriteArrayList<>();
+    /** Statuses answered once each by the next requests instead of inserting. */
+    final Queue<Integer> failures = new ConcurrentLinkedQueue<>();
+
+    private final HttpServer server;
+
+    HttpStub(StubConnection stub) throws IOException {
+        this.stub = stub;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    URI uri() {
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            Map<String, String> params = params(exchange.getRequestURI().getRawQuery());
+            Request request = new Request();
+            request.query = params.get("query");
+            request.token = params.get("insert_deduplication_token");
+            request.user = exchange.getRequestHeaders().getFirst("X-ClickHouse-User");
+            request.contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+            request.transferEncoding = exchange.getRequestHeaders().getFirst("Transfer-Encoding");
+            try (InputStream in = decode(exchange.getRequestBody(), request.contentEncoding)) {
+                request.body = in.readAllBytes();
+            }
+            requests.add(request);
+            Integer status = failures.poll();
+            if (null != status) {
+                respond(exchange, status, "Service Unavailable", null);
+                return;
+            }
+            try {
+                int rows = stub.execute(valuesStatement(request));
+                respond(exchange, 200, "", "{\"read_rows\":\"0\",\"written_rows\":\"" + rows + "\"}");
+            } catch (SQLException ex) {
+                Matcher code = CODE.matcher(String.valueOf(ex.getMessage()));
+                if (code.find()) {
+                    exchange.getResponseHeaders().add("X-ClickHouse-Exception-Code", code.group(1));
+                }
+                respond(exchange, 500, ex.getMessage() + "\n", null);
+            }
+        } catch (RuntimeException ex) {
+            respond(exchange, 400, "Code: 27. DB::Exception: Cannot parse input: " + ex + "\n", null);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body, String summary) throws IOException {
+        if (null != summary) {
+            exchange.getResponseHeaders().add("X-ClickHouse-Summary", summary);
+        }
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    private static InputStream decode(InputStream in, String contentEncoding) throws IOException {
+        if ("gzip".equals(contentEncoding)) {
+            return new GZIPInputStream(in);
+        }
+        if ("deflate".equals(contentEncoding)) {
+            return new InflaterInputStream(in);
+        }
+        return in;
+    }
+
+    private static Map<String, String> params(String query) {
+        Map<String, String> params = new HashMap<>();
+        for (String param : null == query ? new String[0] : query.split("&")) {
+            int eq = param.indexOf('=');
+            params.put(URLDecoder.decode(param.substring(0, eq), StandardCharsets.UTF_8),
+                    URLDecoder.decode(param.substring(eq + 1), StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    /**
+     * @return the insert as the statement the JDBC path would have sent
+     */
+    private String valuesStatement(Request request) throws SQLException {
+        Matcher m = INSERT.matcher(request.query);
+        if (!m.matches()) {
+            throw new SQLException("Code: 62. DB::Exception: Syntax error: " + request.query);
+        }
+        String table = m.group(1);
+        List<String> columns = new ArrayList<>();
+        for (String column : m.group(2).split(",")) {
+            columns.add(column.trim());
+        }
+        StringBuilder sql = new StringBuilder("insert into ").append(table).append(" ( ")
+                .append(String.join(",", columns)).append(" )");
+        if (null != request.token) {
+            sql.append(" SETTINGS insert_deduplication_token = '").append(request.token).append('\'');
+        }
+        sql.append(" values ");
+        ByteBuffer in = ByteBuffer.wrap(request.body).order(ByteOrder.LITTLE_ENDIAN);
+        switch (m.group(3)) {
+            case "Values":
+                sql.append(new String(request.body, StandardCharsets.UTF_8));
+                break;
+            case "RowBinary":
+                List<String> types = new ArrayList<>();
+                Map<String, String> schema = stub.tables.get(table);
+                if (null == schema) {
+                    throw new SQLException("Code: 60. DB::Exception: Table " + table + " doesn't exist");
+                }
+                for (String column : columns) {
+                    if (!schema.containsKey(column)) {
+                        throw new SQLException("Code: 16. DB::Exception: No such column " + column + " in table " + table);
+                    }
+                    types.add(schema.get(column));
+                }
+                while (in.hasRemaining()) {
+                    sql.append('(');
+                    for (int i = 0; i < types.size(); i++) {
+                        sql.append(i > 0 ? "," : "").append(readRowBinary(in, types.get(i)));
+                    }
+                    sql.append(')');
+                }
+                break;
+            case "Native":
+                while (in.hasRemaining()) {
+                    readBlock(in, sql);
+                    request.blocks++;
+                }
+                break;
+            default:
+                throw new SQLException("Code: 73. DB::Exception: Unknown format " + m.group(3));
+        }
+        return sql.toString();
+    }
+
+    private static String readRowBinary(ByteBuffer in, String type) {
+        type = unwrap(type, "LowCardinality(");
+        if (type.startsWith("Nullable(")) {
+            return in.get() == 1 ? "NULL" : readValue(in, unwrap(type, "Nullable("));
+        }
+        return readValue(in, type);
+    }
+
+    private static void readBlock(ByteBuffer in, StringBuilder sql) {
+        int columns = (int) readVarInt(in);
+        int rows = (int) readVarInt(in);
+        String[][] values = new String[rows][columns];
+        for (int column = 0; column < columns; column++) {
+            readString(in);
+            String type = readString(in);
+            if (type.startsWith("LowCardinality(")) {
+                type = unwrap(type, "LowCardinality(");
+                boolean nullable = type.startsWith("Nullable(");
+                String keyType = unwrap(type, "Nullable(");
+                in.getLong();
+                int width = 1 << (int) (in.getLong() & 0xff);
+                String[] keys = new String[(int) in.getLong()];
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = readValue(in, keyType);
+                }
+                in.getLong();
+                for (int row = 0; row < rows; row++) {
+                    int key = (int) readFixed(in, width);
+                    values[row][column] = nullable && key == 0 ? "NULL" : keys[key];
+                }
+                continue;
+            }
+            boolean[] nulls = new boolean[rows];
+            if (type.startsWith("Nullable(")) {
+                type = unwrap(type, "Nullable(");
+                for (int row = 0; row < rows; row++) {
+                    nulls[row] = in.get() == 1;
+                }
+            }
+            for (int row = 0; row < rows; row++) {
+                String value = readValue(in, type);
+                values[row][column] = nulls[row] ? "NULL" : value;
+            }
+        }
+        for (String[] row : values) {
+            sql.append('(').append(String.join(",", row)).append(')');
+        }
+    }
+
+    /**
+     * @return the value as a literal
+     */
+    private static String readValue(ByteBuffer in, String type) {
+        switch (type) {
+            case "String":
+                StringBuilder quoted = new StringBuilder();
+                try {
+                    InsertEncoder.writeQuoted(quoted, readString(in));
+                } catch (IOException ex) {
+                    throw new IllegalStateException(ex);
+                }
+                return quoted.toString();
+            case "Int8":
+                return Byte.toString(in.get());
+            case "Int16":
+                return Short.toString(in.getShort());
+            case "Int32":
+                return Integer.toString(in.getInt());
+            case "Int64":
+                return Long.toString(in.getLong());
+            case "UInt8":
+                return Integer.toString(Byte.toUnsignedInt(in.get()));
+            case "UInt16":
+                return Integer.toString(Short.toUnsignedInt(in.getShort()));
+            case "UInt32":
+                return Integer.toUnsignedString(in.getInt());
+            case "UInt64":
+                return Long.toUnsignedString(in.getLong());
+            case "Float32":
+                return Float.toString(in.getFloat());
+            case "Float64":
+                return Double.toString(in.getDouble());
+            case "Date":
+                return "'" + LocalDate.ofEpochDay(Short.toUnsignedInt(in.getShort())) + "'";
+            case "DateTime":
+                return "'" + dateTime(Integer.toUnsignedLong(in.getInt()), 0, 0) + "'";
+            default:
+                if (type.startsWith("DateTime64(")) {
+                    int scale = Integer.parseInt(type.substring("DateTime64(".length(), type.length() - 1).split(",")[0].trim());
+                    long ticks = in.getLong();
+                    long factor = (long) Math.pow(10, scale);
+                    return "'" + dateTime(Math.floorDiv(ticks, factor), Math.floorMod(ticks, factor), scale) + "'";
+                }
+                throw new IllegalArgumentException("Unknown type " + type);
+        }
+    }
+
+    private static String dateTime(long seconds, long fraction, int scale) {
+        String text = LocalDateTime.ofEpochSecond(seconds, 0, ZoneOffset.UTC).toString().replace('T', ' ');
+        if (text.length() == 16) {
+            text += ":00";
+        }
+        if (scale == 0) {
+            return text;
+        }
+        String digits = Long.toString(fraction);
+        return text + "." + "0".repeat(scale - digits.length()) + digits;
+    }
+
+    private static String unwrap(String type, String wrapper) {
+        return type.startsWith(wrapper) ? type.substring(wrapper.length(), type.length() - 1) : type;
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[(int) readVarInt(in)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long readVarInt(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private static long readFixed(ByteBuffer in, int width) {
+        long value = 0;
+        for (int i = 0; i < width; i++) {
+            value |= (long) (in.get() & 0xff) << (8 * i);
+        }
+        return value;
+    }
+}
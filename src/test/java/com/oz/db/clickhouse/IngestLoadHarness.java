@@ -0,0 +1,368 @@
+package com.oz.db.clickhouse;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End-to-end load test of {@link ClickhouseTableHelper#insertBulk(List)} against a
+ * {@link StubConnection} that only counts what it gets, without a network. Producer threads share
+ * one helper and connection pool and each insert their share of the batches; rows are taken from
+ * {@link RowFixtures}, and a share of them get a tag no row had before, so the helper has to add
+ * columns while the others insert.
+ * <p>
+ * Settings are {@code name=value} arguments named like the fields of {@link Config}:
+ * <pre>
+ * java -cp &lt;classpath&gt; com.oz.db.clickhouse.IngestLoadHarness producers=8 shape=SPARSE newColumnRate=0.0001
+ * </pre>
+ * It reports rows per second, insert latency percentiles, the DDL and schema retries it took,
+ * and the heap allocated by the producer threads per row. With {@code minRowsPerSecond} or
+ * {@code maxP99Millis} set it exits with status 1 if the run is slower.
+ */
+public class IngestLoadHarness {
+
+    /**
+     * Settings of a run, set from {@code name=value} arguments.
+     */
+    public static class Config {
+        /** Threads calling insertBulk at once. */
+        public int producers = 4;
+        /** Rows inserted over all producers. */
+        public int rows = 1_000_000;
+        public int batchSize = 10_000;
+        /** Tags per row shape, see {@link RowFixtures}. */
+        public int columns = 50;
+        public RowFixtures.Shape shape = RowFixtures.Shape.SPARSE;
+        /** Share of rows, from 0 to 1, that get a tag never seen before. */
+        public double newColumnRate;
+        /** Batches inserted into another table before the run. */
+        public int warmupBatches = 20;
+        /** Connections in the pool, the number of producers if 0. */
+        public int poolSize;
+        public ClickhouseTableHelper.InsertMode mode = ClickhouseTableHelper.InsertMode.VALUES;
+        public int sparseMinShapeRows;
+        /** Attempts per insert, including the first. */
+        public int maxAttempts = 3;
+        public long insertLatencyMicros = 1000;
+        public long rowLatencyNanos;
+        public long ddlLatencyMicros = 5000;
+        public long queryLatencyMicros = 500;
+        public double transientErrorRate;
+        public long dropColumnEvery;
+        public long seed = 42;
+        /** Fails the run below this throughput, 0 for no limit. */
+        public double minRowsPerSecond;
+        /** Fails the run above this p99 insert latency, 0 for no limit. */
+        public double maxP99Millis;
+
+        static Config parse(String[] args) {
+            Config config = new Config();
+            for (String arg : args) {
+                int eq = arg.indexOf('=');
+                if (eq < 0) {
+                    throw new IllegalArgumentException("Expected name=value: " + arg);
+                }
+                config.set(arg.substring(0, eq), arg.substring(eq + 1));
+            }
+            return config;
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private void set(String name, String value) {
+            Field field;
+            try {
+                field = Config.class.getField(name);
+            } catch (NoSuchFieldException ex) {
+                throw new IllegalArgumentException("Unknown setting " + name + ", known: " + fields().keySet());
+            }
+            Class<?> type = field.getType();
+            try {
+                if (type == int.class) {
+                    field.setInt(this, Integer.parseInt(value));
+                } else if (type == long.class) {
+                    field.setLong(this, Long.parseLong(value));
+                } else if (type == double.class) {
+                    field.setDouble(this, Double.parseDouble(value));
+                } else {
+                    field.set(this, Enum.valueOf((Class<Enum>) type, value.toUpperCase()));
+                }
+            } catch (IllegalAccessException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        Map<String, Object> fields() {
+            Map<String, Object> fields = new LinkedHashMap<>();
+            for (Field field : Config.class.getFields()) {
+                if (!Modifier.isStatic(field.getModifiers())) {
+                    try {
+                        fields.put(field.getName(), field.get(this));
+                    } catch (IllegalAccessException ex) {
+                        throw new IllegalStateException(ex);
+                    }
+                }
+            }
+            return fields;
+        }
+    }
+
+    /**
+     * Outcome of a run.
+     */
+    public static class Result {
+        public long rows;
+        public long insertedRows;
+        public long failedBatches;
+        public long elapsedNanos;
+        public long p50Nanos;
+        public long p99Nanos;
+        public long maxNanos;
+        /** Bytes allocated by the producer threads, -1 if the JVM cannot tell. */
+        public long allocatedBytes;
+        public long gcCount;
+        public long gcMillis;
+        public long ddlCount;
+        public long ddlNanos;
+        public long schemaRetries;
+        public long retries;
+        public Map<String, Long> server = new LinkedHashMap<>();
+
+        public double rowsPerSecond() {
+            return rows * 1e9 / Math.max(1, elapsedNanos);
+        }
+
+        public double allocatedBytesPerRow() {
+            return allocatedBytes < 0 ? -1 : (double) allocatedBytes / Math.max(1, rows);
+        }
+    }
+
+    private final Config config;
+    private final AtomicLong newTags = new AtomicLong(100_000);
+
+    public IngestLoadHarness(Config config) {
+        this.config = config;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Config config = Config.parse(args);
+        config.fields().forEach((name, value) -> System.out.printf("%-22s %s%n", name, value));
+        Result result = new IngestLoadHarness(config).run();
+        print(result);
+        List<String> failures = new ArrayList<>();
+        if (config.minRowsPerSecond > 0 && result.rowsPerSecond() < config.minRowsPerSecond) {
+            failures.add(String.format("%.0f rows/s below %.0f", result.rowsPerSecond(), config.minRowsPerSecond));
+        }
+        if (config.maxP99Millis > 0 && result.p99Nanos / 1e6 > config.maxP99Millis) {
+            failures.add(String.format("p99 %.1f ms above %.1f ms", result.p99Nanos / 1e6, config.maxP99Millis));
+        }
+        if (result.failedBatches > 0) {
+            failures.add(result.failedBatches + " batches not fully inserted");
+        }
+        if (!failures.isEmpty()) {
+            System.out.println("FAILED: " + String.join(", ", failures));
+            System.exit(1);
+        }
+    }
+
+    public Result run() throws Exception {
+        StubConnection server = new StubConnection();
+        server.recording = false;
+        server.insertLatencyNanos = TimeUnit.MICROSECONDS.toNanos(config.insertLatencyMicros);
+        server.rowLatencyNanos = config.rowLatencyNanos;
+        server.ddlLatencyNanos = TimeUnit.MICROSECONDS.toNanos(config.ddlLatencyMicros);
+        server.queryLatencyNanos = TimeUnit.MICROSECONDS.toNanos(config.queryLatencyMicros);
+        server.transientErrorRate = config.transientErrorRate;
+        server.dropColumnEvery = config.dropColumnEvery;
+        int poolSize = config.poolSize > 0 ? config.poolSize : config.producers;
+        try (ClickhouseConnectionPool pool = new ClickhouseConnectionPool(server::connect, poolSize, 60_000)) {
+            warmUp(pool);
+            ClickhouseTableHelper helper = helper(pool, "db.load");
+            Map<String, Long> serverBefore = server.counters();
+            long[] gcBefore = gc();
+
+            int batches = (config.rows + config.batchSize - 1) / config.batchSize;
+            List<Producer> producers = new ArrayList<>();
+            for (int i = 0; i < config.producers; i++) {
+                int share = batches / config.producers + (i < batches % config.producers ? 1 : 0);
+                producers.add(new Producer(helper, i, share));
+            }
+            ExecutorService executor = Executors.newFixedThreadPool(config.producers);
+            long elapsed;
+            try {
+                CyclicBarrier start = new CyclicBarrier(config.producers + 1);
+                List<Future<?>> futures = new ArrayList<>();
+                for (Producer producer : producers) {
+                    futures.add(executor.submit(() -> producer.run(start)));
+                }
+                start.await();
+                long startNanos = System.nanoTime();
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+                elapsed = System.nanoTime() - startNanos;
+            } finally {
+                executor.shutdownNow();
+            }
+
+            Result result = new Result();
+            result.elapsedNanos = elapsed;
+            long[] gcAfter = gc();
+            result.gcCount = gcAfter[0] - gcBefore[0];
+            result.gcMillis = gcAfter[1] - gcBefore[1];
+            int count = 0;
+            for (Producer producer : producers) {
+                result.rows += producer.rows;
+                result.insertedRows += producer.insertedRows;
+                result.failedBatches += producer.failedBatches;
+                result.allocatedBytes = producer.allocatedBytes < 0 || result.allocatedBytes < 0
+                        ? -1 : result.allocatedBytes + producer.allocatedBytes;
+                count += producer.latencies.length;
+            }
+            long[] latencies = new long[count];
+            int position = 0;
+            for (Producer producer : producers) {
+                System.arraycopy(producer.latencies, 0, latencies, position, producer.latencies.length);
+                position += producer.latencies.length;
+            }
+            Arrays.sort(latencies);
+            result.p50Nanos = percentile(latencies, 0.5);
+            result.p99Nanos = percentile(latencies, 0.99);
+            result.maxNanos = count == 0 ? 0 : latencies[count - 1];
+            IngestMetrics metrics = helper.getMetrics();
+            result.ddlCount = metrics.getDdlCount();
+            result.ddlNanos = metrics.getDdlNanos();
+            result.schemaRetries = metrics.getSchemaRetries();
+            result.retries = metrics.getRetries();
+            server.counters().forEach((name, value) -> result.server.put(name, value - serverBefore.get(name)));
+            return result;
+        }
+    }
+
+    private void warmUp(ClickhouseConnectionPool pool) {
+        ClickhouseTableHelper helper = helper(pool, "db.warmup");
+        Random random = new Random(config.seed);
+        for (int i = 0; i < config.warmupBatches; i++) {
+            helper.insertBulk(RowFixtures.fixture(config.shape, config.batchSize, config.columns, random));
+        }
+    }
+
+    private ClickhouseTableHelper helper(ClickhouseConnectionPool pool, String table) {
+        ClickhouseTableHelper helper = new ClickhouseTableHelper(pool, table, "col_");
+        helper.setInsertMode(config.mode);
+        helper.setSparseMinShapeRows(config.sparseMinShapeRows);
+        if (config.maxAttempts > 1) {
+            helper.setRetryPolicy(RetryPolicy.builder().maxAttempts(config.maxAttempts).initialBackoffMillis(1).build());
+        }
+        return helper;
+    }
+
+    private final class Producer {
+        private final ClickhouseTableHelper helper;
+        private final Random random;
+        private final long[] latencies;
+        private final List<List<Map<String, Object>>> templates = new ArrayList<>();
+
+        long rows;
+        long insertedRows;
+        long failedBatches;
+        long allocatedBytes;
+
+        Producer(ClickhouseTableHelper helper, int id, int batches) {
+            this.helper = helper;
+            this.random = new Random(config.seed + id + 1);
+            this.latencies = new long[batches];
+            for (int i = 0; i < Math.min(batches, 8); i++) {
+                templates.add(RowFixtures.fixture(config.shape, config.batchSize, config.columns, random));
+            }
+        }
+
+        void run(CyclicBarrier start) {
+            try {
+                start.await();
+            } catch (InterruptedException | BrokenBarrierException ex) {
+                throw new IllegalStateException(ex);
+            }
+            long allocated = allocatedBytes();
+            for (int i = 0; i < latencies.length; i++) {
+                List<Map<String, Object>> batch = withNewTags(templates.get(i % templates.size()));
+                long begin = System.nanoTime();
+                int cnt = helper.insertBulk(batch);
+                latencies[i] = System.nanoTime() - begin;
+                rows += batch.size();
+                insertedRows += cnt;
+                if (cnt < batch.size()) {
+                    failedBatches++;
+                }
+            }
+            allocatedBytes = allocated < 0 ? -1 : allocatedBytes() - allocated;
+        }
+
+        /**
+         * @return the rows with a share of them copied and given a tag no row had before
+         */
+        private List<Map<String, Object>> withNewTags(List<Map<String, Object>> template) {
+            if (config.newColumnRate <= 0) {
+                return template;
+            }
+            List<Map<String, Object>> batch = new ArrayList<>(template);
+            for (int i = 0; i < batch.size(); i++) {
+                if (random.nextDouble() < config.newColumnRate) {
+                    Map<String, Object> row = new HashMap<>(batch.get(i));
+                    row.put(String.valueOf(newTags.incrementAndGet()), "new");
+                    batch.set(i, row);
+                }
+            }
+            return batch;
+        }
+    }
+
+    private static long percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, Math.max(0, (int) Math.ceil(quantile * sorted.length) - 1))];
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * @return collections and milliseconds spent in them since start
+     */
+    private static long[] gc() {
+        long[] gc = new long[2];
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gc[0] += Math.max(0, bean.getCollectionCount());
+            gc[1] += Math.max(0, bean.getCollectionTime());
+        }
+        return gc;
+    }
+
+    private static void print(Result result) {
+        System.out.println();
+        System.out.printf("%-22s %d%n", "rows", result.rows);
+        System.out.printf("%-22s %d%n", "inserted rows", result.insertedRows);
+        System.out.printf("%-22s %d%n", "failed batches", result.failedBatches);
+        System.out.printf("%-22s %.3f s%n", "elapsed", result.elapsedNanos / 1e9);
+        System.out.printf("%-22s %.0f%n", "rows/s", result.rowsPerSecond());
+        System.out.printf("%-22s %.2f ms%n", "insert p50", result.p50Nanos / 1e6);
+        System.out.printf("%-22s %.2f ms%n", "insert p99", result.p99Nanos / 1e6);
+        System.out.printf("%-22s %.2f ms%n", "insert max", result.maxNanos / 1e6);
+        System.out.printf("%-22s %.0f B%n", "allocated per row", result.allocatedBytesPerRow());
+        System.out.printf("%-22s %d, %d ms%n", "gc", result.gcCount, result.gcMillis);
+        System.out.printf("%-22s %d, %.1f ms%n", "ddl and schema reads", result.ddlCount, result.ddlNanos / 1e6);
+        System.out.printf("%-22s %d%n", "schema retries", result.schemaRetries);
+        System.out.printf("%-22s %d%n", "retries", result.retries);
+        result.server.forEach((name, value) -> System.out.printf("%-22s %d%n", "server " + name, value));
+    }
+}
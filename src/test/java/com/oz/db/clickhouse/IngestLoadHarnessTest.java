@@ -0,0 +1,26 @@
+package com.oz.db.clickhouse;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IngestLoadHarnessTest {
+
+    @Test
+    public void shortRunWithSchemaChurn() throws Exception {
+        IngestLoadHarness.Config config = IngestLoadHarness.Config.parse(new String[]{
+                "producers=1", "rows=2000", "batchSize=100", "columns=20", "warmupBatches=1",
+                "newColumnRate=0.001", "dropColumnEvery=5", "transientErrorRate=0.05", "maxAttempts=5",
+                "insertLatencyMicros=0", "ddlLatencyMicros=0", "queryLatencyMicros=0"});
+
+        IngestLoadHarness.Result result = new IngestLoadHarness(config).run();
+
+        assertEquals(2000, result.rows);
+        assertEquals(2000, result.insertedRows);
+        assertEquals(0, result.failedBatches);
+        assertTrue(result.p50Nanos > 0);
+        assertTrue(result.server.get("addedColumns") > 0, result.server.toString());
+        assertTrue(result.server.get("droppedColumns") > 0, result.server.toString());
+        assertTrue(result.schemaRetries > 0);
+    }
+}
@@ -0,0 +1,112 @@
+package com.oz.db.clickhouse;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InsertEncoderTest {
+
+    @Test
+    public void escapeValues() {
+        List<String> columns = List.of("col_1", "col_2");
+        List<List<String>> values = List.of(List.of("it's", "back\\slash"), List.of("line\nbreak", "tab\t"));
+        QueryFactory queryFactory = new QueryFactory("col_");
+
+        String result = queryFactory.generateInsert(values, columns, "testTableName");
+        assertEquals("insert into testTableName ( col_1,col_2 ) " +
+                "values ('it\\'s','back\\\\slash')('line\\nbreak','tab\\t')", result);
+    }
+
+    @Test
+    public void encodeMissingValuesAsEmpty() throws SQLException {
+        ColumnDictionary dictionary = new ColumnDictionary();
+        FlatBatch batch = new FlatBatch(dictionary);
+        batch.add(dictionary.indexOf("col_1"), "v11");
+        batch.endRow();
+        batch.add(dictionary.indexOf("col_2"), "v22");
+        batch.endRow();
+        InsertEncoder encoder = new InsertEncoder();
+        List<String> statements = new ArrayList<>();
+
+        int cnt = encoder.encode("testTableName", batch, query -> {
+            statements.add(query);
+            return 2;
+        });
+
+        assertEquals(2, cnt);
+        assertEquals(List.of("insert into testTableName ( col_1,col_2 ) values ('v11','')('','v22')"), statements);
+    }
+
+    @Test
+    public void splitStatementsByLength() throws SQLException {
+        ColumnDictionary dictionary = new ColumnDictionary();
+        FlatBatch batch = new FlatBatch(dictionary);
+        for (int i = 0; i < 5; i++) {
+            batch.add(dictionary.indexOf("col_1"), "v" + i);
+            batch.endRow();
+        }
+        InsertEncoder encoder = new InsertEncoder(16, 50);
+        List<String> statements = new ArrayList<>();
+
+        int cnt = encoder.encode("t", batch, query -> {
+            statements.add(query);
+            return 1;
+        });
+
+        assertEquals(2, cnt);
+        assertEquals(List.of("insert into t ( col_1 ) values ('v0')('v1')('v2')('v3')",
+                "insert into t ( col_1 ) values ('v4')"), statements);
+    }
+
+    @Test
+    public void writeArraysFromElements() throws Exception {
+        StringBuilder out = new StringBuilder();
+        assertTrue(InsertEncoder.writeValue(out, "[ 'it\\'s' , 'a\\nb',[1.5, NULL]]", ColumnType.ARRAY));
+        assertEquals("['it\\'s','a\\nb',[1.5,NULL]]", out.toString());
+
+        out.setLength(0);
+        assertFalse(InsertEncoder.writeValue(out, "['a'],(1)); drop table t; --", ColumnType.ARRAY));
+        assertEquals("'[\\'a\\'],(1)); drop table t; --'", out.toString());
+
+        out.setLength(0);
+        assertFalse(InsertEncoder.writeValue(out, "[x]", ColumnType.ARRAY));
+        assertEquals("'[x]'", out.toString());
+    }
+
+    @Test
+    public void resumeAfterFailedStatement() throws SQLException {
+        ColumnDictionary dictionary = new ColumnDictionary();
+        FlatBatch batch = new FlatBatch(dictionary);
+        for (int i = 0; i < 5; i++) {
+            batch.add(dictionary.indexOf("col_1"), "v" + i);
+            batch.endRow();
+        }
+        InsertEncoder encoder = new InsertEncoder(16, 94);
+        InsertEncoder.Progress progress = new InsertEncoder.Progress();
+        List<String> statements = new ArrayList<>();
+        InsertEncoder.StatementSink failSecond = query -> {
+            statements.add(query);
+            if (statements.size() == 2) {
+                throw new SQLException("Connection reset");
+            }
+            return 3;
+        };
+
+        assertThrows(SQLException.class, () -> encoder.encode("t", batch, null, "tk", progress, failSecond));
+        assertEquals(3, progress.getRows());
+        assertEquals(1, progress.getStatements());
+        assertEquals(3, progress.getCount());
+
+        assertEquals(3, encoder.encode("t", batch, null, "tk", progress, failSecond));
+        assertEquals(List.of(
+                "insert into t ( col_1 ) SETTINGS insert_deduplication_token = 'tk_0' values ('v0')('v1')('v2')",
+                "insert into t ( col_1 ) SETTINGS insert_deduplication_token = 'tk_1' values ('v3')('v4')",
+                "insert into t ( col_1 ) SETTINGS insert_deduplication_token = 'tk_1' values ('v3')('v4')"),
+                statements);
+        assertEquals(5, progress.getRows());
+        assertEquals(6, progress.getCount());
+    }
+}
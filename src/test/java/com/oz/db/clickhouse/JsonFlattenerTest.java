@@ -0,0 +1,128 @@
+package com.oz.db.clickhouse;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JsonFlattenerTest {
+
+    private static final String LEVEL2 = "{\"1\":\"v1\",\"2\":[{\"21\":\"v21\",\"22\":[{\"221\":\"v221_1\",\"222\":\"v222_1\"}," +
+            "{\"221\":\"v221_2\",\"222\":\"v222_2\"}],\"23\":\"v23\"}],\"3\":\"v3\"}";
+
+    @Test
+    public void sameColumnsAsMaps() throws IOException {
+        Map<String, Object> msgMap22_1 = new TreeMap<>(Map.of("221", "v221_1", "222", "v222_1"));
+        Map<String, Object> msgMap22_2 = new TreeMap<>(Map.of("221", "v221_2", "222", "v222_2"));
+        Map<String, Object> msgMap2 = new TreeMap<>(Map.of("21", "v21", "22", List.of(msgMap22_1, msgMap22_2), "23", "v23"));
+        Map<String, Object> msgMap = new TreeMap<>(Map.of("1", "v1", "2", List.of(msgMap2), "3", "v3"));
+        QueryFactory queryFactory = new QueryFactory("col_");
+        FlatBatch expected = queryFactory.flatten(List.of(msgMap));
+
+        FlatBatch batch = new JsonFlattener(queryFactory).flatten(LEVEL2.getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(1, batch.getRowCount());
+        assertEquals(expected.getColumnNames(), batch.getColumnNames());
+        assertEquals(expected.getRow(0), batch.getRow(0));
+        assertEquals(queryFactory.createInsert(List.of(msgMap), "t"),
+                insert(batch));
+    }
+
+    private static String insert(FlatBatch batch) {
+        StringBuilder out = new StringBuilder();
+        InsertEncoder.writeInsert(out, "t", batch);
+        return out.toString();
+    }
+
+    @Test
+    public void arrayGroups() throws IOException {
+        Map<String, Object> msgMap22_1 = new TreeMap<>(Map.of("221", "v221_1", "222", "v222_1"));
+        Map<String, Object> msgMap22_2 = new TreeMap<>(Map.of("221", "v221_2"));
+        Map<String, Object> msgMap2_1 = new TreeMap<>(Map.of("21", "v21", "22", List.of(msgMap22_1, msgMap22_2)));
+        Map<String, Object> msgMap2_2 = new TreeMap<>(Map.of("21", "it's"));
+        Map<String, Object> msgMap = new TreeMap<>(Map.of("1", "v1", "2", List.of(msgMap2_1, msgMap2_2)));
+        QueryFactory queryFactory = new QueryFactory("col_");
+        queryFactory.setArrayGroups(true);
+        String json = "{\"1\":\"v1\",\"2\":[{\"21\":\"v21\",\"22\":[{\"221\":\"v221_1\",\"222\":\"v222_1\"}," +
+                "{\"221\":\"v221_2\"}]},{\"21\":\"it's\"}]}";
+
+        FlatBatch batch = new JsonFlattener(queryFactory).flatten(json.getBytes(StandardCharsets.UTF_8));
+
+        FlatBatch expected = queryFactory.flatten(List.of(msgMap));
+        assertEquals(expected.getColumnNames(), batch.getColumnNames());
+        assertEquals(expected.getRow(0), batch.getRow(0));
+    }
+
+    @Test
+    public void jsonEachRow() throws IOException {
+        QueryFactory queryFactory = new QueryFactory("col_");
+        String json = "{\"a\":\"x\",\"n\":12.5,\"b\":true}\n{\"a\":\"y\",\"z\":null,\"g\":[]}\n\n{\"c\":-3}\n";
+
+        FlatBatch batch = new JsonFlattener(queryFactory).flatten(json.getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(3, batch.getRowCount());
+        assertEquals(List.of("col_a", "col_n", "col_b", "col_g", "col_c"), batch.getColumnNames());
+        assertEquals(Map.of("col_a", "x", "col_n", "12.5", "col_b", "true"), batch.getRow(0));
+        assertEquals(Map.of("col_a", "y", "col_g", "0"), batch.getRow(1));
+        assertEquals(Map.of("col_c", "-3"), batch.getRow(2));
+    }
+
+    @Test
+    public void arrayOfObjects() throws IOException {
+        QueryFactory queryFactory = new QueryFactory("col_");
+        String json = " [ {\"a\":\"x\"} , {\"a\":\"y\"} ] ";
+
+        FlatBatch batch = new JsonFlattener(queryFactory).flatten(ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals(2, batch.getRowCount());
+        assertEquals(Map.of("col_a", "y"), batch.getRow(1));
+    }
+
+    @Test
+    public void escapesAndRawValues() throws IOException {
+        QueryFactory queryFactory = new QueryFactory("col_");
+        String json = "{\"s\":\"a\\\"b\\\\c\\n\\u00e9\u00e9\u20ac\",\"k\\u0031\":1,\"o\":{\"x\":[1,\"]\"]},\"l\":[1, 2]}";
+
+        FlatBatch batch = new JsonFlattener(queryFactory).flatten(json.getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(Map.of("col_s", "a\"b\\c\n\u00e9\u00e9\u20ac", "col_k1", "1",
+                "col_o", "{\"x\":[1,\"]\"]}", "col_l", "[1, 2]"), batch.getRow(0));
+    }
+
+    @Test
+    public void streamReadInSmallChunks() throws IOException {
+        QueryFactory queryFactory = new QueryFactory("col_");
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            json.append(LEVEL2).append('\n');
+        }
+        InputStream in = new ByteArrayInputStream(json.toString().getBytes(StandardCharsets.UTF_8)) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 3));
+            }
+        };
+
+        FlatBatch batch = new JsonFlattener(queryFactory).flatten(in);
+
+        FlatBatch expected = new JsonFlattener(queryFactory).flatten(LEVEL2.getBytes(StandardCharsets.UTF_8));
+        assertEquals(100, batch.getRowCount());
+        assertEquals(expected.getRow(0), batch.getRow(99));
+    }
+
+    @Test
+    public void malformed() {
+        JsonFlattener flattener = new JsonFlattener(new QueryFactory("col_"));
+
+        IOException ex = assertThrows(IOException.class,
+                () -> flattener.flatten("{\"a\":\"x\" \"b\":1}".getBytes(StandardCharsets.UTF_8)));
+        assertTrue(ex.getMessage().contains("offset 9"), ex.getMessage());
+        assertThrows(IOException.class, () -> flattener.flatten("{\"a\":\"x".getBytes(StandardCharsets.UTF_8)));
+    }
+}
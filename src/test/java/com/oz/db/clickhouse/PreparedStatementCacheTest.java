@@ -0,0 +1,44 @@
+package com.oz.db.clickhouse;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.PreparedStatement;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PreparedStatementCacheTest {
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        StubConnection stub = new StubConnection();
+        PreparedStatementCache cache = new PreparedStatementCache(stub.connection(), 2);
+
+        PreparedStatement a = cache.get("a", 0);
+        cache.get("b", 0);
+        assertSame(a, cache.get("a", 0));
+        cache.get("c", 0);
+
+        assertEquals(List.of("b"), stub.closedPrepared);
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getHits());
+        assertEquals(3, cache.getMisses());
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void schemaChangeClosesStatements() throws Exception {
+        StubConnection stub = new StubConnection();
+        PreparedStatementCache cache = new PreparedStatementCache(stub.connection(), 8);
+        PreparedStatement a = cache.get("a", 0);
+        cache.get("b", 0);
+
+        assertNotSame(a, cache.get("a", 1));
+        assertEquals(2, stub.closedPrepared.size());
+        assertEquals(1, cache.size());
+
+        cache.invalidate("a");
+        cache.close();
+        assertEquals(3, stub.closedPrepared.size());
+    }
+}
@@ -208,6 +208,113 @@ class QueryFactoryTest {
         assertColumns(columns, List.of("col_1", "col_2", "col_20_1", "col_3", "col_30_1", "col_31_1"));
     }
 
+    @Test
+    public void flatten_stableColumnIndexes() {
+        Map<String, Object> msgMap1 = Map.of("1", "v11", "2", List.of(Map.of("21", "v21")));
+        Map<String, Object> msgMap2 = Map.of("3", "v23", "1", "v21");
+        QueryFactory queryFactory = new QueryFactory("col_");
+
+        FlatBatch batch1 = queryFactory.flatten(List.of(msgMap1));
+        FlatBatch batch2 = queryFactory.flatten(List.of(msgMap2, msgMap1));
+
+        ColumnDictionary dictionary = queryFactory.getDictionary();
+        assertEquals(4, dictionary.size());
+        assertEquals(3, batch1.getColumnCount());
+        assertEquals(4, batch2.getColumnCount());
+        assertEquals(dictionary.indexOf("col_1"), dictionary.find("col_1"));
+        assertEquals(-1, dictionary.find("col_5"));
+        assertEquals("{col_1=v21, col_3=v23}", batch2.getRow(0).toString());
+        assertEquals("{col_1=v11, col_2=1, col_21_1=v21}", batch2.getRow(1).toString());
+        String[] values = new String[batch2.getColumnCount()];
+        batch2.fillRow(0, values);
+        assertEquals(2, Arrays.stream(values).filter(Objects::nonNull).count());
+    }
+
+    @Test
+    public void flatten_evictionKeepsBatchColumns() {
+        QueryFactory queryFactory = new QueryFactory("col_", 2);
+
+        FlatBatch batch = queryFactory.flatten(List.of(Map.of("1", "v1", "2", "v2")));
+        queryFactory.flatten(List.of(Map.of("3", "v3", "4", "v4", "5", "v5")));
+
+        assertNotSame(batch.getDictionary(), queryFactory.getDictionary());
+        assertTrue(queryFactory.getDictionary().size() <= 3);
+        assertEquals("{col_1=v1, col_2=v2}", batch.getRow(0).toString());
+    }
+
+    @Test
+    public void flatten_parallelSameAsSequential() {
+        List<Map<String, Object>> mapList = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            Map<String, Object> map = new HashMap<>();
+            map.put(String.valueOf(i % 37), "v" + i);
+            map.put("1", "v1_" + i);
+            if (i % 5 == 0) {
+                map.put("2", List.of(Map.of("21", "v21_" + i), Map.of(String.valueOf(100 + i % 11), "g" + i)));
+            }
+            mapList.add(map);
+        }
+        QueryFactory sequential = new QueryFactory("col_");
+        QueryFactory parallel = new QueryFactory("col_");
+        parallel.setParallelThreshold(16);
+
+        FlatBatch expected = sequential.flatten(mapList);
+        FlatBatch actual = parallel.flatten(mapList);
+
+        assertEquals(expected.getColumnNames(), actual.getColumnNames());
+        assertEquals(expected.getRowCount(), actual.getRowCount());
+        for (int row = 0; row < expected.getRowCount(); row++) {
+            assertEquals(expected.getRow(row), actual.getRow(row));
+        }
+        assertEquals(sequential.createInsert(mapList, "t"), parallel.createInsert(mapList, "t"));
+    }
+
+    @Test
+    public void splitByShape() {
+        List<Map<String, Object>> mapList = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            mapList.add(new TreeMap<>(Map.of("1", "a" + i, "2", "b" + i)));
+            mapList.add(new TreeMap<>(Map.of("1", "c" + i)));
+        }
+        mapList.add(new TreeMap<>(Map.of("3", "d")));
+        mapList.add(new TreeMap<>(Map.of("2", "e", "4", "f")));
+        FlatBatch batch = new QueryFactory("col_").flatten(mapList);
+
+        List<FlatBatch> parts = batch.splitByShape(2);
+
+        assertEquals(3, parts.size());
+        assertEquals(List.of("col_1", "col_2"), parts.get(0).getColumnNames());
+        assertEquals(3, parts.get(0).getRowCount());
+        assertEquals(Map.of("col_1", "a2", "col_2", "b2"), parts.get(0).getRow(2));
+        assertEquals(List.of("col_1"), parts.get(1).getColumnNames());
+        assertEquals(3, parts.get(1).getRowCount());
+        assertEquals(List.of("col_3", "col_2", "col_4"), parts.get(2).getColumnNames());
+        assertEquals(2, parts.get(2).getRowCount());
+        assertEquals(1, batch.splitByShape(10).size());
+    }
+
+    @Test
+    public void createInsert_arrayGroups() {
+        Map<String, Object> msgMap22_1 = new TreeMap<>(Map.of("221", "v221_1", "222", "v222_1"));
+        Map<String, Object> msgMap22_2 = new TreeMap<>(Map.of("221", "v221_2"));
+        Map<String, Object> msgMap2_1 = new TreeMap<>(Map.of("21", "v21", "22", List.of(msgMap22_1, msgMap22_2)));
+        Map<String, Object> msgMap2_2 = new TreeMap<>(Map.of("21", "it's"));
+        Map<String, Object> msgMap = new TreeMap<>(Map.of("1", "v1", "2", List.of(msgMap2_1, msgMap2_2)));
+        QueryFactory queryFactory = new QueryFactory("col_");
+        queryFactory.setArrayGroups(true);
+
+        String result = queryFactory.createInsert(List.of(msgMap), "t");
+
+        assertEquals("insert into t ( col_1,col_2.col_21,col_2.col_22.col_221,col_2.col_22.col_222 ) values " +
+                "('v1',['v21','it\\'s'],[['v221_1','v221_2'],[]],[['v222_1',''],[]])", result);
+        FlatBatch batch = queryFactory.flatten(List.of(msgMap));
+        assertEquals(0, queryFactory.getDictionary().arrayDepth(batch.getColumnIndex(0)));
+        assertEquals(1, queryFactory.getDictionary().arrayDepth(batch.getColumnIndex(1)));
+        assertEquals(2, queryFactory.getDictionary().arrayDepth(batch.getColumnIndex(2)));
+        assertColumns(queryFactory.getColumnsForBulk(List.of(msgMap)),
+                List.of("col_1", "col_2.col_21", "col_2.col_22.col_221", "col_2.col_22.col_222"));
+    }
+
     private void assertColumns(Collection<String> actual, Collection<String> expexted) {
         expexted.forEach(x -> assertTrue(actual.contains(x),
                 String.format("Value %s absent in %s",x, actual)));
@@ -0,0 +1,81 @@
+package com.oz.db.clickhouse;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLRecoverableException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardedTableHelperTest {
+
+    @Test
+    public void routeByTagAndSyncSchema() {
+        List<StubConnection> nodes = List.of(new StubConnection(), new StubConnection(), new StubConnection());
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        ShardedTableHelper sharded = ShardedTableHelper.create(
+                List.of(nodes.get(0).connection(), nodes.get(1).connection(), nodes.get(2).connection()),
+                "db.msgs_local", "col_", ShardedTableHelper.byTag("55"), executor);
+
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            rows.add(Map.of("55", "SYM" + (i % 6), "1", "v" + i));
+        }
+        rows.add(Map.of("55", "SYM0", "9", List.of(Map.of("91", "g"))));
+        int cnt = sharded.insertBulk(rows);
+        executor.shutdown();
+
+        assertEquals(31, cnt);
+        int total = 0;
+        for (StubConnection node : nodes) {
+            assertEquals(Set.of("date", "col_55", "col_1", "col_9", "col_91_1"),
+                    node.tables.get("db.msgs_local").keySet());
+            for (String insert : node.inserts) {
+                total += StubConnection.countTuples(insert.substring(insert.indexOf(" values ")));
+            }
+        }
+        assertEquals(31, total);
+        int shard = sharded.shardOf(Map.of("55", "SYM0"));
+        assertTrue(nodes.get(shard).inserts.stream().anyMatch(x -> x.contains("'g'")));
+    }
+
+    @Test
+    public void failedShardSpoolsItsPart() throws Exception {
+        StubConnection up = new StubConnection();
+        StubConnection down = new StubConnection();
+        ClickhouseTableHelper upHelper = new ClickhouseTableHelper(up.connection(), "db.msgs_local", "col_");
+        ClickhouseTableHelper downHelper = new ClickhouseTableHelper(down.connection(), "db.msgs_local", "col_");
+        Path directory = Files.createTempDirectory("spool");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (WriteAheadSpool spool = new WriteAheadSpool(directory, 1 << 20, 4, false)) {
+            downHelper.setSpool(spool);
+            ShardedTableHelper sharded = new ShardedTableHelper(List.of(upHelper, downHelper),
+                    ShardedTableHelper.byTag("55"), executor);
+            down.failure = new SQLRecoverableException("Connection refused");
+
+            List<Map<String, Object>> rows = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                rows.add(Map.of("55", "SYM" + i, "1", "v" + i));
+            }
+            int downRows = 0;
+            for (Map<String, Object> row : rows) {
+                downRows += sharded.shardOf(row);
+            }
+            assertEquals(10 - downRows, sharded.insertBulk(rows));
+
+            assertEquals(Set.of("date", "col_55", "col_1"), up.tables.get("db.msgs_local").keySet());
+            assertEquals(downRows, spool.getSpooledRows());
+            assertEquals(1, downHelper.getMetrics().getFailedInserts());
+        } finally {
+            executor.shutdown();
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(x -> x.toFile().delete());
+            }
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.oz.db.clickhouse;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SimpleMetricsRegistryTest {
+
+    @Test
+    public void bucketsCoverValues() {
+        for (long value : new long[]{0, 1, 15, 16, 17, 31, 32, 1000, 123_456_789, Long.MAX_VALUE}) {
+            int bucket = SimpleMetricsRegistry.HistogramTimer.bucket(value);
+            assertTrue(SimpleMetricsRegistry.HistogramTimer.upperBound(bucket) >= value);
+            assertTrue(bucket == 0 || SimpleMetricsRegistry.HistogramTimer.upperBound(bucket - 1) < value);
+        }
+    }
+
+    @Test
+    public void percentiles() {
+        MetricsRegistry.Timer timer = new SimpleMetricsRegistry().timer("latency", "t");
+        for (int i = 1; i <= 1000; i++) {
+            timer.record(i * 1000L);
+        }
+        assertEquals(1000, timer.getCount());
+        assertEquals(500_500_000L, timer.getTotalNanos());
+        assertEquals(1_000_000L, timer.getMaxNanos());
+        long p50 = timer.getPercentileNanos(0.5);
+        long p99 = timer.getPercentileNanos(0.99);
+        assertTrue(p50 >= 500_000 && p50 < 500_000 * 1.13, "p50 " + p50);
+        assertTrue(p99 >= 990_000 && p99 <= 1_000_000, "p99 " + p99);
+        assertEquals(0, new SimpleMetricsRegistry().timer("x", "t").getPercentileNanos(0.5));
+    }
+}
@@ -0,0 +1,542 @@
+package com.oz.db.clickhouse;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-process stand-in for a ClickHouse JDBC connection. It keeps table schemas and inserted rows,
+ * answers {@code system.columns} queries and column projections, applies CREATE, ALTER ADD and
+ * MODIFY COLUMN and DROP and rejects inserts into unknown tables or columns with the same
+ * messages as the server.
+ * <p>
+ * For load runs, {@link #recording} can be turned off so that statements and rows are only
+ * counted, statements can take a set time, inserts can fail with a transient error at a set rate,
+ * and a column can be dropped every n inserts to change the schema behind the helper's back.
+ */
+class StubConnection {
+
+    private static final Pattern CREATE = Pattern.compile("(?is)CREATE TABLE IF NOT EXISTS (\\S+) \\( (.*) \\) ENGINE.*");
+    private static final Pattern ALTER = Pattern.compile("(?is)ALTER TABLE (\\S+) (.*)");
+    private static final Pattern ADD_COLUMN = Pattern.compile("(?is)ADD COLUMN (?:IF NOT EXISTS )?(\\S+) (.+)");
+    private static final Pattern MODIFY_COLUMN = Pattern.compile("(?is)MODIFY COLUMN (\\S+) (.+)");
+    private static final Pattern DROP = Pattern.compile("(?is)DROP TABLE IF EXISTS (\\S+)");
+    private static final Pattern INSERT = Pattern.compile(
+            "(?is)insert into (\\S+) \\( (.*?) \\)(?: SETTINGS insert_deduplication_token = '(.*?)')? values (.*)");
+    private static final Pattern SELECT = Pattern.compile("(?is)SELECT (.+?) FROM (\\S+)(?: WHERE (.*))?");
+    private static final Pattern DATABASE_COLUMNS = Pattern.compile(
+            "(?is)SELECT table, name, type FROM system.columns WHERE database = '(.*?)'");
+    private static final Pattern COLUMNS = Pattern.compile(
+            "(?is)SELECT name, type FROM system.columns WHERE database = '(.*?)' and table = '(.*?)'");
+
+    final Map<String, Map<String, String>> tables = new ConcurrentHashMap<>();
+    final List<String> statements = new CopyOnWriteArrayList<>();
+    final List<String> inserts = new CopyOnWriteArrayList<>();
+    /** Rows sent through prepared statements, parameters in order. */
+    final List<List<Object>> preparedRows = new CopyOnWriteArrayList<>();
+    final List<String> prepared = new CopyOnWriteArrayList<>();
+    final List<String> closedPrepared = new CopyOnWriteArrayList<>();
+    /** Thrown by every statement while set, to simulate an unavailable server. */
+    volatile SQLException failure;
+    /** Thrown once each by the next inserts. */
+    final Queue<SQLException> insertFailures = new ConcurrentLinkedQueue<>();
+    /** Inserts containing this text are rejected like unparsable data. */
+    volatile String rejectedValue;
+    /** Rows inserted as values, by table; arrays are lists. */
+    final Map<String, List<Map<String, Object>>> rows = new ConcurrentHashMap<>();
+    volatile int fetchSize;
+    /** Keep statements, inserts and rows; when off they are only counted. */
+    volatile boolean recording = true;
+    /** Time every insert takes regardless of its size. */
+    volatile long insertLatencyNanos;
+    /** Time every inserted row adds. */
+    volatile long rowLatencyNanos;
+    volatile long ddlLatencyNanos;
+    volatile long queryLatencyNanos;
+    /** Share of inserts, from 0 to 1, that fail with a transient error after the schema check. */
+    volatile double transientErrorRate;
+    /** Drop a random column of the table after every n-th insert, 0 for never. */
+    volatile long dropColumnEvery;
+    final Set<String> deduplicationTokens = ConcurrentHashMap.newKeySet();
+    final List<String> deduplicated = new CopyOnWriteArrayList<>();
+
+    private final LongAdder insertCount = new LongAdder();
+    private final LongAdder rowCount = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder createTables = new LongAdder();
+    private final LongAdder alterTables = new LongAdder();
+    private final LongAdder addedColumns = new LongAdder();
+    private final LongAdder droppedColumns = new LongAdder();
+    private final LongAdder columnQueries = new LongAdder();
+    private final LongAdder schemaErrors = new LongAdder();
+    private final LongAdder injectedErrors = new LongAdder();
+    private final LongAdder connections = new LongAdder();
+
+    private final Connection connection = proxy(Connection.class, this::connectionCall);
+
+    Connection connection() {
+        return connection;
+    }
+
+    /**
+     * @return a new connection to the same tables, usable as a
+     * {@link ClickhouseConnectionPool.ConnectionFactory}
+     */
+    Connection connect() {
+        connections.increment();
+        return proxy(Connection.class, this::connectionCall);
+    }
+
+    /**
+     * @return every counter by name, in a stable order
+     */
+    Map<String, Long> counters() {
+        Map<String, Long> counters = new LinkedHashMap<>();
+        counters.put("inserts", insertCount.sum());
+        counters.put("rows", rowCount.sum());
+        counters.put("bytes", bytes.sum());
+        counters.put("createTables", createTables.sum());
+        counters.put("alterTables", alterTables.sum());
+        counters.put("addedColumns", addedColumns.sum());
+        counters.put("droppedColumns", droppedColumns.sum());
+        counters.put("columnQueries", columnQueries.sum());
+        counters.put("schemaErrors", schemaErrors.sum());
+        counters.put("injectedErrors", injectedErrors.sum());
+        counters.put("connections", connections.sum());
+        return counters;
+    }
+
+    long count(String prefix) {
+        return statements.stream().filter(x -> x.regionMatches(true, 0, prefix, 0, prefix.length())).count();
+    }
+
+    void createTable(String table, String... columns) {
+        Map<String, String> schema = new ConcurrentHashMap<>();
+        for (String column : columns) {
+            schema.put(column, "String");
+        }
+        tables.put(table, schema);
+    }
+
+    private Object connectionCall(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "createStatement":
+                return newStatement();
+            case "prepareStatement":
+                prepared.add((String) args[0]);
+                return newPreparedStatement((String) args[0]);
+            case "isClosed":
+            case "isReadOnly":
+                return false;
+            case "isValid":
+            case "getAutoCommit":
+                return true;
+            default:
+                return defaultValue(method);
+        }
+    }
+
+    private Statement newStatement() {
+        int[] updateCount = {-1};
+        return proxy(Statement.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "execute":
+                    updateCount[0] = execute((String) args[0]);
+                    return false;
+                case "executeUpdate":
+                    updateCount[0] = execute((String) args[0]);
+                    return updateCount[0];
+                case "executeQuery":
+                    return query((String) args[0]);
+                case "getUpdateCount":
+                    return updateCount[0];
+                case "setFetchSize":
+                    fetchSize = (Integer) args[0];
+                    return null;
+                default:
+                    return defaultValue(method);
+            }
+        });
+    }
+
+    private PreparedStatement newPreparedStatement(String sql) {
+        Map<Integer, Object> parameters = new TreeMap<>();
+        List<List<Object>> batch = new ArrayList<>();
+        int[] batchSize = {0};
+        return proxy(PreparedStatement.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "setString":
+                case "setLong":
+                case "setDouble":
+                case "setBigDecimal":
+                    parameters.put((Integer) args[0], args[1]);
+                    return null;
+                case "setNull":
+                    parameters.put((Integer) args[0], null);
+                    return null;
+                case "addBatch":
+                    if (recording) {
+                        batch.add(new ArrayList<>(parameters.values()));
+                    }
+                    parameters.clear();
+                    batchSize[0]++;
+                    return null;
+                case "executeBatch":
+                    execute(sql.substring(0, sql.indexOf(" values ")) + " values ", batchSize[0]);
+                    preparedRows.addAll(batch);
+                    int[] counts = new int[batchSize[0]];
+                    Arrays.fill(counts, 1);
+                    batch.clear();
+                    batchSize[0] = 0;
+                    return counts;
+                case "close":
+                    closedPrepared.add(sql);
+                    return null;
+                default:
+                    return defaultValue(method);
+            }
+        });
+    }
+
+    int execute(String sql) throws SQLException {
+        return execute(sql, -1);
+    }
+
+    /**
+     * @param preparedCount rows of a prepared statement batch, -1 to count the tuples of the sql
+     */
+    private int execute(String sql, int preparedCount) throws SQLException {
+        if (recording) {
+            statements.add(sql);
+        }
+        if (null != failure) {
+            throw failure;
+        }
+        Matcher m;
+        if ((m = INSERT.matcher(sql)).matches()) {
+            Map<String, String> schema = schema(m.group(1));
+            for (String column : m.group(2).split(",")) {
+                if (!schema.containsKey(column.trim())) {
+                    schemaErrors.increment();
+                    throw new SQLException("Code: 16. DB::Exception: No such column " + column.trim()
+                            + " in table " + m.group(1));
+                }
+            }
+            SQLException insertFailure = insertFailures.poll();
+            if (null != insertFailure) {
+                throw insertFailure;
+            }
+            if (null != rejectedValue && m.group(4).contains(rejectedValue)) {
+                throw new SQLException("Code: 27. DB::Exception: Cannot parse input: " + rejectedValue);
+            }
+            int count = preparedCount < 0 ? countTuples(m.group(4)) : preparedCount;
+            if (null != m.group(3) && !deduplicationTokens.add(m.group(3))) {
+                deduplicated.add(sql);
+                return count;
+            }
+            pause(insertLatencyNanos + rowLatencyNanos * count);
+            if (transientErrorRate > 0 && ThreadLocalRandom.current().nextDouble() < transientErrorRate) {
+                injectedErrors.increment();
+                throw new SQLTransientConnectionException("Connection reset");
+            }
+            insertCount.increment();
+            rowCount.add(count);
+            bytes.add(sql.length());
+            if (recording) {
+                inserts.add(sql);
+                String[] columns = m.group(2).split(",");
+                List<Map<String, Object>> tableRows = rows.computeIfAbsent(m.group(1), x -> new CopyOnWriteArrayList<>());
+                for (List<Object> tuple : parseTuples(m.group(4))) {
+                    Map<String, Object> row = new HashMap<>();
+                    for (int i = 0; i < columns.length; i++) {
+                        row.put(columns[i].trim(), tuple.get(i));
+                    }
+                    tableRows.add(row);
+                }
+            }
+            if (dropColumnEvery > 0 && insertCount.sum() % dropColumnEvery == 0) {
+                dropRandomColumn(schema);
+            }
+            return count;
+        } else if ((m = CREATE.matcher(sql)).matches()) {
+            pause(ddlLatencyNanos);
+            createTables.increment();
+            Map<String, String> schema = new ConcurrentHashMap<>();
+            for (String definition : splitTopLevel(m.group(2))) {
+                if (!definition.startsWith("INDEX ")) {
+                    int space = definition.indexOf(' ');
+                    schema.put(definition.substring(0, space), columnType(definition.substring(space + 1)));
+                }
+            }
+            tables.putIfAbsent(m.group(1), schema);
+        } else if ((m = ALTER.matcher(sql)).matches()) {
+            pause(ddlLatencyNanos);
+            alterTables.increment();
+            Map<String, String> schema = schema(m.group(1));
+            for (String clause : m.group(2).split(", (?=ADD COLUMN|MODIFY COLUMN)")) {
+                Matcher add = ADD_COLUMN.matcher(clause.trim());
+                Matcher modify = MODIFY_COLUMN.matcher(clause.trim());
+                if (add.matches()) {
+                    if (null == schema.putIfAbsent(add.group(1), columnType(add.group(2).trim()))) {
+                        addedColumns.increment();
+                    }
+                } else if (modify.matches()) {
+                    schema.put(modify.group(1), columnType(modify.group(2).trim()));
+                }
+            }
+        } else if ((m = DROP.matcher(sql)).matches()) {
+            tables.remove(m.group(1));
+        }
+        return 0;
+    }
+
+    private void dropRandomColumn(Map<String, String> schema) {
+        List<String> columns = new ArrayList<>(schema.keySet());
+        columns.remove("date");
+        if (!columns.isEmpty()
+                && null != schema.remove(columns.get(ThreadLocalRandom.current().nextInt(columns.size())))) {
+            droppedColumns.increment();
+        }
+    }
+
+    private static void pause(long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        for (long left = nanos; left > 0; left = deadline - System.nanoTime()) {
+            LockSupport.parkNanos(left);
+        }
+    }
+
+    private static List<String> splitTopLevel(String list) {
+        List<String> items = new ArrayList<>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i < list.length(); i++) {
+            char c = list.charAt(i);
+            if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                items.add(list.substring(start, i).trim());
+                start = i + 1;
+            }
+        }
+        items.add(list.substring(start).trim());
+        return items;
+    }
+
+    /**
+     * Type as reported by {@code system.columns}, without default expression and codec.
+     */
+    private static String columnType(String definition) {
+        String type = definition.replaceAll(" CODEC\\(.*\\)$", "");
+        int defaultExpression = type.indexOf(" DEFAULT ");
+        return defaultExpression < 0 ? type : type.substring(0, defaultExpression);
+    }
+
+    private Map<String, String> schema(String table) throws SQLException {
+        Map<String, String> schema = tables.get(table);
+        if (null == schema) {
+            throw new SQLException("Code: 60. DB::Exception: Table " + table + " doesn't exist");
+        }
+        return schema;
+    }
+
+    private ResultSet query(String sql) throws SQLException {
+        if (recording) {
+            statements.add(sql);
+        }
+        if (null != failure) {
+            throw failure;
+        }
+        pause(queryLatencyNanos);
+        List<Map<String, String>> rows = new ArrayList<>();
+        Matcher m = COLUMNS.matcher(sql);
+        if (m.matches()) {
+            columnQueries.increment();
+            Map<String, String> schema = tables.get(m.group(1) + "." + m.group(2));
+            if (null != schema) {
+                schema.forEach((name, type) -> rows.add(Map.of("name", name, "type", type)));
+            }
+        } else if ((m = DATABASE_COLUMNS.matcher(sql)).matches()) {
+            columnQueries.increment();
+            String prefix = m.group(1) + ".";
+            tables.forEach((table, schema) -> {
+                if (table.startsWith(prefix)) {
+                    schema.forEach((name, type) -> rows.add(
+                            Map.of("table", table.substring(prefix.length()), "name", name, "type", type)));
+                }
+            });
+        } else if ((m = SELECT.matcher(sql)).matches()) {
+            Map<String, String> schema = schema(m.group(2));
+            List<String> columns = new ArrayList<>();
+            for (String column : m.group(1).split(",")) {
+                columns.add(column.trim());
+            }
+            return selectResult(columns, schema, this.rows.getOrDefault(m.group(2), List.of()));
+        }
+        return resultSet(rows);
+    }
+
+    /**
+     * Result of a projection; columns a row does not have read as the type's default.
+     */
+    private static ResultSet selectResult(List<String> columns, Map<String, String> schema,
+                                          List<Map<String, Object>> rows) {
+        int[] current = {-1};
+        return proxy(ResultSet.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "next":
+                    return ++current[0] < rows.size();
+                case "getString":
+                case "getObject":
+                    String column = columns.get((Integer) args[0] - 1);
+                    Object value = rows.get(current[0]).get(column);
+                    if (null == value) {
+                        value = String.valueOf(schema.get(column)).startsWith("Array(") ? List.of() : "";
+                    }
+                    return "getString".equals(method.getName()) ? value.toString() : value;
+                default:
+                    return defaultValue(method);
+            }
+        });
+    }
+
+    /**
+     * Parses {@code values} tuples; strings are unescaped, arrays become lists.
+     */
+    static List<List<Object>> parseTuples(String values) {
+        List<List<Object>> tuples = new ArrayList<>();
+        int[] pos = {0};
+        while (pos[0] < values.length()) {
+            char c = values.charAt(pos[0]++);
+            if (c == '(') {
+                List<Object> tuple = new ArrayList<>();
+                parseList(values, pos, ')', tuple);
+                tuples.add(tuple);
+            }
+        }
+        return tuples;
+    }
+
+    private static void parseList(String values, int[] pos, char end, List<Object> out) {
+        while (values.charAt(pos[0]) != end) {
+            out.add(parseValue(values, pos));
+            if (values.charAt(pos[0]) == ',') {
+                pos[0]++;
+            }
+        }
+        pos[0]++;
+    }
+
+    private static Object parseValue(String values, int[] pos) {
+        char c = values.charAt(pos[0]);
+        if (c == '[') {
+            pos[0]++;
+            List<Object> list = new ArrayList<>();
+            parseList(values, pos, ']', list);
+            return list;
+        }
+        StringBuilder value = new StringBuilder();
+        if (c == '\'') {
+            pos[0]++;
+            while ((c = values.charAt(pos[0]++)) != '\'') {
+                if (c == '\\') {
+                    c = values.charAt(pos[0]++);
+                    c = c == 'n' ? '\n' : c == 'r' ? '\r' : c == 't' ? '\t' : c == '0' ? '\0' : c;
+                }
+                value.append(c);
+            }
+            return value.toString();
+        }
+        while ((c = values.charAt(pos[0])) != ',' && c != ')' && c != ']') {
+            value.append(c);
+            pos[0]++;
+        }
+        return value.toString().trim();
+    }
+
+    static ResultSet resultSet(List<Map<String, String>> rows) {
+        int[] current = {-1};
+        return proxy(ResultSet.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "next":
+                    return ++current[0] < rows.size();
+                case "getString":
+                    return rows.get(current[0]).get((String) args[0]);
+                default:
+                    return defaultValue(method);
+            }
+        });
+    }
+
+    static int countTuples(String values) {
+        int count = 0;
+        int depth = 0;
+        boolean quoted = false;
+        for (int i = 0; i < values.length(); i++) {
+            char c = values.charAt(i);
+            if (quoted) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == '\'') {
+                    quoted = false;
+                }
+            } else if (c == '\'') {
+                quoted = true;
+            } else if (c == '(' || c == '[') {
+                if (depth++ == 0) {
+                    count++;
+                }
+            } else if (c == ')' || c == ']') {
+                depth--;
+            }
+        }
+        return count;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(StubConnection.class.getClassLoader(), new Class<?>[]{type},
+                (proxy, method, args) -> {
+                    if (method.getDeclaringClass() == Object.class) {
+                        switch (method.getName()) {
+                            case "equals":
+                                return proxy == args[0];
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                            default:
+                                return type.getSimpleName() + "@" + System.identityHashCode(proxy);
+                        }
+                    }
+                    return handler.invoke(proxy, method, args);
+                });
+    }
+
+    static Object defaultValue(Method method) {
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class || type == long.class) {
+            return type == int.class ? (Object) 0 : (Object) 0L;
+        } else if (type.isPrimitive() && type != void.class) {
+            throw new UnsupportedOperationException(method.getName());
+        }
+        return null;
+    }
+}
@@ -0,0 +1,94 @@
+package com.oz.db.clickhouse;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TableRegistryTest {
+
+    @Test
+    public void preloadSchemasAndRoute() throws Exception {
+        StubConnection stub = new StubConnection();
+        stub.createTable("db.quotes", "date", "col_type", "col_1");
+        stub.createTable("db.trades", "date", "col_type", "col_1");
+        stub.createTable("other.quotes", "date");
+        try (TableRegistry registry = TableRegistry.builder(ClickhouseConnectionPool.of(stub.connection()), "db")
+                .route(TableRegistry.byTag("type"))
+                .build()) {
+
+            assertEquals(2, registry.preloadSchemas());
+            List<Map<String, Object>> rows = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                rows.add(new TreeMap<>(Map.of("type", i % 2 == 0 ? "quotes" : "trades", "1", "v" + i)));
+            }
+            rows.add(Map.of("1", "no type"));
+            rows.add(new TreeMap<>(Map.of("type", "orders", "2", "v2")));
+
+            assertEquals(11, registry.insertBulk(rows));
+            assertEquals(Set.of("quotes", "trades", "orders"), registry.getTables());
+            assertEquals(1, registry.getUnroutedRows());
+            assertEquals(1, stub.count("SELECT table, name, type FROM system.columns"));
+            assertEquals(2, stub.count("SELECT name, type FROM system.columns"));
+            assertEquals(1, stub.count("ALTER TABLE"));
+            assertEquals(Set.of("date", "col_type", "col_2"), stub.tables.get("db.orders").keySet());
+        }
+    }
+
+    @Test
+    public void writersShareTheInsertLimit() throws Exception {
+        StubConnection stub = new StubConnection();
+        stub.insertLatencyNanos = 20_000_000;
+        try (TableRegistry registry = TableRegistry.builder(ClickhouseConnectionPool.of(stub.connection()), "db")
+                .route(row -> "t" + row.get("1"))
+                .writerSetup(writer -> writer.maxBatchRows(5))
+                .maxConcurrentInserts(2)
+                .build()) {
+
+            for (int i = 0; i < 40; i++) {
+                assertTrue(registry.add(Map.of("1", String.valueOf(i % 8), "2", "v" + i)));
+            }
+            registry.flush();
+
+            assertEquals(8, registry.getTables().size());
+            long total = 0;
+            for (String table : registry.getTables()) {
+                total += registry.writer(table).getInsertedRows();
+            }
+            assertEquals(40, total);
+            assertTrue(registry.getMaxInFlightInserts() <= 2, "max in flight " + registry.getMaxInFlightInserts());
+            assertEquals(0, registry.getInFlightInserts());
+        }
+    }
+
+    @Test
+    public void invalidNamesAndTablesOverTheLimitAreUnrouted() throws Exception {
+        StubConnection stub = new StubConnection();
+        try (TableRegistry registry = TableRegistry.builder(ClickhouseConnectionPool.of(stub.connection()), "db")
+                .route(TableRegistry.byTag("type"))
+                .maxTables(2)
+                .build()) {
+
+            List<Map<String, Object>> rows = new ArrayList<>();
+            for (String type : List.of("quotes", "trades", "x; DROP TABLE y", "1st", "orders", "quotes")) {
+                rows.add(new TreeMap<>(Map.of("type", type, "1", "v")));
+            }
+            assertEquals(3, registry.insertBulk(rows));
+            assertFalse(registry.add(new TreeMap<>(Map.of("type", "fills", "1", "v"))));
+
+            assertEquals(Set.of("quotes", "trades"), registry.getTables());
+            assertEquals(4, registry.getUnroutedRows());
+            assertTrue(stub.statements.stream().noneMatch(x -> x.contains("DROP")));
+            assertThrows(IllegalArgumentException.class, () -> registry.helper("a.b"));
+        }
+        assertThrows(IllegalStateException.class, () -> TableRegistry.builder(
+                ClickhouseConnectionPool.of(stub.connection()), "db' OR 1=1").route(x -> "t").build());
+    }
+
+    @Test
+    public void virtualThreadsWhenAvailable() {
+        boolean available = Runtime.version().feature() >= 21;
+        assertEquals(available, null != TableRegistry.virtualThreadFactory("test-"));
+    }
+}
@@ -0,0 +1,235 @@
+package com.oz.db.clickhouse;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WriteAheadSpoolTest {
+
+    private Path directory;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("spool");
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(x -> x.toFile().delete());
+        }
+    }
+
+    @Test
+    public void appendAndReplay() throws Exception {
+        QueryFactory factory = new QueryFactory("col_");
+        try (WriteAheadSpool spool = new WriteAheadSpool(directory, 1 << 20, 4, false)) {
+            assertTrue(spool.append(factory.flatten(List.of(Map.of("1", "a'b", "2", "c")))));
+            assertTrue(spool.append(factory.flatten(List.of(Map.of("1", "d"), Map.of("3", "\u00e9")))));
+
+            List<Map<String, String>> rows = new ArrayList<>();
+            assertEquals(2, spool.replay(new ColumnDictionary(), batch -> rows.addAll(rows(batch))));
+            assertEquals(List.of(Map.of("col_1", "a'b", "col_2", "c"), Map.of("col_1", "d"), Map.of("col_3", "\u00e9")), rows);
+            assertEquals(0, spool.replay(new ColumnDictionary(), batch -> fail("nothing to replay")));
+            assertEquals(3, spool.getSpooledRows());
+            assertEquals(3, spool.getReplayedRows());
+        }
+    }
+
+    @Test
+    public void failedReplayIsRetried() throws Exception {
+        QueryFactory factory = new QueryFactory("col_");
+        try (WriteAheadSpool spool = new WriteAheadSpool(directory, 1 << 20, 4, false)) {
+            spool.append(factory.flatten(List.of(Map.of("1", "a"))));
+            spool.append(factory.flatten(List.of(Map.of("1", "b"))));
+
+            List<String> values = new ArrayList<>();
+            assertThrows(SQLException.class, () -> spool.replay(new ColumnDictionary(), batch -> {
+                if (!values.isEmpty()) {
+                    throw new SQLException("Connection refused");
+                }
+                values.add(batch.getCellValue(0));
+            }));
+            spool.replay(new ColumnDictionary(), batch -> values.add(batch.getCellValue(0)));
+            assertEquals(List.of("a", "b"), values);
+        }
+    }
+
+    @Test
+    public void rejectedBatchMovesToDeadLetters() throws Exception {
+        QueryFactory factory = new QueryFactory("col_");
+        try (WriteAheadSpool spool = new WriteAheadSpool(directory, 1 << 20, 4, false)) {
+            for (String value : List.of("a", "bad", "c")) {
+                spool.append(factory.flatten(List.of(Map.of("1", value))));
+            }
+
+            List<String> values = new ArrayList<>();
+            assertEquals(2, spool.replay(new ColumnDictionary(), batch -> {
+                if (batch.getCellValue(0).equals("bad")) {
+                    throw new SQLException("Code: 27. DB::Exception: Cannot parse input");
+                }
+                values.add(batch.getCellValue(0));
+            }));
+            assertEquals(List.of("a", "c"), values);
+            assertEquals(1, spool.getDeadLetterRows());
+            assertEquals(0, spool.replay(new ColumnDictionary(), batch -> fail("nothing to replay")));
+        }
+
+        Path retry = Files.createDirectories(directory.resolve("retry"));
+        Files.copy(directory.resolve("dead-letters.spool"), retry.resolve(String.format("segment-%020d.spool", 0)));
+        try (WriteAheadSpool spool = new WriteAheadSpool(retry, 1 << 20, 4, false)) {
+            List<String> values = new ArrayList<>();
+            assertEquals(1, spool.replay(new ColumnDictionary(), batch -> values.add(batch.getCellValue(0))));
+            assertEquals(List.of("bad"), values);
+        }
+    }
+
+    @Test
+    public void resumeAfterRestart() throws Exception {
+        QueryFactory factory = new QueryFactory("col_");
+        WriteAheadSpool spool = new WriteAheadSpool(directory, 64, 100, true);
+        for (int i = 0; i < 10; i++) {
+            spool.append(factory.flatten(List.of(Map.of("1", "v" + i))));
+        }
+        List<String> values = new ArrayList<>();
+        assertThrows(SQLException.class, () -> spool.replay(new ColumnDictionary(), batch -> {
+            if (values.size() == 4) {
+                throw new SQLException("Connection refused");
+            }
+            values.add(batch.getCellValue(0));
+        }));
+        spool.close();
+
+        try (WriteAheadSpool reopened = new WriteAheadSpool(directory, 64, 100, true)) {
+            reopened.append(factory.flatten(List.of(Map.of("1", "v10"))));
+            reopened.replay(new ColumnDictionary(), batch -> values.add(batch.getCellValue(0)));
+        }
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i <= 10; i++) {
+            expected.add("v" + i);
+        }
+        assertEquals(expected, values);
+    }
+
+    @Test
+    public void tornTailIsSkipped() throws Exception {
+        QueryFactory factory = new QueryFactory("col_");
+        WriteAheadSpool spool = new WriteAheadSpool(directory, 1 << 20, 4, false);
+        spool.append(factory.flatten(List.of(Map.of("1", "a"))));
+        spool.append(factory.flatten(List.of(Map.of("1", "b"))));
+        spool.close();
+        Path segment;
+        try (Stream<Path> files = Files.list(directory)) {
+            segment = files.filter(x -> x.toString().endsWith(".spool")).findFirst().orElseThrow();
+        }
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        List<String> values = new ArrayList<>();
+        try (WriteAheadSpool reopened = new WriteAheadSpool(directory, 1 << 20, 4, false)) {
+            reopened.append(factory.flatten(List.of(Map.of("1", "c"))));
+            reopened.replay(new ColumnDictionary(), batch -> values.add(batch.getCellValue(0)));
+        }
+        assertEquals(List.of("a", "c"), values);
+    }
+
+    @Test
+    public void corruptRecordIsSkipped() throws Exception {
+        QueryFactory factory = new QueryFactory("col_");
+        WriteAheadSpool spool = new WriteAheadSpool(directory, 1 << 20, 4, false);
+        spool.append(factory.flatten(List.of(Map.of("1", "a"))));
+        spool.append(factory.flatten(List.of(Map.of("1", "b"))));
+        spool.append(factory.flatten(List.of(Map.of("1", "c"))));
+        spool.close();
+        Path segment;
+        try (Stream<Path> files = Files.list(directory)) {
+            segment = files.filter(x -> x.toString().endsWith(".spool")).findFirst().orElseThrow();
+        }
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer length = ByteBuffer.allocate(4);
+            channel.read(length, 0);
+            long second = 8 + length.getInt(0);
+            ByteBuffer payload = ByteBuffer.allocate(1);
+            channel.read(payload, second + 8);
+            payload.put(0, (byte) ~payload.get(0));
+            channel.write(payload.rewind(), second + 8);
+        }
+
+        List<String> values = new ArrayList<>();
+        try (WriteAheadSpool reopened = new WriteAheadSpool(directory, 1 << 20, 4, false)) {
+            assertEquals(2, reopened.replay(new ColumnDictionary(), batch -> values.add(batch.getCellValue(0))));
+            assertEquals(1, reopened.getCorruptRecords());
+        }
+        assertEquals(List.of("a", "c"), values);
+    }
+
+    @Test
+    public void segmentsAreCapped() throws Exception {
+        QueryFactory factory = new QueryFactory("col_");
+        try (WriteAheadSpool spool = new WriteAheadSpool(directory, 32, 3, false)) {
+            int accepted = 0;
+            for (int i = 0; i < 10; i++) {
+                if (spool.append(factory.flatten(List.of(Map.of("1", "value" + i))))) {
+                    accepted++;
+                }
+            }
+            assertEquals(3, accepted);
+            assertEquals(7, spool.getRejectedRows());
+
+            spool.replay(new ColumnDictionary(), batch -> { });
+            assertTrue(spool.append(factory.flatten(List.of(Map.of("1", "next")))));
+        }
+    }
+
+    @Test
+    public void helperSpoolsFailedInserts() throws Exception {
+        StubConnection stub = new StubConnection();
+        ClickhouseTableHelper helper = new ClickhouseTableHelper(stub.connection(), "db.msgs", "col_");
+        try (WriteAheadSpool spool = new WriteAheadSpool(directory, 1 << 20, 4, false)) {
+            helper.setSpool(spool);
+            stub.failure = new SQLException("Connection refused");
+            assertEquals(0, helper.insertBulk(List.of(Map.of("1", "a"), Map.of("2", "b"))));
+            assertEquals(2, spool.getSpooledRows());
+
+            stub.failure = null;
+            spool.replay(helper.getQueryFactory().getDictionary(), helper::insertBatchOrThrow);
+            assertEquals(1, stub.inserts.size());
+            assertEquals(2, spool.getReplayedRows());
+        }
+    }
+
+    @Test
+    public void helperDoesNotSpoolDataErrors() throws Exception {
+        StubConnection stub = new StubConnection();
+        ClickhouseTableHelper helper = new ClickhouseTableHelper(stub.connection(), "db.msgs", "col_");
+        try (WriteAheadSpool spool = new WriteAheadSpool(directory, 1 << 20, 4, false)) {
+            helper.setSpool(spool);
+            stub.insertFailures.add(new SQLException("Code: 27. DB::Exception: Cannot parse input", "", 27));
+            assertEquals(0, helper.insertBulk(List.of(Map.of("1", "a"))));
+
+            assertEquals(0, spool.getSpooledRows());
+            assertEquals(1, helper.getMetrics().getFailedInserts());
+        }
+    }
+
+    private static List<Map<String, String>> rows(FlatBatch batch) {
+        List<Map<String, String>> rows = new ArrayList<>();
+        for (int row = 0; row < batch.getRowCount(); row++) {
+            rows.add(batch.getRow(row));
+        }
+        return rows;
+    }
+}
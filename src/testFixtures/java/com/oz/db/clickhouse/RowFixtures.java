@@ -0,0 +1,85 @@
+package com.oz.db.clickhouse;
+
+import java.util.*;
+
+/**
+ * Rows of the shapes hoarded in practice, shared by the benchmarks and the load harness.
+ */
+public final class RowFixtures {
+
+    public enum Shape {
+        /** every row has the same top level tags */
+        FLAT,
+        /** every row has a few common tags and a few of its own, like parsed FIX messages */
+        SPARSE,
+        /** repeating groups two levels deep */
+        NESTED
+    }
+
+    private RowFixtures() {
+    }
+
+    public static List<Map<String, Object>> fixture(Shape shape, int batchSize, int columnCount, Random random) {
+        List<Map<String, Object>> rows = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            switch (shape) {
+                case FLAT:
+                    rows.add(flatRow(1, columnCount, random));
+                    break;
+                case SPARSE:
+                    rows.add(sparseRow(columnCount, random));
+                    break;
+                default:
+                    rows.add(nestedRow(columnCount, random));
+            }
+        }
+        return rows;
+    }
+
+    private static Map<String, Object> flatRow(int firstTag, int count, Random random) {
+        Map<String, Object> row = new HashMap<>();
+        for (int tag = firstTag; tag < firstTag + count; tag++) {
+            row.put(String.valueOf(tag), value(random));
+        }
+        return row;
+    }
+
+    private static Map<String, Object> sparseRow(int columnCount, Random random) {
+        int common = Math.max(1, columnCount / 10);
+        Map<String, Object> row = flatRow(1, common, random);
+        for (int i = 0; i < common; i++) {
+            row.put(String.valueOf(common + 1 + random.nextInt(columnCount - common)), value(random));
+        }
+        return row;
+    }
+
+    private static Map<String, Object> nestedRow(int columnCount, Random random) {
+        int tagsPerLevel = Math.max(1, columnCount / 10);
+        Map<String, Object> row = flatRow(1, tagsPerLevel, random);
+        List<Map<String, Object>> groups = new ArrayList<>();
+        for (int i = 0, n = 1 + random.nextInt(3); i < n; i++) {
+            Map<String, Object> group = flatRow(100, tagsPerLevel, random);
+            List<Map<String, Object>> subgroups = new ArrayList<>();
+            for (int j = 0, m = 1 + random.nextInt(3); j < m; j++) {
+                subgroups.add(flatRow(1000, tagsPerLevel, random));
+            }
+            group.put("199", subgroups);
+            groups.add(group);
+        }
+        row.put("99", groups);
+        return row;
+    }
+
+    private static String value(Random random) {
+        switch (random.nextInt(4)) {
+            case 0:
+                return String.valueOf(random.nextInt(100_000));
+            case 1:
+                return String.format(Locale.ROOT, "%.4f", random.nextDouble() * 1000);
+            case 2:
+                return "SYM" + random.nextInt(50);
+            default:
+                return "order'" + random.nextInt(1_000_000) + "\\n";
+        }
+    }
+}